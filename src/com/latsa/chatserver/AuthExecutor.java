@@ -0,0 +1,165 @@
+package com.latsa.chatserver;
+
+import org.springframework.security.crypto.bcrypt.BCrypt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs the password hashing of logins and registrations on a few threads
+ * of its own, so a storm of logins can't take the cores from the clients,
+ * that are chatting already. BCrypt is slow on purpose, so the jobs wait
+ * in a bounded queue, and when it is full, new ones are refused at once,
+ * instead of making everyone wait longer.
+ * <p>
+ * Only the hashing runs on these threads: the result is handed to the
+ * executor of the caller, so the work done with it doesn't hold a thread,
+ * that another login waits for.
+ * <p>
+ * The time the jobs waited in the queue and the time the hashing took
+ * are counted for the statistics.
+ */
+public class AuthExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final int cost;
+
+    private final ReentrantLock statsLock;
+    private long done;
+    private long rejected;
+    private long waitNanos;
+    private long maxWaitNanos;
+    private long hashNanos;
+    private long maxHashNanos;
+
+    /**
+     * Starts the threads.
+     *
+     * @param threads number of hashing threads
+     * @param queueLimit most jobs waiting for a thread
+     * @param cost log2 of the bcrypt rounds of new hashes
+     */
+    public AuthExecutor(int threads, int queueLimit, int cost) {
+        this.cost = cost;
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueLimit), task -> {
+                    Thread thread = new Thread(task, "auth-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        statsLock = new ReentrantLock();
+    }
+
+    /**
+     * Checks a password on an auth thread.
+     *
+     * @param password the password sent by the client
+     * @param hash the saved hash of the password
+     * @param callback runs the result
+     * @param result gets if the password matches, on the callback executor
+     * @return false if the queue is full, and the check was refused
+     */
+    public boolean checkpw(String password, String hash, Executor callback, Consumer<Boolean> result) {
+        return submit(() -> BCrypt.checkpw(password, hash), callback,
+                matches -> result.accept(matches != null && matches));
+    }
+
+    /**
+     * Hashes a new password on an auth thread, with the configured cost.
+     *
+     * @param password the password sent by the client
+     * @param callback runs the result
+     * @param result gets the hash, or null if it failed, on the callback executor
+     * @return false if the queue is full, and the hashing was refused
+     */
+    public boolean hashpw(String password, Executor callback, Consumer<String> result) {
+        return submit(() -> BCrypt.hashpw(password, BCrypt.gensalt(cost)), callback, result);
+    }
+
+    /**
+     * Queues a job, and counts its waiting and running time.
+     *
+     * @param job the hashing
+     * @param callback runs the result
+     * @param result gets the result of the job, null if it failed
+     * @param <T> type of the result
+     * @return false if the queue is full
+     */
+    private <T> boolean submit(Supplier<T> job, Executor callback, Consumer<T> result) {
+        long queued = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long start = System.nanoTime();
+                T value = null;
+                try {
+                    value = job.get();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                record(start - queued, System.nanoTime() - start);
+                T hashed = value;
+                callback.execute(() -> result.accept(hashed));
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            statsLock.lock();
+            try {
+                rejected++;
+            } finally {
+                statsLock.unlock();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Counts a finished job.
+     *
+     * @param wait time the job waited in the queue
+     * @param hash time the hashing took
+     */
+    private void record(long wait, long hash) {
+        statsLock.lock();
+        try {
+            done++;
+            waitNanos += wait;
+            maxWaitNanos = Math.max(maxWaitNanos, wait);
+            hashNanos += hash;
+            maxHashNanos = Math.max(maxHashNanos, hash);
+        } finally {
+            statsLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the threads. Queued jobs are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return number of the jobs, their waiting and hashing times
+     */
+    @Override
+    public String toString() {
+        int queued = executor.getQueue().size();
+        statsLock.lock();
+        try {
+            return String.format("auth jobs: %d, queued: %d, rejected: %d, wait avg/max: %.1f/%.1f ms, "
+                            + "hash avg/max: %.1f/%.1f ms", done, queued, rejected,
+                    done == 0 ? 0 : waitNanos / 1e6 / done, maxWaitNanos / 1e6,
+                    done == 0 ? 0 : hashNanos / 1e6 / done, maxHashNanos / 1e6);
+        } finally {
+            statsLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.latsa.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests AuthExecutor.
+ */
+class AuthExecutorTest {
+
+    /**
+     * A hash checks against its password, and when the thread and the queue
+     * are busy, new jobs are refused at once.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    void testRejectWhenFull() throws InterruptedException {
+        AuthExecutor auth = new AuthExecutor(1, 1, 4);
+        try {
+            AtomicReference<String> hash = new AtomicReference<>();
+            CountDownLatch hashed = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            assertTrue(auth.hashpw("secret", Runnable::run, h -> {
+                hash.set(h);
+                hashed.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }));
+            assertTrue(hashed.await(5, TimeUnit.SECONDS));
+            assertNotNull(hash.get());
+
+            CountDownLatch checked = new CountDownLatch(1);
+            AtomicReference<Boolean> matches = new AtomicReference<>();
+            assertTrue(auth.checkpw("secret", hash.get(), Runnable::run, ok -> {
+                matches.set(ok);
+                checked.countDown();
+            }));
+            assertFalse(auth.checkpw("secret", hash.get(), Runnable::run, ok -> fail("should be refused")));
+
+            release.countDown();
+            assertTrue(checked.await(5, TimeUnit.SECONDS));
+            assertTrue(matches.get());
+            assertTrue(auth.toString().contains("rejected: 1"));
+        } finally {
+            auth.shutdown();
+        }
+    }
+
+    /**
+     * The result is handed to the executor of the caller, and the auth
+     * thread is free for the next job before the result is used.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    void testResultOnCallbackExecutor() throws InterruptedException {
+        AuthExecutor auth = new AuthExecutor(1, 1, 4);
+        try {
+            LinkedBlockingQueue<Runnable> callbacks = new LinkedBlockingQueue<>();
+            AtomicReference<String> hash = new AtomicReference<>();
+            assertTrue(auth.hashpw("secret", callbacks::add, hash::set));
+            Runnable first = callbacks.poll(5, TimeUnit.SECONDS);
+            assertNotNull(first);
+            assertNull(hash.get());
+
+            AtomicReference<Thread> thread = new AtomicReference<>();
+            assertTrue(auth.hashpw("other", callbacks::add, h -> thread.set(Thread.currentThread())));
+            Runnable second = callbacks.poll(5, TimeUnit.SECONDS);
+            assertNotNull(second);
+            first.run();
+            second.run();
+            assertNotNull(hash.get());
+            assertSame(Thread.currentThread(), thread.get());
+        } finally {
+            auth.shutdown();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.latsa.chatserver;
+
+import com.latsa.chatserver.net.Frame;
+import com.latsa.chatserver.net.Protocol;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the memory allocated to render one chat message for every
+ * recipient of a broadcast: the old way, that personalized the message for
+ * each recipient with regexes, and the current way, that renders the two
+ * views once and picks one by identity. Both ways encode the frames they
+ * send, as the connections would.
+ * <p>
+ * Usage: BroadcastBenchmark [recipients] [broadcasts]
+ */
+public class BroadcastBenchmark {
+
+    /**
+     * Runs the benchmark and prints the results.
+     *
+     * @param args number of recipients and number of broadcasts
+     * @throws IOException if a frame can't be encoded
+     */
+    public static void main(String[] args) throws IOException {
+        int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        UserData[] users = new UserData[recipients];
+        for (int i = 0; i < recipients; i++)
+            users[i] = new UserData("user" + i, "x");
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = currentThreadId(threads);
+        for (int round = 0; round < 3; round++) {
+            long sink = 0;
+            long bytes = allocated(threads, id);
+            long start = System.nanoTime();
+            for (int b = 0; b < broadcasts; b++)
+                sink += regexBroadcast(users, users[b % recipients], "hello # world " + b);
+            long regexTime = System.nanoTime() - start;
+            long regexBytes = allocated(threads, id) - bytes;
+
+            bytes = allocated(threads, id);
+            start = System.nanoTime();
+            for (int b = 0; b < broadcasts; b++)
+                sink += twoViewBroadcast(users, users[b % recipients], "hello # world " + b);
+            long viewsTime = System.nanoTime() - start;
+            long viewsBytes = allocated(threads, id) - bytes;
+
+            System.out.printf("round %d, %d recipients (%d)%n", round, recipients, sink);
+            print("regex per recipient", regexBytes, regexTime, broadcasts, recipients);
+            print("two views", viewsBytes, viewsTime, broadcasts, recipients);
+        }
+    }
+
+    /**
+     * Finds the current thread in the thread bean by its name, which is
+     * made unique first.
+     *
+     * @param threads thread bean of the JVM
+     * @return id of the current thread in the bean
+     */
+    private static long currentThreadId(com.sun.management.ThreadMXBean threads) {
+        String name = BroadcastBenchmark.class.getSimpleName() + "-" + System.nanoTime();
+        Thread.currentThread().setName(name);
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().equals(name))
+                return info.getThreadId();
+        }
+        throw new IllegalStateException("The current thread is not in the thread bean");
+    }
+
+    /**
+     * @param threads thread bean of the JVM
+     * @param id id of the current thread in the bean
+     * @return bytes allocated by the current thread so far
+     */
+    private static long allocated(com.sun.management.ThreadMXBean threads, long id) {
+        return threads.getThreadAllocatedBytes(id);
+    }
+
+    /**
+     * Prints the result of one way.
+     *
+     * @param name name of the way
+     * @param bytes allocated bytes
+     * @param nanos time taken
+     * @param broadcasts number of broadcasts
+     * @param recipients number of recipients of a broadcast
+     */
+    private static void print(String name, long bytes, long nanos, int broadcasts, int recipients) {
+        System.out.printf("  %-20s %10.1f bytes/broadcast %8.2f bytes/recipient %8.1f us/broadcast%n", name,
+                (double) bytes / broadcasts, (double) bytes / broadcasts / recipients, nanos / 1000.0 / broadcasts);
+    }
+
+    /**
+     * The old broadcast: every recipient personalizes the shared message,
+     * and gets a frame of its own, if it had to be changed.
+     *
+     * @param users recipients
+     * @param sender sender of the message
+     * @param text text of the message
+     * @return encoded bytes, so the work can't be skipped
+     * @throws IOException if a frame can't be encoded
+     */
+    private static long regexBroadcast(UserData[] users, UserData sender, String text) throws IOException {
+        String message = sender.getUsername() + "# " + text;
+        Frame frame = new Frame(message);
+        long sent = 0;
+        for (UserData user : users) {
+            String personal = regexPersonalize(message, user);
+            if (personal == message)
+                sent += frame.encode(Protocol.V1).remaining();
+            else
+                sent += new Frame(personal).encode(Protocol.V1).remaining();
+        }
+        return sent;
+    }
+
+    /**
+     * The personalization, that ran for every recipient before the views
+     * were rendered by the sender.
+     *
+     * @param msg message to send
+     * @param user recipient
+     * @return the message as the recipient should see it
+     */
+    private static String regexPersonalize(String msg, UserData user) {
+        if (msg.contains("#")) {
+            String name = msg.substring(0, msg.indexOf("#"));
+            if (name.contains(user.getUsername())) {
+                msg = msg.replaceFirst(Pattern.quote(name), "Me");
+                if (user.getIsAdmin())
+                    msg = msg.replaceFirst("#", "(admin)#  ");
+                else
+                    msg = msg.replaceFirst("#", "#  ");
+            }
+        }
+        return msg;
+    }
+
+    /**
+     * The current broadcast: two views rendered once, picked by identity.
+     *
+     * @param users recipients
+     * @param sender sender of the message
+     * @param text text of the message
+     * @return encoded bytes, so the work can't be skipped
+     * @throws IOException if a frame can't be encoded
+     */
+    private static long twoViewBroadcast(UserData[] users, UserData sender, String text) throws IOException {
+        String name = sender.getUsername();
+        String message = name + "# " + text;
+        Frame othersFrame = new Frame(message);
+        Frame selfFrame = new Frame(ClientHandler.selfView(message, name.length(), sender.getIsAdmin()));
+        long sent = 0;
+        for (UserData user : users)
+            sent += (user == sender ? selfFrame : othersFrame).encode(Protocol.V1).remaining();
+        return sent;
+    }
+}
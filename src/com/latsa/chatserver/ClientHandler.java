@@ -2,84 +2,122 @@ package com.latsa.chatserver;
 
 
 import com.latsa.chatserver.gui.ServerTerminal;
-import org.springframework.security.crypto.bcrypt.BCrypt;
+import com.latsa.chatserver.net.ClientConnection;
+import com.latsa.chatserver.net.Frame;
+import com.latsa.chatserver.net.Protocol;
+import com.latsa.chatserver.storage.Inbox;
+import com.latsa.chatserver.utils.HashedWheelTimer;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 import java.util.ArrayList;
-import java.util.TreeMap;
-import java.util.regex.Pattern;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
- * Class, that handles a connected client.
+ * Class, that handles a connected client. It doesn't own a thread, the
+ * connection passes every received frame to it, and it answers through
+ * the connection.
  */
-public class ClientHandler extends Thread {
+public class ClientHandler {
 
-    private Socket clientSock;
-    private DataInputStream dis;
-    private DataOutputStream dos;
+    private ClientConnection connection;
+    private ServerConfig config;
 
     private ServerTerminal terminal;
     private UserData thisUser;
 
-    private ArrayList<UserData> users;
-    private ArrayList<ClientHandler> clients;
-    private ArrayList<String> previous;
-    private static TreeMap<String, String> online;
+    private UserRegistry users;
+    private SessionRegistry sessions;
+    private final long id;
+    private PresenceService presence;
+    private HistoryStore history;
+    private AuthExecutor auth;
+    private ResumeTokens tokens;
+    private Inbox inbox;
 
-    final static String OFFLINE = "Offline";
-    final static String ONLINE = "Online";
+    private static final AtomicLong NEXT_ID = new AtomicLong();
 
     private boolean isLoggedIn;
-    private boolean isConnected;
     private static boolean showMessages;
 
+    private int snapshotLines;
+    private boolean snapshotDeflate;
+    private boolean presenceSync;
+    private boolean presenceDigest;
+    private boolean resumable;
+    private boolean countedOnline;
+    private Runnable leaveAction;
+    private FloodControl floodControl;
+
+    private HashedWheelTimer timer;
+    private HashedWheelTimer.Timeout loginDeadline;
+    private volatile HashedWheelTimer.Timeout activityCheck;
+    private volatile long lastSeen;
+    private volatile long lastCommand;
+    private volatile boolean heartbeat;
+    private final AtomicBoolean hasLeft = new AtomicBoolean();
+
 
     /**
      * Constructs a new clienthandler.
      *
-     * @param clientSock socket this handler handles
+     * @param connection connection this handler handles
+     * @param config settings of the server
+     * @param timer timer of the login deadline, idle timeout and heartbeat
      * @param terminal default output terminal
-     * @param users list of registered users
-     * @param clients list of other clients on the server
-     * @param previous previously sent messages on the server
+     * @param users registered users
+     * @param sessions clients connected to the server
+     * @param presence online status of the users
+     * @param history previously sent messages on the server
+     * @param auth threads checking and hashing the passwords
+     * @param tokens tokens to resume sessions with
+     * @param inbox mentions of the offline users, may be null
      */
-    public ClientHandler(Socket clientSock, ServerTerminal terminal, ArrayList<UserData> users, ArrayList<ClientHandler> clients,
-                         ArrayList<String> previous) {
-        this.clientSock = clientSock;
-        try {
-            this.dis = new DataInputStream(this.clientSock.getInputStream());
-            this.dos = new DataOutputStream(this.clientSock.getOutputStream());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    public ClientHandler(ClientConnection connection, ServerConfig config, HashedWheelTimer timer, ServerTerminal terminal,
+                         UserRegistry users, SessionRegistry sessions, PresenceService presence,
+                         HistoryStore history, AuthExecutor auth, ResumeTokens tokens, Inbox inbox) {
+        this.connection = connection;
+        this.config = config;
+        this.timer = timer;
+        this.floodControl = new FloodControl(config);
         isLoggedIn = false;
-        isConnected = true;
+        snapshotLines = -1;
         this.terminal = terminal;
         if (this.users == null)
             this.users = users;
 
-        if (this.clients == null)
-            this.clients = clients;
+        this.sessions = sessions;
+        this.presence = presence;
+        this.id = NEXT_ID.incrementAndGet();
 
-        if (online == null) {
-            online = new TreeMap<>();
-            if(users != null) {
-                for (UserData ud : users) {
-                    online.put(ud.getUsername(), OFFLINE);
-                }
-            }
-        }
+        this.history = history;
+        this.auth = auth;
+        this.tokens = tokens;
+        this.inbox = inbox;
 
-        this.previous = previous;
+        connection.send("ACCEPTED");
 
-        try {
-            dos.writeUTF("ACCEPTED");
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        lastSeen = lastCommand = System.nanoTime();
+        if (config.getLoginTimeoutSeconds() > 0)
+            loginDeadline = timer.newTimeout(() -> connection.execute(this::loginTimedOut),
+                    config.getLoginTimeoutSeconds(), TimeUnit.SECONDS);
+        if (config.getIdleTimeoutSeconds() > 0)
+            scheduleActivityCheck(TimeUnit.SECONDS.toNanos(config.getIdleTimeoutSeconds()));
+    }
+
+    /**
+     * Sets what should run, when the client leaves the server.
+     *
+     * @param leaveAction action to run once, after the client left
+     */
+    public void setLeaveAction(Runnable leaveAction) {
+        this.leaveAction = leaveAction;
     }
 
     /**
@@ -90,118 +128,378 @@ public class ClientHandler extends Thread {
     }
 
     /**
-     * If user is logged in, waits for commands from the socket.
-     */
-    @Override
-    public void run() {
-        String temp;
-        String[] cmd;
-        while (isConnected) {
-            if (clientSock.isClosed())
-                isConnected = false;
-            else {
-                try {
-                    temp = dis.readUTF();
-                    cmd = temp.split("#");
-
-                    if (cmd[0].equals("login") && cmd.length == 3) {
-                        login(cmd[1], cmd[2]);
-                    } else if (cmd[0].equals("register") && cmd.length == 3) {
-                        register(cmd[1], cmd[2]);
-                    } else if (cmd[0].equals("disconnect") && cmd.length == 1) {
-                        disconnect();
-                    } else if (cmd[0].equals("msg") && cmd.length > 1 && isLoggedIn) {
-                        message(cmd);
-                    } else if (cmd[0].equals("kick") && cmd.length == 2) {
-                        kickUser(cmd[1]);
-                    } else if (cmd[0].equals("ban")) {
-                        banUser(cmd[1], cmd[2]);
-                    } else {
-                        sendError("Invalid command");
+     * Executes a command received from the client.
+     *
+     * @param cmd the received command, split into its parts
+     */
+    public void onCommand(String[] cmd) {
+        lastSeen = System.nanoTime();
+        if (cmd[0].equals("ping") && cmd.length == 1) {
+            connection.send("pong");
+            return;
+        } else if (cmd[0].equals("pong") && cmd.length == 1) {
+            return;
+        }
+        lastCommand = lastSeen;
+
+        if (cmd[0].equals("hello") && !isLoggedIn) {
+            hello(cmd);
+        } else if (cmd[0].equals("login") && cmd.length == 3 && !isLoggedIn) {
+            login(cmd[1], cmd[2]);
+        } else if (cmd[0].equals("resume") && cmd.length == 3 && !isLoggedIn) {
+            resume(cmd[1], cmd[2]);
+        } else if (cmd[0].equals("register") && cmd.length == 3 && !isLoggedIn) {
+            register(cmd[1], cmd[2]);
+        } else if (cmd[0].equals("disconnect") && cmd.length == 1) {
+            disconnect();
+        } else if (cmd[0].equals("presence") && cmd.length == 3 && cmd[1].equals("since") && isLoggedIn) {
+            presenceSince(cmd[2]);
+        } else if (cmd[0].equals("msg") && cmd.length > 1 && isLoggedIn) {
+            message(cmd);
+        } else if (cmd[0].equals("kick") && cmd.length == 2 && isLoggedIn) {
+            kickUser(cmd[1]);
+        } else if (cmd[0].equals("ban") && cmd.length == 3 && isLoggedIn) {
+            banUser(cmd[1], cmd[2]);
+        } else {
+            sendError("Invalid command");
+        }
+    }
+
+    /**
+     * Negotiates optional features with the client before login. Every
+     * part of the command after hello is a feature the client supports.
+     * The server answers with the features it accepted, unknown ones are ignored.
+     * <p>
+     * snapshot or snapshot=[lines]: users and history come in one snapshot
+     * on login, with at most the given number of history lines. A negative
+     * number is taken as 0.
+     * snapshot_deflate: the snapshot is compressed.
+     * v2: after the answer both sides switch to the binary protocol.
+     * deflate: after the answer both directions are compressed streams,
+     * see {@link com.latsa.chatserver.net.StreamCompressor}.
+     * ping: the server sends ping after the given seconds of silence, and
+     * drops the connection, if nothing arrives for the same time again.
+     * presence: the client keeps the online status of the users itself.
+     * On login it gets no user list, it asks with presence#since#[version].
+     * It also gets digests.
+     * digest: status changes come as presence#delta frames, each with every
+     * change of a short window, instead of one user frame per change.
+     * resume: on login the client gets a token#[token]#[seq] frame, and
+     * later chat messages and announcements come as seq#[seq]#[message].
+     * After a reconnect it can send resume#[token]#[seq] instead of logging
+     * in, with the highest sequence number it got.
+     *
+     * @param cmd the hello command and the requested features
+     */
+    private void hello(String[] cmd) {
+        StringBuilder accepted = new StringBuilder("hello");
+        boolean v2 = false;
+        boolean deflate = false;
+        for (int i = 1; i < cmd.length; i++) {
+            String feature = cmd[i];
+            if (feature.equals("v2") && connection.getProtocol() == Protocol.V1) {
+                v2 = true;
+                accepted.append("#v2");
+                continue;
+            }
+            if (feature.equals("deflate") && config.getCompressionLevel() > 0
+                    && connection.getCompressionStats() == null) {
+                deflate = true;
+                accepted.append("#deflate");
+                continue;
+            }
+            if (feature.equals("ping") && config.getHeartbeatSeconds() > 0) {
+                heartbeat = true;
+                accepted.append("#ping=").append(config.getHeartbeatSeconds());
+                continue;
+            }
+            if (feature.equals("snapshot") || feature.startsWith("snapshot=")) {
+                int lines = Math.max(0, config.getSnapshotHistory());
+                if (feature.startsWith("snapshot=")) {
+                    try {
+                        lines = Math.max(0, Math.min(lines, Integer.parseInt(feature.substring(9))));
+                    } catch (NumberFormatException e) {
+                        continue;
                     }
-                } catch (IOException e) {
-                    if (!isConnected)
-                        e.printStackTrace();
                 }
+                snapshotLines = lines;
+                accepted.append("#snapshot=").append(snapshotLines);
+            } else if (feature.equals("snapshot_deflate")) {
+                snapshotDeflate = true;
+                accepted.append("#snapshot_deflate");
+            } else if (feature.equals("presence")) {
+                presenceSync = true;
+                presenceDigest = true;
+                accepted.append("#presence");
+            } else if (feature.equals("digest")) {
+                presenceDigest = true;
+                accepted.append("#digest");
+            } else if (feature.equals("resume") && config.getResumeTokenSeconds() > 0) {
+                resumable = true;
+                accepted.append("#resume");
             }
         }
+        connection.send(accepted.toString());
+        if (v2)
+            connection.setProtocol(Protocol.V2);
+        if (deflate)
+            connection.startCompression(config.getCompressionLevel());
+        if (heartbeat && (activityCheck == null || activityCheck.cancel()))
+            scheduleActivityCheck(TimeUnit.SECONDS.toNanos(config.getHeartbeatSeconds()));
     }
 
     /**
-     * If username exists, password matches and user isn't banned,
-     * user will be logged in.
+     * If username exists, the password is checked on the auth threads.
+     * Reading from the client stops until the check is done, so the
+     * following commands find the client logged in.
      *
      * @param username name of the user
      * @param hash hash of the password (in fact just plain text here)
      */
     private void login(String username, String hash) {
-        if (users != null && users.size() != 0) {
-            try {
-                for (UserData ud : users) {
-                    if (ud.getUsername().equals(username) && BCrypt.checkpw(hash, ud.getPassword())) {
-                        thisUser = ud;
-                        if (ud.getBanned()) {
-                            sendMessage("ban#REKT");
-                            disconnect();
-                        }
-                        isLoggedIn = true;
-                    }
-                }
+        UserData ud = users != null && users.size() != 0 ? users.get(username) : null;
+        if (ud == null) {
+            sendError("Wrong credentials!");
+            return;
+        }
+        connection.pauseReading();
+        boolean queued = auth.checkpw(hash, ud.getPassword(), connection::execute, matches -> {
+            checked(ud, matches);
+            connection.resumeReading();
+        });
+        if (!queued) {
+            connection.resumeReading();
+            sendError("Server busy!");
+        }
+    }
 
-                if (isLoggedIn) {
-                    if (thisUser.getIsAdmin())
-                        dos.writeUTF("OK_ADMIN");
-                    else
-                        dos.writeUTF("OK");
-                    online.replace(username, ONLINE);
-                    for (UserData d : users)
-                        sendMessage(String.format("user#%s#%s", d.getUsername(), online.get(d.getUsername())));
-                    terminal.appendTextToTerminal(username + " logged into the server!");
-                    if (previous != null)
-                        for (String s : previous)
-                            sendMessage(s);
-                    announce(String.format("user#%s#%s", thisUser.getUsername(), ONLINE));
-                    announce(String.format("%s joined the server!", thisUser.getUsername()));
-                } else {
-                    sendError("Wrong credentials!");
-                }
+    /**
+     * If the password matched and user isn't banned, user will be logged in.
+     * She/he gets the latest few messages, and the ones from her/his inbox.
+     * The users and the messages are sent as the outbound queue drains, so
+     * a big registry doesn't make the client look slow.
+     *
+     * @param ud data of the user
+     * @param matches if the password matched
+     */
+    private void checked(UserData ud, boolean matches) {
+        if (hasLeft.get())
+            return;
+        if (!matches) {
+            sendError("Wrong credentials!");
+            return;
+        }
+        thisUser = ud;
+        if (ud.getBanned()) {
+            sendMessage("ban#REKT");
+            disconnect();
+            return;
+        }
+        enter();
+        long[] replayed = {Long.MAX_VALUE};
+        List<String> lines = new ArrayList<>();
+        int count = snapshotLines >= 0 ? snapshotLines : config.getLoginHistory();
+        long last = history.after(Long.MIN_VALUE, count, (seq, s) -> {
+            replayed[0] = Math.min(replayed[0], seq);
+            lines.add(s);
+        });
+        Runnable then = () -> {
+            deliverInbox(Long.MIN_VALUE, replayed[0]);
+            if (resumable)
+                connection.send(String.format("token#%s#%d", tokens.issue(ud.getUsername()), last));
+            terminal.appendTextToTerminal(ud.getUsername() + " logged into the server!");
+            announce(String.format("%s joined the server!", ud.getUsername()));
+        };
+        if (snapshotLines >= 0) {
+            sendSnapshot(lines, then);
+        } else {
+            stream(Stream.concat(users(), lines.stream().map(this::personalize)).iterator(), then);
+        }
+    }
+
+    /**
+     * Resumes the session of a client, that reconnected with a token it got
+     * earlier, instead of logging in again. The token is checked without
+     * bcrypt, and only the messages after the last one the client has are
+     * sent, at most as many as on login. The client gets a new token.
+     *
+     * @param token the token
+     * @param lastSeq sequence number of the last message the client has
+     */
+    private void resume(String token, String lastSeq) {
+        long seq;
+        try {
+            seq = Long.parseLong(lastSeq);
+        } catch (NumberFormatException e) {
+            sendError("Invalid command");
+            return;
+        }
+        String username = tokens.verify(token);
+        UserData ud = username == null ? null : users.get(username);
+        if (ud == null) {
+            sendError("Invalid token!");
+            return;
+        }
+        thisUser = ud;
+        if (ud.getBanned()) {
+            sendMessage("ban#REKT");
+            disconnect();
+            return;
+        }
+        resumable = true;
+        enter();
+        int count = snapshotLines >= 0 ? snapshotLines : config.getLoginHistory();
+        long[] replayed = {Long.MAX_VALUE};
+        List<String> lines = new ArrayList<>();
+        long last = history.after(seq, count, (s, message) -> {
+            replayed[0] = Math.min(replayed[0], s);
+            lines.add(message);
+        });
+        stream(Stream.concat(users(), lines.stream().map(this::personalize)).iterator(), () -> {
+            deliverInbox(seq, replayed[0]);
+            connection.send(String.format("token#%s#%d", tokens.issue(username), last));
+            terminal.appendTextToTerminal(username + " resumed the session.");
+            announce(String.format("%s joined the server!", username));
+        });
+    }
+
+    /**
+     * Marks the client logged in, and tells it and the others.
+     */
+    private void enter() {
+        isLoggedIn = true;
+        sessions.login(this);
+        if (loginDeadline != null)
+            loginDeadline.cancel();
+        if (thisUser.getIsAdmin())
+            connection.send("OK_ADMIN");
+        else
+            connection.send("OK");
+        countedOnline = true;
+        presence.online(thisUser.getUsername());
+    }
+
+    /**
+     * @return user frames with the status of every user, none if the
+     * client syncs the presence itself
+     */
+    private Stream<String> users() {
+        if (presenceSync)
+            return Stream.empty();
+        PresenceService.Changes all = presence.snapshot();
+        return IntStream.range(0, all.size())
+                .mapToObj(i -> String.format("user#%s#%s", all.getName(i), all.getStatus(i)));
+    }
 
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Sends frames while the outbound queue isn't backlogged, and goes on
+     * with the rest when it drained. When every frame is sent, the next
+     * step runs. Nothing more is sent, if the client left meanwhile.
+     *
+     * @param frames frames to send, they are made one by one when sent
+     * @param then runs after the last frame
+     */
+    private void stream(Iterator<String> frames, Runnable then) {
+        while (frames.hasNext()) {
+            if (hasLeft.get())
+                return;
+            if (connection.isBacklogged()) {
+                connection.whenDrained(() -> stream(frames, then));
+                return;
             }
-        } else {
-            sendError("Wrong credentials!");
+            sendMessage(frames.next());
+        }
+        if (!hasLeft.get())
+            then.run();
+    }
+
+    /**
+     * Sends the messages, that mentioned the user while she/he was offline,
+     * as inbox#[seq]#[message] frames, except the ones the client already
+     * has. The inbox is emptied.
+     *
+     * @param after sequence number of the last message the client had before
+     * @param replayed sequence number of the first message sent on this login
+     */
+    private void deliverInbox(long after, long replayed) {
+        if (inbox == null)
+            return;
+        for (long seq : inbox.take(thisUser.getUsername())) {
+            if (seq <= after || seq >= replayed)
+                continue;
+            String message = history.find(seq);
+            if (message != null)
+                sendMessage(String.format("inbox#%d#%s", seq, personalize(message)));
+        }
+    }
+
+    /**
+     * Sends the users and the last history lines in one snapshot. The
+     * chunks are sent as the outbound queue drains, like the frames of
+     * a login without snapshot.
+     *
+     * @param lines the last history lines
+     * @param then runs after the last chunk
+     */
+    private void sendSnapshot(List<String> lines, Runnable then) {
+        Iterator<String> frames;
+        try {
+            LoginSnapshot snapshot = new LoginSnapshot();
+            if (!presenceSync) {
+                PresenceService.Changes all = presence.snapshot();
+                for (int i = 0; i < all.size(); i++)
+                    snapshot.addUser(all.getName(i), all.getStatus(i));
+            }
+            for (String s : lines)
+                snapshot.addLine(personalize(s));
+            frames = snapshot.frames(snapshotDeflate, config.getSnapshotChunkBytes());
+        } catch (IOException e) {
+            e.printStackTrace();
+            frames = Collections.emptyIterator();
         }
+        stream(frames, then);
     }
 
     /**
-     * If username is not used, new user will be added to users list.
+     * If username is not used, the password is hashed on the auth threads,
+     * and the new user will be added to the registry. The name is checked
+     * before hashing, so taken names are cheap to refuse, and the registry
+     * decides between two concurrent registrations.
      *
      * @param username new username
      * @param hash new password
      */
     private void register(String username, String hash) {
-        boolean exists = false;
-        if(users != null)
-        for (UserData ud : users) {
-            if (ud.getUsername().equals(username))
-                exists = true;
-        }
-
-        if (!exists) {
-            UserData newUser = new UserData(username, BCrypt.hashpw(hash, BCrypt.gensalt()));
-            users.add(newUser);
-            online.put(username, OFFLINE);
-            try {
-                dos.writeUTF("OK");
-                announce(String.format("user#%s#%s", username, OFFLINE));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        } else {
+        if (users.get(username) != null) {
             sendError("Username already exists!");
+            return;
+        }
+        connection.pauseReading();
+        boolean queued = auth.hashpw(hash, connection::execute, hashed -> {
+            registered(username, hashed);
+            connection.resumeReading();
+        });
+        if (!queued) {
+            connection.resumeReading();
+            sendError("Server busy!");
         }
+    }
 
+    /**
+     * Adds the new user with the hashed password, if the name is still free.
+     *
+     * @param username new username
+     * @param hashed hash of the password, null if hashing failed
+     */
+    private void registered(String username, String hashed) {
+        if (hashed == null) {
+            sendError("Server busy!");
+        } else if (users.add(new UserData(username, hashed))) {
+            presence.add(username);
+            connection.send("OK");
+        } else {
+            sendError("Username already exists!");
+        }
     }
 
 
@@ -209,60 +507,324 @@ public class ClientHandler extends Thread {
      * Disconnects user from the server.
      */
     void disconnect() {
-        try {
-            dos.writeUTF("disconnect");
-            dos.close();
-            dis.close();
-            clientSock.close();
-            String disc = String.format("%s disconnected from server.", thisUser.getUsername());
-            clients.remove(this);
-            if (isLoggedIn) {
-                terminal.appendTextToTerminal(disc);
-                isLoggedIn = false;
-            } else
-                terminal.appendTextToTerminal(disc);
-            isConnected = false;
-            online.replace(thisUser.getUsername(), OFFLINE);
-            announce(String.format("user#%s#%s", thisUser.getUsername(), OFFLINE));
-            announce(String.format("%s left the server!", thisUser.getUsername()));
-        } catch (IOException e) {
-            e.printStackTrace();
+        connection.send("disconnect");
+        connection.close();
+        leave();
+    }
+
+    /**
+     * The client closed the connection without disconnecting.
+     */
+    public void connectionLost() {
+        leave();
+    }
+
+    /**
+     * Disconnects the client, if it didn't log in in time.
+     */
+    private void loginTimedOut() {
+        if (isLoggedIn || hasLeft.get())
+            return;
+        terminal.appendTextToTerminal(String.format("%s didn't log in in time.", connection.getAddress()));
+        sendError("Login timeout");
+        disconnect();
+    }
+
+    /**
+     * Checks the activity of the client after the given time.
+     *
+     * @param delayNanos time until the check
+     */
+    private void scheduleActivityCheck(long delayNanos) {
+        activityCheck = timer.newTimeout(() -> connection.execute(this::checkActivity),
+                delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Disconnects an idle user, pings a silent heartbeat client, or drops
+     * it if it didn't answer the ping. Otherwise checks again, when the
+     * next of these can be due.
+     */
+    private void checkActivity() {
+        if (hasLeft.get())
+            return;
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        long idleNanos = TimeUnit.SECONDS.toNanos(config.getIdleTimeoutSeconds());
+        if (idleNanos > 0) {
+            long idle = now - lastCommand;
+            if (isLoggedIn && idle >= idleNanos) {
+                terminal.appendTextToTerminal(String.format("%s timed out.", thisUser.getUsername()));
+                sendError("Idle timeout");
+                disconnect();
+                return;
+            }
+            next = idle < idleNanos ? idleNanos - idle : idleNanos;
         }
+        if (heartbeat) {
+            long heartbeatNanos = TimeUnit.SECONDS.toNanos(config.getHeartbeatSeconds());
+            long silent = now - lastSeen;
+            if (silent >= 2 * heartbeatNanos) {
+                terminal.appendTextToTerminal(String.format("%s stopped answering pings.", connection.getAddress()));
+                connection.abort();
+                return;
+            } else if (silent >= heartbeatNanos) {
+                connection.send("ping");
+                next = Math.min(next, 2 * heartbeatNanos - silent);
+            } else {
+                next = Math.min(next, heartbeatNanos - silent);
+            }
+        }
+        if (next != Long.MAX_VALUE)
+            scheduleActivityCheck(next);
+    }
 
+    /**
+     * Removes this client from the server and tells the others, that it left.
+     * A kick from another client and a lost connection can both get here at
+     * the same time, only the first one does anything.
+     */
+    private void leave() {
+        if (!hasLeft.compareAndSet(false, true))
+            return;
+        if (loginDeadline != null)
+            loginDeadline.cancel();
+        if (activityCheck != null)
+            activityCheck.cancel();
+        sessions.remove(this);
+        if (leaveAction != null)
+            leaveAction.run();
+        if (thisUser == null) {
+            terminal.appendTextToTerminal(String.format("%s disconnected from server.", connection.getAddress()));
+            return;
+        }
+        String disc = String.format("%s disconnected from server.", thisUser.getUsername());
+        if (isLoggedIn) {
+            terminal.appendTextToTerminal(disc);
+            isLoggedIn = false;
+        } else
+            terminal.appendTextToTerminal(disc);
+        if (countedOnline)
+            presence.offline(thisUser.getUsername());
+        announce(String.format("%s left the server!", thisUser.getUsername()));
     }
 
     /**
-     * Sends message to every online user on the server.
+     * Sends message to every online user on the server. The message is
+     * encoded only once for each protocol, and the same bytes are sent to
+     * everyone. Clients, that can resume, share a second frame with the
+     * sequence number of the message.
      *
      * @param s message to send
      */
     public void announce(String s) {
-        if ((s.contains("#") && !s.substring(0, s.indexOf("#")).equals("user")) || !s.contains("#"))
-            previous.add(s);
-        for (ClientHandler ch : clients) {
-            if (ch.getLoggedIn())
-                ch.sendMessage(s);
+        long seq = s.startsWith("user#") ? -1 : history.append(s);
+        Frame frame = new Frame(s);
+        Frame tagged = null;
+        for (ClientHandler ch : sessions.getLoggedIn()) {
+            if (ch.resumable && seq >= 0) {
+                if (tagged == null)
+                    tagged = tagged(seq, s);
+                ch.connection.send(tagged);
+            } else {
+                ch.connection.send(frame);
+            }
+        }
+    }
+
+    /**
+     * @param seq sequence number of a message in the history
+     * @param s the message
+     * @return frame of the message for clients, that can resume
+     */
+    private static Frame tagged(long seq, String s) {
+        return new Frame("seq#" + seq + "#" + s);
+    }
+
+    /**
+     * Sends a chat message of this user to every online user. Both views
+     * of the message are rendered once: the sessions of this user get the
+     * self view, everyone else the view of the others. Which one a session
+     * gets is decided by comparing the user objects. Clients, that can
+     * resume, get the views with the sequence number of the message.
+     *
+     * @param others the message as the others see it
+     * @param self the message as its sender sees it
+     * @return sequence number of the message in the history, -1 if it's too long to keep
+     */
+    private long broadcastChat(String others, String self) {
+        long seq = history.append(others);
+        Frame othersFrame = new Frame(others);
+        Frame selfFrame = new Frame(self);
+        Frame othersTagged = null;
+        Frame selfTagged = null;
+        for (ClientHandler ch : sessions.getLoggedIn()) {
+            boolean own = ch.thisUser == thisUser;
+            if (!ch.resumable || seq < 0) {
+                ch.connection.send(own ? selfFrame : othersFrame);
+            } else if (own) {
+                if (selfTagged == null)
+                    selfTagged = tagged(seq, self);
+                ch.connection.send(selfTagged);
+            } else {
+                if (othersTagged == null)
+                    othersTagged = tagged(seq, others);
+                ch.connection.send(othersTagged);
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * Sends published status changes to the client. Clients, that asked
+     * for digests, get the shared delta frames, the others a user frame
+     * for each change. Deleted users are only in the digests.
+     *
+     * @param userFrames user frames of the changes, shared by all recipients,
+     *                   null for deleted users
+     * @param digest delta frames of the changes, shared by all recipients
+     */
+    void deliverPresence(List<Frame> userFrames, List<Frame> digest) {
+        if (presenceDigest) {
+            for (Frame frame : digest)
+                connection.send(frame);
+        } else {
+            for (Frame frame : userFrames)
+                if (frame != null)
+                    connection.send(frame);
+        }
+    }
+
+    /**
+     * Answers presence#since#[version]. If the changes since the version
+     * are still known and fit in one frame, only they are sent in a
+     * presence#delta frame. Otherwise the client gets presence#full#[version],
+     * followed by a snapshot of every user, see {@link LoginSnapshot}.
+     *
+     * @param since last version the client has seen
+     */
+    private void presenceSince(String since) {
+        PresenceService.Changes changes;
+        try {
+            changes = presence.since(Long.parseLong(since));
+        } catch (NumberFormatException e) {
+            sendError("Invalid command");
+            return;
+        }
+        if (changes != null) {
+            String delta = changes.toDeltaFrame();
+            if (delta.length() <= config.getSnapshotChunkBytes()) {
+                connection.send(delta);
+                return;
+            }
+        }
+        try {
+            PresenceService.Changes all = presence.snapshot();
+            LoginSnapshot snapshot = new LoginSnapshot();
+            for (int i = 0; i < all.size(); i++)
+                snapshot.addUser(all.getName(i), all.getStatus(i));
+            connection.send("presence#full#" + all.getVersion());
+            for (String frame : snapshot.toFrames(snapshotDeflate, config.getSnapshotChunkBytes()))
+                connection.send(frame);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * Sends message from a user to every other user.
+     * Sends message from a user to every other user, if the user is
+     * under the flood limits. Admins can be exempt from the limits.
      *
      * @param msg message to send
      */
     private void message(String[] msg) {
-        if (thisUser.getIsAdmin())
-            msg[0] = thisUser.getUsername() + "(admin)# ";
-        else
-            msg[0] = thisUser.getUsername() + "# ";
-        StringBuilder sb = new StringBuilder();
-        for (String s : msg)
-            sb.append(s);
+        if (!(thisUser.getIsAdmin() && config.isFloodExemptAdmins())) {
+            int length = 0;
+            for (int i = 1; i < msg.length; i++)
+                length += utf8Length(msg[i]);
+            switch (floodControl.check(length)) {
+                case KICK:
+                    kickForFlooding();
+                    return;
+                case THROTTLE:
+                    connection.pauseReading();
+                    timer.newTimeout(connection::resumeReading, floodControl.getThrottleNanos(), TimeUnit.NANOSECONDS);
+                    break;
+                default:
+                    break;
+            }
+        }
+        boolean admin = thisUser.getIsAdmin();
+        StringBuilder sb = new StringBuilder(thisUser.getUsername()).append(admin ? "(admin)# " : "# ");
+        int hash = sb.length() - 2;
+        for (int i = 1; i < msg.length; i++)
+            sb.append(msg[i]);
         String message = sb.toString();
         if(showMessages){
             terminal.appendTextToTerminal(message);
         }
-        announce(message);
+        long seq = broadcastChat(message, selfView(message, hash, admin));
+        if (inbox != null && seq >= 0)
+            mention(message.substring(hash + 1), seq);
+    }
+
+    /**
+     * Puts a chat message into the inbox of every offline user, that is
+     * mentioned in it with @name. Punctuation after the name is ignored.
+     *
+     * @param text text of the message
+     * @param seq sequence number of the message
+     */
+    private void mention(String text, long seq) {
+        List<String> mentioned = new ArrayList<>();
+        for (int at = text.indexOf('@'); at >= 0; at = text.indexOf('@', at + 1)) {
+            int end = at + 1;
+            while (end < text.length() && !Character.isWhitespace(text.charAt(end)))
+                end++;
+            while (end > at + 1 && ",.!?:;".indexOf(text.charAt(end - 1)) >= 0)
+                end--;
+            String name = text.substring(at + 1, end);
+            if (name.isEmpty() || name.equals(thisUser.getUsername()) || mentioned.contains(name)
+                    || sessions.isLoggedIn(name) || users.get(name) == null)
+                continue;
+            mentioned.add(name);
+            inbox.add(name, seq);
+        }
+    }
+
+    /**
+     * Kicks the user for going over the flood limits.
+     */
+    private void kickForFlooding() {
+        String name = thisUser.getUsername();
+        tokens.revoke(name);
+        terminal.appendTextToTerminal(String.format("%s has been kicked for flooding.", name));
+        sendMessage("kick#REKT");
+        disconnect();
+        announce(String.format("%s has been kicked from the server for flooding!", name));
+    }
+
+    /**
+     * Counts the bytes of a text in UTF-8, without encoding it.
+     *
+     * @param s the text
+     * @return length in bytes
+     */
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                length++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else
+                length += 3;
+        }
+        return length;
     }
 
     /**
@@ -271,12 +833,7 @@ public class ClientHandler extends Thread {
      * @param issue reason of error message
      */
     private void sendError(String issue) {
-        try {
-            dos.writeUTF(String.format("Error: %s", issue));
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        connection.send(String.format("Error: %s", issue));
     }
 
     /**
@@ -285,30 +842,39 @@ public class ClientHandler extends Thread {
      * @param msg message to send
      */
     void sendMessage(String msg) {
-        if (msg.contains("#")) {
-            String user = msg.substring(0, msg.indexOf("#"));
-            if (isLoggedIn && user.contains(thisUser.getUsername())) {
-                msg = msg.replaceFirst(Pattern.quote(user), "Me");
-                if (thisUser.getIsAdmin())
-                    msg = msg.replaceFirst("#", "(admin)#  ");
-                else
-                    msg = msg.replaceFirst("#", "#  ");
-            }
+        connection.send(msg);
+    }
 
-        }
-        try {
-            dos.writeUTF(msg);
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Replaces the name of the user with "Me" in her/his own chat messages
+     * from the history.
+     *
+     * @param msg chat message or announcement from the history
+     * @return the message as this user should see it, or msg itself
+     * if it doesn't have to be changed
+     */
+    private String personalize(String msg) {
+        if (!isLoggedIn || !msg.startsWith(thisUser.getUsername()))
+            return msg;
+        int at = thisUser.getUsername().length();
+        if (msg.startsWith("#", at))
+            return selfView(msg, at, thisUser.getIsAdmin());
+        if (msg.startsWith("(admin)#", at))
+            return selfView(msg, at + 7, thisUser.getIsAdmin());
+        return msg;
     }
 
     /**
-     * @return users and their online status
+     * Renders the view of a chat message for its sender: the name is
+     * replaced with "Me", and the text is indented.
+     *
+     * @param msg the message as the others see it
+     * @param hash index of the # after the name
+     * @param admin if the sender is an admin
+     * @return the message as its sender sees it
      */
-    public static TreeMap<String, String> getOnline() {
-        return online;
+    static String selfView(String msg, int hash, boolean admin) {
+        return (admin ? "Me(admin)#  " : "Me#  ") + msg.substring(hash + 1);
     }
 
     /**
@@ -320,39 +886,25 @@ public class ClientHandler extends Thread {
     private void kickUser(String name) {
         terminal.appendTextToTerminal(String.format("%s want's to kick %s.", thisUser.getUsername(), name));
 
-        UserData selected = null;
-        for (UserData ud : users) {
-            if (ud.getUsername().equals(name))
-                selected = ud;
-        }
+        UserData selected = users.get(name);
 
         if (selected == null)
             terminal.appendTextToTerminal("No such user!");
         else if (selected.getUsername().equals(thisUser.getUsername())) {
             terminal.appendTextToTerminal("Error: user wanted to kick himself :D");
-            try {
-                dos.writeUTF("kick#YOU");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            connection.send("kick#YOU");
         } else if (selected.getIsAdmin()) {
             terminal.appendTextToTerminal("Error: user wanted to kick another admin!");
-            try {
-                dos.writeUTF("kick#ADMIN");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            connection.send("kick#ADMIN");
         } else {
             terminal.appendTextToTerminal(String.format("Admin %s kicked user: %s", thisUser.getUsername(), name));
+            tokens.revoke(name);
 
             sendMessage("kick#KICKED");
-            ClientHandler toDelete = null;
-            for (ClientHandler ch : clients) {
-                if (ch.getUsername().equals(name))
-                    toDelete = ch;
+            for (ClientHandler toDelete : sessions.get(name)) {
+                toDelete.sendMessage("kick#REKT");
+                toDelete.disconnect();
             }
-            toDelete.sendMessage("kick#REKT");
-            toDelete.disconnect();
             announce(String.format("%s has been kicked from the server!", name));
 
         }
@@ -368,40 +920,27 @@ public class ClientHandler extends Thread {
     private void banUser(String name, String reason) {
         terminal.appendTextToTerminal(String.format("%s want's to ban %s.", thisUser.getUsername(), name));
 
-        UserData selected = null;
-        for (UserData ud : users) {
-            if (ud.getUsername().equals(name))
-                selected = ud;
-        }
+        UserData selected = users.get(name);
 
         if (selected == null)
             terminal.appendTextToTerminal("No such user!");
         else if (selected.getUsername().equals(thisUser.getUsername())) {
             terminal.appendTextToTerminal("Error: user wanted to ban himself :D");
-            try {
-                dos.writeUTF("ban#YOU");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            connection.send("ban#YOU");
         } else if (selected.getIsAdmin()) {
             terminal.appendTextToTerminal("Error: user wanted to ban another admin!");
-            try {
-                dos.writeUTF("ban#ADMIN");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            connection.send("ban#ADMIN");
         } else {
             selected.setBanned(true);
+            users.update(selected);
+            tokens.revoke(name);
             terminal.appendTextToTerminal(String.format("Admin %s banned user: %s", thisUser.getUsername(), name));
 
             sendMessage("ban#BANNED");
-            ClientHandler toDelete = null;
-            for (ClientHandler ch : clients) {
-                if (ch.getUsername().equals(name))
-                    toDelete = ch;
+            for (ClientHandler toDelete : sessions.get(name)) {
+                toDelete.sendMessage(String.format("ban#%s", reason));
+                toDelete.disconnect();
             }
-            toDelete.sendMessage(String.format("ban#%s", reason));
-            toDelete.disconnect();
             announce(String.format("%s has been banned from the server!", name));
         }
     }
@@ -413,6 +952,20 @@ public class ClientHandler extends Thread {
         return thisUser.getUsername();
     }
 
+    /**
+     * @return id of the connection, unique while the server runs
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return connection this handler handles
+     */
+    public ClientConnection getConnection() {
+        return connection;
+    }
+
     /**
      * Sets, that the terminal should display every messages
      * going through the server.
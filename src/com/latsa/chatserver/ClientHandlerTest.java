@@ -0,0 +1,161 @@
+package com.latsa.chatserver;
+
+import com.latsa.chatserver.gui.ServerTerminal;
+import com.latsa.chatserver.net.TransportMode;
+import com.latsa.chatserver.utils.CommandFifo;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests ClientHandler through a running server.
+ */
+class ClientHandlerTest {
+
+    private static final int PORT = 44445;
+    private static final int USERS = 5000;
+
+    /**
+     * Logging in to a server with more users, than fit in the outbound
+     * queue under its high watermark, gets every user, and the client
+     * isn't dropped as a slow consumer: it still answers afterwards.
+     *
+     * @throws Exception
+     */
+    @Test
+    void testLoginLargeRegistry() throws Exception {
+        TcpChatServer tcs = start(new ServerConfig());
+        try {
+            try (Socket socket = connect()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                login(in, out);
+
+                int users = 0;
+                while (users < USERS) {
+                    String frame = in.readUTF();
+                    assertNotEquals("disconnect", frame);
+                    if (frame.startsWith("user#user"))
+                        users++;
+                }
+                assertEquals(USERS, users);
+                out.writeUTF("ping");
+                readUntil(in, "pong"::equals);
+            }
+        } finally {
+            tcs.stopServer();
+        }
+    }
+
+    /**
+     * The snapshot of a large registry comes in more chunks, than fit in
+     * the outbound queue, and the client isn't dropped as a slow consumer.
+     *
+     * @throws Exception
+     */
+    @Test
+    void testSnapshotLargeRegistry() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setSnapshotChunkBytes(1024);
+        TcpChatServer tcs = start(config);
+        try {
+            try (Socket socket = connect()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeUTF("hello#snapshot");
+                readUntil(in, frame -> frame.startsWith("hello#"));
+                login(in, out);
+
+                String[] header;
+                do {
+                    header = in.readUTF().split("#");
+                } while (!header[0].equals("snapshot"));
+                assertTrue(Integer.parseInt(header[3]) > USERS);
+                int chunks = Integer.parseInt(header[1]);
+                assertTrue(chunks > 64);
+                for (int i = 0; i < chunks; i++)
+                    assertTrue(in.readUTF().startsWith("snapshot_chunk#"));
+                out.writeUTF("ping");
+                readUntil(in, "pong"::equals);
+            }
+        } finally {
+            tcs.stopServer();
+        }
+    }
+
+    /**
+     * Starts a server with a small outbound queue and many users.
+     *
+     * @param config settings of the server, the outbound queue is set here
+     * @return the server
+     */
+    private static TcpChatServer start(ServerConfig config) {
+        config.setTransport(TransportMode.NIO);
+        config.setOutboundHighWatermark(64 * 1024);
+        config.setOutboundLowWatermark(16 * 1024);
+        config.setBcryptCost(4);
+        config.setPresenceWindowMillis(0);
+        TcpChatServer tcs = new TcpChatServer(PORT, new ServerTerminal(new CommandFifo()), config);
+        new Thread(tcs).start();
+        for (int i = 0; i < USERS; i++)
+            tcs.addUser("user" + i, "hash");
+        return tcs;
+    }
+
+    /**
+     * Registers the test user, and logs in. The users of an earlier run
+     * may be kept, so registering can fail.
+     *
+     * @param in stream of the client
+     * @param out stream to the server
+     * @throws IOException if the connection is closed
+     */
+    private static void login(DataInputStream in, DataOutputStream out) throws IOException {
+        out.writeUTF("register#tester#password");
+        readUntil(in, frame -> frame.equals("OK") || frame.startsWith("Error:"));
+        out.writeUTF("login#tester#password");
+        readUntil(in, "OK"::equals);
+    }
+
+    /**
+     * Connects to the server, once it listens.
+     *
+     * @return socket of the client
+     * @throws Exception if it doesn't listen in time
+     */
+    private static Socket connect() throws Exception {
+        for (int i = 0; ; i++) {
+            try {
+                Socket socket = new Socket("127.0.0.1", PORT);
+                socket.setSoTimeout(10000);
+                return socket;
+            } catch (ConnectException e) {
+                if (i == 50)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Reads frames until the expected one.
+     *
+     * @param in stream of the client
+     * @param expected frame to wait for
+     * @throws IOException if the connection is closed before it
+     */
+    private static void readUntil(DataInputStream in, Predicate<String> expected) throws IOException {
+        String frame;
+        do {
+            frame = in.readUTF();
+            assertNotEquals("disconnect", frame);
+        } while (!expected.test(frame));
+    }
+}
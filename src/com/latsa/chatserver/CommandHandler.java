@@ -1,8 +1,13 @@
 package com.latsa.chatserver;
 
 import com.latsa.chatserver.gui.ServerTerminal;
+import com.latsa.chatserver.net.TransportMode;
+import com.latsa.chatserver.net.VirtualThreads;
 import com.latsa.chatserver.utils.CommandFifo;
 
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+
 
 /**
  * Handles server-side commands.
@@ -37,7 +42,9 @@ public class CommandHandler implements Runnable {
 
                 String[] cmd = command.split(" ");
                 if (cmd[0].equals("start_server") && cmd.length == 2)
-                    startServer(cmd[1]);
+                    startServer(cmd[1], null);
+                else if (cmd[0].equals("start_server") && cmd.length == 3)
+                    startServer(cmd[1], cmd[2]);
                 else if (cmd[0].equals("stop_server") && cmd.length == 1)
                     stopServer();
                 else if (cmd[0].equals("add_admin") && cmd.length == 2)
@@ -46,8 +53,18 @@ public class CommandHandler implements Runnable {
                     removeAdmin(cmd[1]);
                 else if (cmd[0].equals("show_users") && cmd.length == 1)
                     showUsers();
+                else if (cmd[0].equals("show_stats") && cmd.length == 1)
+                    showStats();
+                else if (cmd[0].equals("set_max_connections") && cmd.length == 2)
+                    setLimit(cmd);
+                else if (cmd[0].equals("set_ip_connections") && cmd.length == 2)
+                    setLimit(cmd);
+                else if (cmd[0].equals("set_ip_rate") && cmd.length == 3)
+                    setLimit(cmd);
                 else if (cmd[0].equals("delete_history") && cmd.length == 1)
                     deleteHistory();
+                else if (cmd[0].equals("show_history") && (cmd.length == 2 || cmd.length == 3))
+                    showHistory(cmd);
                 else if (cmd[0].equals("kick_user") && cmd.length == 2)
                     kickUser(cmd[1]);
                 else if (cmd[0].equals("ban_user") && cmd.length > 3)
@@ -77,20 +94,38 @@ public class CommandHandler implements Runnable {
 
     /**
      * Creates a server on given port. In one application only one server
-     * can run at the same time.
+     * can run at the same time. Settings are read from server.properties,
+     * the transport mode can be overridden.
      *
      * @param port port number, to start server on
+     * @param mode thread, virtual or nio, null means the configured one
      */
-    private void startServer(String port) {
+    private void startServer(String port, String mode) {
         if (!serverRunning) {
             if(Integer.parseInt(port) > 1023) {
+                ServerConfig config = ServerConfig.load(ServerConfig.LOCATION, terminal::appendTextToTerminal);
+                if (mode != null) {
+                    try {
+                        config.setTransport(TransportMode.valueOf(mode.toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        terminal.appendTextToTerminal("Error: Mode must be thread, virtual or nio!");
+                        return;
+                    }
+                }
+                if (config.getTransport() == TransportMode.VIRTUAL && !VirtualThreads.isAvailable()) {
+                    terminal.appendTextToTerminal("Error: Virtual mode needs Java 21 or newer!");
+                    return;
+                }
                 try {
                     int PORT = Integer.parseInt(port);
-                    server = new TcpChatServer(PORT, terminal);
+                    server = new TcpChatServer(PORT, terminal, config);
                     Thread serverThread = new Thread(server);
                     serverThread.start();
-                    terminal.appendTextToTerminal("Server started on port " + port + ".");
+                    terminal.appendTextToTerminal("Server started on port " + port + " in "
+                            + config.getTransport().name().toLowerCase() + " mode.");
                     serverRunning = true;
+                } catch (IllegalStateException e) {
+                    terminal.appendTextToTerminal("Error: " + e.getMessage());
                 } catch (Exception e) {
                     terminal.appendTextToTerminal("Error: Port must be a number between 1024 and 65535!");
                 }
@@ -130,6 +165,7 @@ public class CommandHandler implements Runnable {
                     terminal.appendTextToTerminal("Error: User is already admin!");
                 else {
                     selected.setAdmin(true);
+                    server.updateUser(selected);
                     terminal.appendTextToTerminal(String.format("%s is now an admin!", s));
                 }
             }
@@ -151,6 +187,7 @@ public class CommandHandler implements Runnable {
             else {
                 if (selected.getIsAdmin()) {
                     selected.setAdmin(false);
+                    server.updateUser(selected);
                     terminal.appendTextToTerminal(String.format("%s is now not an admin!", s));
                 } else {
                     terminal.appendTextToTerminal("Error: user is not an admin!");
@@ -171,6 +208,17 @@ public class CommandHandler implements Runnable {
         }
     }
 
+    /**
+     * Shows traffic counters of the server on the terminal.
+     */
+    private void showStats() {
+        if (server != null) {
+            server.showStats();
+        } else {
+            noServer();
+        }
+    }
+
     /**
      * Deletes previous messages.
      */
@@ -184,6 +232,32 @@ public class CommandHandler implements Runnable {
             noServer();
     }
 
+    /**
+     * Shows messages from the archive: the latest ones, or the ones sent
+     * from the given day.
+     *
+     * @param cmd the command, with the number of messages, and maybe the day before it
+     */
+    private void showHistory(String[] cmd) {
+        if (server != null) {
+            LocalDate from = null;
+            int count;
+            try {
+                if (cmd.length == 3)
+                    from = LocalDate.parse(cmd[1]);
+                count = Integer.parseInt(cmd[cmd.length - 1]);
+            } catch (DateTimeParseException | NumberFormatException e) {
+                terminal.appendTextToTerminal("Error: Day must be yyyy-mm-dd and count a number!");
+                return;
+            }
+            if (count < 1)
+                terminal.appendTextToTerminal("Error: Count must be positive!");
+            else
+                server.showHistory(from, count);
+        } else
+            noServer();
+    }
+
     /**
      * Kicks selected user.
      *
@@ -260,9 +334,42 @@ public class CommandHandler implements Runnable {
     }
 
     /**
-     * Adds ip address to the blacklist.
+     * Changes a connection limit of the running server.
+     *
+     * @param cmd set_max_connections [n], set_ip_connections [n] or set_ip_rate [per second] [burst]
+     */
+    private void setLimit(String[] cmd)
+    {
+        if(server != null)
+        {
+            int[] values = new int[cmd.length - 1];
+            try {
+                for (int i = 1; i < cmd.length; i++)
+                    values[i - 1] = Integer.parseInt(cmd[i]);
+            } catch (NumberFormatException e) {
+                terminal.appendTextToTerminal("Error: Limits must be numbers!");
+                return;
+            }
+            for (int value : values) {
+                if (value < 1) {
+                    terminal.appendTextToTerminal("Error: Limits must be positive!");
+                    return;
+                }
+            }
+            if (cmd[0].equals("set_max_connections"))
+                server.setMaxConnections(values[0]);
+            else if (cmd[0].equals("set_ip_connections"))
+                server.setIpConnections(values[0]);
+            else
+                server.setIpRate(values[0], values[1]);
+        }else
+            noServer();
+    }
+
+    /**
+     * Adds ip address or range to the blacklist.
      *
-     * @param ip ip address to ban
+     * @param ip ip address or CIDR range to ban
      */
     private void banIp(String ip)
     {
@@ -274,9 +381,9 @@ public class CommandHandler implements Runnable {
     }
 
     /**
-     * Removes ip address from the blacklist.
+     * Removes ip address or range from the blacklist.
      *
-     * @param ip ip address to "unban"
+     * @param ip ip address or CIDR range to "unban"
      */
     private  void unbanIp(String ip)
     {
@@ -0,0 +1,69 @@
+package com.latsa.chatserver;
+
+import com.latsa.chatserver.utils.TokenBucket;
+
+/**
+ * Flood limits of one session: token buckets for messages per second
+ * and bytes per second. Used by the thread that reads the session.
+ */
+public class FloodControl {
+
+    /**
+     * Result of checking a message against the limits.
+     */
+    public enum Verdict {
+        /**
+         * The message is under the limits.
+         */
+        ALLOW,
+
+        /**
+         * The message goes through, but reading must pause for a while.
+         */
+        THROTTLE,
+
+        /**
+         * The user must be kicked.
+         */
+        KICK
+    }
+
+    private TokenBucket messages;
+    private TokenBucket bytes;
+    private FloodPolicy policy;
+    private long throttleNanos;
+
+    /**
+     * Constructs the limits of a new session.
+     *
+     * @param config settings of the server
+     */
+    public FloodControl(ServerConfig config) {
+        messages = new TokenBucket(config.getMessageRate(), config.getMessageBurst());
+        bytes = new TokenBucket(config.getMessageBytesRate(), config.getMessageBytesBurst());
+        policy = config.getFloodPolicy();
+    }
+
+    /**
+     * Checks a message against the limits and takes its tokens.
+     * When throttling, the message may take more tokens than there are,
+     * and the session has to wait until they come back.
+     *
+     * @param length length of the message in bytes
+     * @return what should happen with the message
+     */
+    public Verdict check(int length) {
+        if (policy == FloodPolicy.KICK)
+            return messages.tryAcquire() && bytes.tryAcquire(length) ? Verdict.ALLOW : Verdict.KICK;
+
+        throttleNanos = Math.max(messages.take(1), bytes.take(length));
+        return throttleNanos > 0 ? Verdict.THROTTLE : Verdict.ALLOW;
+    }
+
+    /**
+     * @return nanoseconds reading must pause after the last THROTTLE verdict
+     */
+    public long getThrottleNanos() {
+        return throttleNanos;
+    }
+}
@@ -0,0 +1,17 @@
+package com.latsa.chatserver;
+
+/**
+ * What happens when a user sends messages faster than the flood limits allow.
+ */
+public enum FloodPolicy {
+    /**
+     * The message goes through, but reading from the client stops until
+     * the user is back under the limits.
+     */
+    THROTTLE,
+
+    /**
+     * The message is dropped, and the user is kicked from the server.
+     */
+    KICK
+}
@@ -0,0 +1,557 @@
+package com.latsa.chatserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import com.latsa.chatserver.storage.MessageArchive;
+import com.latsa.chatserver.storage.WriteAheadLog;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Messages sent through the server, kept in a ring of fixed size. Every
+ * message gets a sequence number, that grows by one, and a timestamp.
+ * The text is stored as UTF-8 bytes in one byte ring, so a message costs
+ * its bytes and four numbers, not a String object.
+ * <p>
+ * The oldest messages are dropped, when there are more than the maximum
+ * number of them, when their bytes don't fit, or when they get older than
+ * the maximum age. Readers don't block the writer: every message is read
+ * optimistically, and read again under the lock only if a write got in
+ * the way.
+ * <p>
+ * With a write-ahead log set, every message and every deletion is logged,
+ * in the order of the sequence numbers. With an archive set, every message
+ * is archived as well, and messages older than the ones in the ring are
+ * read from the archive.
+ */
+public class HistoryStore {
+
+    private static final int MAGIC = 0x48495354;
+    private static final int VERSION = 1;
+
+    private final long[] seqs;
+    private final long[] times;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final byte[] data;
+    private final long maxAgeMillis;
+
+    private long first;
+    private long next;
+    private int head;
+    private int used;
+
+    private final StampedLock lock;
+    private WriteAheadLog wal;
+    private MessageArchive archive;
+
+    /**
+     * Constructs an empty store.
+     *
+     * @param maxEntries maximum number of messages
+     * @param maxBytes maximum bytes of the messages
+     * @param maxAgeMillis maximum age of the messages, 0 means no limit
+     */
+    public HistoryStore(int maxEntries, int maxBytes, long maxAgeMillis) {
+        seqs = new long[maxEntries];
+        times = new long[maxEntries];
+        offsets = new int[maxEntries];
+        lengths = new int[maxEntries];
+        data = new byte[maxBytes];
+        this.maxAgeMillis = maxAgeMillis;
+        first = next = 1;
+        lock = new StampedLock();
+    }
+
+    /**
+     * Sets the log of the changes.
+     *
+     * @param wal write-ahead log, null to stop logging
+     */
+    public void setWriteAheadLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+
+    /**
+     * Sets the archive of the messages.
+     *
+     * @param archive archive of every message, null to keep only the ring
+     */
+    public void setArchive(MessageArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Adds a message.
+     *
+     * @param message the message
+     * @return sequence number of the message, or -1 if it is longer than
+     * the whole store
+     */
+    public long append(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        long time = System.currentTimeMillis();
+        if (bytes.length > data.length)
+            return -1;
+        long seq;
+        long lsn = -1;
+        long stamp = lock.writeLock();
+        try {
+            seq = store(bytes, time, -1);
+            if (archive != null)
+                archive.append(seq, time, bytes);
+            if (wal != null)
+                lsn = wal.logMessage(seq, time, bytes);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (wal != null)
+            wal.sync(lsn);
+        return seq;
+    }
+
+    /**
+     * Adds a message from the write-ahead log, if the store or the archive
+     * doesn't have it yet.
+     *
+     * @param seq sequence number of the message
+     * @param time timestamp of the message
+     * @param bytes the message in UTF-8
+     */
+    public void restore(long seq, long time, byte[] bytes) {
+        if (bytes.length > data.length)
+            return;
+        long stamp = lock.writeLock();
+        try {
+            if (seq >= next)
+                store(bytes, time, seq);
+            if (archive != null)
+                archive.append(seq, time, bytes);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds an encoded message.
+     *
+     * @param bytes the message in UTF-8
+     * @param time timestamp of the message
+     * @param seq sequence number of the message, -1 for the next one.
+     *            If it is higher, the store is emptied and goes on from it.
+     * @return sequence number of the message, or -1 if it is longer than
+     * the whole store
+     */
+    long append(byte[] bytes, long time, long seq) {
+        if (bytes.length > data.length)
+            return -1;
+        long stamp = lock.writeLock();
+        try {
+            return store(bytes, time, seq);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds an encoded message, that fits in the store, dropping as many
+     * old ones as needed. Must hold the write lock.
+     *
+     * @param bytes the message in UTF-8
+     * @param time timestamp of the message
+     * @param seq sequence number of the message, -1 for the next one.
+     *            If it is higher, the store is emptied and goes on from it.
+     * @return sequence number of the message
+     */
+    private long store(byte[] bytes, long time, long seq) {
+        if (seq > next) {
+            used = 0;
+            first = next = seq;
+        }
+        long oldest = maxAgeMillis > 0 ? time - maxAgeMillis : Long.MIN_VALUE;
+        while (first < next && (next - first == seqs.length || used + bytes.length > data.length
+                || times[index(first)] < oldest)) {
+            used -= lengths[index(first)];
+            first++;
+        }
+        int i = index(next);
+        int tail = data.length - head;
+        if (bytes.length <= tail) {
+            System.arraycopy(bytes, 0, data, head, bytes.length);
+        } else {
+            System.arraycopy(bytes, 0, data, head, tail);
+            System.arraycopy(bytes, tail, data, 0, bytes.length - tail);
+        }
+        seqs[i] = next;
+        times[i] = time;
+        offsets[i] = head;
+        lengths[i] = bytes.length;
+        head = (head + bytes.length) % data.length;
+        used += bytes.length;
+        return next++;
+    }
+
+    /**
+     * Reads a message.
+     *
+     * @param seq sequence number of the message
+     * @return the message, or null if it isn't in the store
+     */
+    public String get(long seq) {
+        byte[] bytes = read(seq);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a message from the ring, or from the archive, if it isn't in
+     * the ring any more. Archived messages are returned whatever their age.
+     *
+     * @param seq sequence number of the message
+     * @return the message, or null if it isn't in the store nor in the archive
+     */
+    public String find(long seq) {
+        String message = get(seq);
+        if (message != null || archive == null)
+            return message;
+        String[] found = new String[1];
+        archive.read(seq, (s, time, bytes) -> {
+            if (s == seq)
+                found[0] = StandardCharsets.UTF_8.decode(bytes).toString();
+            return false;
+        });
+        return found[0];
+    }
+
+    /**
+     * Reads the bytes of a message, that isn't older than the maximum age.
+     *
+     * @param seq sequence number of the message
+     * @return the message in UTF-8, or null if it isn't in the store
+     */
+    private byte[] read(long seq) {
+        return read(seq, null);
+    }
+
+    /**
+     * Reads the bytes and the timestamp of a message, that isn't older than
+     * the maximum age.
+     *
+     * @param seq sequence number of the message
+     * @param time where the timestamp is put, may be null
+     * @return the message in UTF-8, or null if it isn't in the store
+     */
+    private byte[] read(long seq, long[] time) {
+        long stamp = lock.tryOptimisticRead();
+        byte[] bytes = copy(seq);
+        if (time != null)
+            time[0] = times[index(seq)];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                bytes = copy(seq);
+                if (time != null)
+                    time[0] = times[index(seq)];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Copies the bytes of a message out of the ring. Without the lock the
+     * numbers can be torn, so they are checked before they are used, and the
+     * result is only valid if no write happened meanwhile.
+     *
+     * @param seq sequence number of the message
+     * @return the message in UTF-8, or null if it isn't in the store
+     */
+    private byte[] copy(long seq) {
+        if (seq < first || seq >= next)
+            return null;
+        int i = index(seq);
+        int offset = offsets[i];
+        int length = lengths[i];
+        if (seqs[i] != seq || offset < 0 || offset >= data.length || length < 0 || length > data.length)
+            return null;
+        if (maxAgeMillis > 0 && times[i] < System.currentTimeMillis() - maxAgeMillis)
+            return null;
+        byte[] bytes = new byte[length];
+        int tail = data.length - offset;
+        if (length <= tail) {
+            System.arraycopy(data, offset, bytes, 0, length);
+        } else {
+            System.arraycopy(data, offset, bytes, 0, tail);
+            System.arraycopy(data, 0, bytes, tail, length - tail);
+        }
+        return bytes;
+    }
+
+    /**
+     * Receives the messages read from the store.
+     */
+    public interface Visitor {
+        /**
+         * @param seq sequence number of the message
+         * @param message the message
+         */
+        void visit(long seq, String message);
+    }
+
+    /**
+     * Returns the latest messages, oldest first. Messages appended while
+     * reading are not included. If the ring has fewer messages, the older
+     * ones are read from the archive; only the returned ones are decoded.
+     *
+     * @param count maximum number of messages
+     * @return the messages
+     */
+    public List<String> tail(int count) {
+        List<String> messages = new ArrayList<>(Math.max(0, Math.min(count, size())));
+        after(Long.MIN_VALUE, count, (seq, message) -> messages.add(message));
+        return messages;
+    }
+
+    /**
+     * Reads the messages after a sequence number, oldest first, at most
+     * the latest count of them. Older messages than the ones in the ring
+     * are read from the archive, like in {@link #tail(int)}.
+     *
+     * @param seq sequence number of the last message, that should not be read
+     * @param count maximum number of messages
+     * @param visitor gets the messages
+     * @return sequence number of the latest message, when the reading started
+     */
+    public long after(long seq, int count, Visitor visitor) {
+        long last = getLastSeq();
+        if (seq >= last)
+            return last;
+        long first = getFirstSeq();
+        long from = Math.max(seq + 1, last - count + 1);
+        if (archive != null && from < first) {
+            long oldest = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : 0;
+            archive.read(Math.max(from, archive.seqAt(oldest)), (s, time, message) -> {
+                if (s >= first)
+                    return false;
+                visitor.visit(s, StandardCharsets.UTF_8.decode(message).toString());
+                return true;
+            });
+        }
+        for (long s = Math.max(first, from); s <= last; s++) {
+            String message = get(s);
+            if (message != null)
+                visitor.visit(s, message);
+        }
+        return last;
+    }
+
+    /**
+     * @return sequence number of the oldest message in the store
+     */
+    public long getFirstSeq() {
+        long stamp = lock.readLock();
+        try {
+            return first;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return sequence number of the latest message, first - 1 if the store is empty
+     */
+    public long getLastSeq() {
+        long stamp = lock.readLock();
+        try {
+            return next - 1;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return number of messages in the store, including the ones older
+     * than the maximum age, that are not dropped yet
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return (int) (next - first);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return bytes of the messages in the store
+     */
+    public int getBytes() {
+        long stamp = lock.readLock();
+        try {
+            return used;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Drops every message, the archived ones too. Sequence numbers go on
+     * from where they were.
+     */
+    public void clear() {
+        long lsn = -1;
+        long stamp = lock.writeLock();
+        try {
+            drop(next - 1);
+            if (archive != null)
+                archive.clearThrough(next - 1);
+            if (wal != null)
+                lsn = wal.logHistoryCleared(next - 1);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (wal != null)
+            wal.sync(lsn);
+    }
+
+    /**
+     * Drops the messages up to a sequence number, newer ones are kept.
+     *
+     * @param seq sequence number of the last message to drop
+     */
+    public void clearThrough(long seq) {
+        long stamp = lock.writeLock();
+        try {
+            drop(seq);
+            if (archive != null)
+                archive.clearThrough(seq);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Forces the archived messages to the disk.
+     */
+    public void force() {
+        if (archive != null)
+            archive.force();
+    }
+
+    /**
+     * Drops the messages up to a sequence number. Must hold the write lock.
+     *
+     * @param seq sequence number of the last message to drop
+     */
+    private void drop(long seq) {
+        while (first < next && first <= seq) {
+            used -= lengths[index(first)];
+            first++;
+        }
+    }
+
+    /**
+     * @param seq sequence number of a message
+     * @return index of the message in the arrays
+     */
+    private int index(long seq) {
+        return (int) (seq % seqs.length);
+    }
+
+    /**
+     * Saves the messages. Every message takes its sequence number,
+     * its timestamp, its length and its bytes.
+     *
+     * @param location where the file should be saved
+     */
+    public void save(String location) {
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(location)))) {
+            dos.writeInt(MAGIC);
+            dos.writeByte(VERSION);
+            writeTo(dos);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the messages to a stream, in the format of {@link #save(String)}
+     * without the file header. Every message is read like {@link #get(long)}
+     * does, so appends go on meanwhile; the ones after the start are left out.
+     *
+     * @param dos stream to write to
+     * @throws IOException if the stream can't be written
+     */
+    public void writeTo(DataOutputStream dos) throws IOException {
+        long last = getLastSeq();
+        long from = getFirstSeq();
+        dos.writeLong(last + 1);
+        long[] time = new long[1];
+        for (long seq = from; seq <= last; seq++) {
+            byte[] bytes = read(seq, time);
+            if (bytes == null)
+                continue;
+            dos.writeBoolean(true);
+            dos.writeLong(seq);
+            dos.writeLong(time[0]);
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        }
+        dos.writeBoolean(false);
+    }
+
+    /**
+     * Loads the messages saved by {@link #save(String)} into this store.
+     * Messages older than the maximum age, or more than the store can keep,
+     * are dropped.
+     *
+     * @param location where the file is located
+     * @throws IOException if the file is missing or corrupt
+     */
+    public void load(String location) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(location)))) {
+            if (dis.readInt() != MAGIC || dis.readUnsignedByte() != VERSION)
+                throw new IOException("Not a history file: " + location);
+            readFrom(dis);
+        }
+    }
+
+    /**
+     * Adds the messages written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @param dis stream to read from
+     * @throws IOException if the stream can't be read or is corrupt
+     */
+    public void readFrom(DataInputStream dis) throws IOException {
+        long nextSeq = dis.readLong();
+        while (dis.readBoolean()) {
+            long seq = dis.readLong();
+            long time = dis.readLong();
+            int length = dis.readInt();
+            if (length < 0 || seq < 1 || seq >= nextSeq)
+                throw new IOException("Corrupt history");
+            byte[] bytes = new byte[length];
+            dis.readFully(bytes);
+            append(bytes, time, seq);
+            if (archive != null)
+                archive.append(seq, time, bytes);
+        }
+        long stamp = lock.writeLock();
+        try {
+            if (nextSeq > next) {
+                used = 0;
+                first = next = nextSeq;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.latsa.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests HistoryStore.
+ */
+class HistoryStoreTest {
+
+    /**
+     * Only the messages after the given one are read, at most the latest count.
+     */
+    @Test
+    void testAfter() {
+        HistoryStore store = new HistoryStore(10, 1024, 0);
+        for (int i = 1; i <= 5; i++)
+            store.append("m" + i);
+        StringBuilder read = new StringBuilder();
+        assertEquals(5, store.after(2, 10, (seq, message) -> read.append(seq).append(message).append(' ')));
+        assertEquals("3m3 4m4 5m5 ", read.toString());
+        read.setLength(0);
+        store.after(0, 2, (seq, message) -> read.append(seq).append(message).append(' '));
+        assertEquals("4m4 5m5 ", read.toString());
+        read.setLength(0);
+        store.after(5, 10, (seq, message) -> read.append(seq));
+        assertEquals("", read.toString());
+        assertEquals(5, store.after(Long.MAX_VALUE, 10, (seq, message) -> read.append(seq)));
+        assertEquals("", read.toString());
+    }
+
+    /**
+     * The oldest messages are dropped by count, by bytes and by age.
+     */
+    @Test
+    void testRetention() {
+        HistoryStore byCount = new HistoryStore(3, 1024, 0);
+        for (int i = 1; i <= 5; i++)
+            assertEquals(i, byCount.append("m" + i));
+        assertEquals(List.of("m3", "m4", "m5"), byCount.tail(10));
+        assertEquals(List.of("m5"), byCount.tail(1));
+        assertNull(byCount.get(2));
+
+        HistoryStore byBytes = new HistoryStore(100, 10, 0);
+        byBytes.append("aaaa");
+        byBytes.append("bbbb");
+        byBytes.append("cccc");
+        assertEquals(List.of("bbbb", "cccc"), byBytes.tail(10));
+        assertEquals(8, byBytes.getBytes());
+        assertEquals(-1, byBytes.append("too long message"));
+
+        HistoryStore byAge = new HistoryStore(100, 1024, 1000);
+        long now = System.currentTimeMillis();
+        byAge.append(bytes("old"), now - 5000, -1);
+        byAge.append(bytes("new"), now, -1);
+        assertEquals(List.of("new"), byAge.tail(10));
+    }
+
+    /**
+     * Messages, that wrap around the end of the byte ring, read back whole.
+     */
+    @Test
+    void testWrap() {
+        HistoryStore store = new HistoryStore(100, 16, 0);
+        store.append("0123456789");
+        store.append("ábcdé");
+        assertEquals(List.of("ábcdé"), store.tail(10));
+    }
+
+    /**
+     * Saved messages load back with their sequence numbers.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testSaveLoad() throws IOException {
+        File file = File.createTempFile("history", ".bin");
+        try {
+            HistoryStore store = new HistoryStore(2, 1024, 0);
+            store.append("a");
+            store.append("b");
+            store.append("c");
+            store.save(file.getPath());
+
+            HistoryStore loaded = new HistoryStore(10, 1024, 0);
+            loaded.load(file.getPath());
+            assertEquals(List.of("b", "c"), loaded.tail(10));
+            assertEquals(2, loaded.getFirstSeq());
+            assertEquals(4, loaded.append("d"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A reader never sees a torn message while the writer goes around the ring.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    void testConcurrentRead() throws InterruptedException {
+        HistoryStore store = new HistoryStore(64, 1024, 0);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> bad = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                for (String s : store.tail(64)) {
+                    if (!s.matches("(x+)-\\d+") || s.indexOf('-') != Integer.parseInt(s.substring(s.indexOf('-') + 1)) % 50 + 1)
+                        bad.set(s);
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 100000; i++)
+            store.append("x".repeat(i % 50 + 1) + "-" + i);
+        done.set(true);
+        reader.join();
+        assertNull(bad.get());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,55 @@
+package com.latsa.chatserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * User registry kept in a concurrent hash map. Lookups don't lock,
+ * registration is an atomic putIfAbsent.
+ */
+public class InMemoryUserRegistry implements UserRegistry {
+
+    private ConcurrentHashMap<String, UserData> users;
+
+    /**
+     * Constructs a registry of the given users.
+     *
+     * @param initial previously registered users
+     */
+    public InMemoryUserRegistry(Collection<UserData> initial) {
+        users = new ConcurrentHashMap<>(Math.max(16, initial.size() * 4 / 3 + 1));
+        for (UserData ud : initial)
+            users.putIfAbsent(ud.getUsername(), ud);
+    }
+
+    @Override
+    public UserData get(String username) {
+        return users.get(username);
+    }
+
+    @Override
+    public boolean add(UserData user) {
+        return users.putIfAbsent(user.getUsername(), user) == null;
+    }
+
+    @Override
+    public UserData remove(String username) {
+        return users.remove(username);
+    }
+
+    @Override
+    public void update(UserData user) {
+        // the flags are in the user object already
+    }
+
+    @Override
+    public Collection<UserData> getAll() {
+        return Collections.unmodifiableCollection(users.values());
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+}
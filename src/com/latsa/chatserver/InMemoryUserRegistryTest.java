@@ -0,0 +1,52 @@
+package com.latsa.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests InMemoryUserRegistry.
+ */
+class InMemoryUserRegistryTest {
+
+    /**
+     * Of many concurrent registrations of the same name only one wins.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    void testConcurrentRegister() throws InterruptedException {
+        UserRegistry users = new InMemoryUserRegistry(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger added = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String password = "pw" + i;
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (users.add(new UserData("Test", password)))
+                    added.incrementAndGet();
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(1, added.get());
+        assertEquals(1, users.size());
+        assertNotNull(users.get("Test"));
+        assertNotNull(users.remove("Test"));
+        assertNull(users.get("Test"));
+    }
+}
@@ -0,0 +1,157 @@
+package com.latsa.chatserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Users and history lines a client gets on login, packed in a few frames
+ * instead of one frame per user and per line. Only clients, that asked
+ * for it with hello#snapshot, get it.
+ * <p>
+ * The snapshot starts with a header frame:
+ * snapshot#[chunks]#[plain|deflate]#[users]#[lines]
+ * followed by the given number of snapshot_chunk#[base64] frames.
+ * The decoded chunks joined together (and inflated, if deflate) form
+ * a stream of records, each written with DataOutputStream:
+ * a byte type, then for USER the name and status with writeUTF,
+ * for LINE the history line with writeUTF.
+ * <p>
+ * The header needs the number of chunks, so the records are packed when
+ * the frames are asked for, but a chunk frame is only encoded, when it
+ * is taken, so the frames can be sent as the client reads them.
+ */
+public class LoginSnapshot {
+
+    /**
+     * Type of a user record.
+     */
+    public static final int USER = 0;
+
+    /**
+     * Type of a history line record.
+     */
+    public static final int LINE = 1;
+
+    private ByteArrayOutputStream bos;
+    private DataOutputStream dos;
+    private int users;
+    private int lines;
+
+    /**
+     * Constructs an empty snapshot.
+     */
+    public LoginSnapshot() {
+        bos = new ByteArrayOutputStream();
+        dos = new DataOutputStream(bos);
+    }
+
+    /**
+     * Adds a user and her/his online status to the snapshot.
+     *
+     * @param name name of the user
+     * @param status online status of the user
+     * @throws IOException if the name or the status is too long
+     */
+    public void addUser(String name, String status) throws IOException {
+        dos.writeByte(USER);
+        dos.writeUTF(name);
+        dos.writeUTF(status);
+        users++;
+    }
+
+    /**
+     * Adds a history line to the snapshot.
+     *
+     * @param line previously sent message
+     * @throws IOException if the line is too long
+     */
+    public void addLine(String line) throws IOException {
+        dos.writeByte(LINE);
+        dos.writeUTF(line);
+        lines++;
+    }
+
+    /**
+     * Packs the snapshot in frames.
+     *
+     * @param deflate compress the records or not
+     * @param chunkBytes bytes of records carried by one chunk frame
+     * @return the header frame followed by the chunk frames
+     * @throws IOException if the records can't be compressed
+     */
+    public List<String> toFrames(boolean deflate, int chunkBytes) throws IOException {
+        List<String> frames = new ArrayList<>();
+        frames(deflate, chunkBytes).forEachRemaining(frames::add);
+        return frames;
+    }
+
+    /**
+     * Packs the snapshot, and gives its frames one by one. A chunk frame
+     * is encoded, when it is taken.
+     *
+     * @param deflate compress the records or not
+     * @param chunkBytes bytes of records carried by one chunk frame
+     * @return the header frame followed by the chunk frames
+     * @throws IOException if the records can't be compressed
+     */
+    public Iterator<String> frames(boolean deflate, int chunkBytes) throws IOException {
+        byte[] records = bos.toByteArray();
+        if (deflate) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(records.length / 4 + 16);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+                out.write(records);
+            } finally {
+                deflater.end();
+            }
+            records = compressed.toByteArray();
+        }
+
+        byte[] packed = records;
+        int chunks = (packed.length + chunkBytes - 1) / chunkBytes;
+        String header = String.format("snapshot#%d#%s#%d#%d", chunks, deflate ? "deflate" : "plain", users, lines);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return new Iterator<>() {
+            private int taken;
+
+            @Override
+            public boolean hasNext() {
+                return taken <= chunks;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                if (taken++ == 0)
+                    return header;
+                int from = (taken - 2) * chunkBytes;
+                int to = Math.min(from + chunkBytes, packed.length);
+                return "snapshot_chunk#" + encoder.encodeToString(Arrays.copyOfRange(packed, from, to));
+            }
+        };
+    }
+
+    /**
+     * @return number of users in the snapshot
+     */
+    public int getUsers() {
+        return users;
+    }
+
+    /**
+     * @return number of history lines in the snapshot
+     */
+    public int getLines() {
+        return lines;
+    }
+}
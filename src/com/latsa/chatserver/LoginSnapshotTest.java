@@ -0,0 +1,93 @@
+package com.latsa.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests LoginSnapshot.
+ */
+class LoginSnapshotTest {
+
+    /**
+     * Decodes the frames of a snapshot the way a client would.
+     *
+     * @param frames frames of the snapshot
+     * @return stream of the records
+     */
+    private DataInputStream decode(List<String> frames) {
+        String[] header = frames.get(0).split("#");
+        assertEquals("snapshot", header[0]);
+        assertEquals(frames.size() - 1, Integer.parseInt(header[1]));
+
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (String frame : frames.subList(1, frames.size())) {
+            assertTrue(frame.startsWith("snapshot_chunk#"));
+            byte[] chunk = Base64.getDecoder().decode(frame.substring(frame.indexOf('#') + 1));
+            joined.write(chunk, 0, chunk.length);
+        }
+        InputStream in = new ByteArrayInputStream(joined.toByteArray());
+        if (header[2].equals("deflate"))
+            in = new InflaterInputStream(in);
+        return new DataInputStream(in);
+    }
+
+    /**
+     * Records must come back in the same order, with or without compression.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testRoundTrip() throws IOException {
+        for (boolean deflate : new boolean[]{false, true}) {
+            LoginSnapshot snapshot = new LoginSnapshot();
+            snapshot.addUser("Test", "Online");
+            for (int i = 0; i < 1000; i++)
+                snapshot.addLine("Test# message number " + i);
+
+            List<String> frames = snapshot.toFrames(deflate, 1024);
+            assertTrue(frames.size() > 2);
+
+            DataInputStream records = decode(frames);
+            assertEquals(LoginSnapshot.USER, records.readByte());
+            assertEquals("Test", records.readUTF());
+            assertEquals("Online", records.readUTF());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(LoginSnapshot.LINE, records.readByte());
+                assertEquals("Test# message number " + i, records.readUTF());
+            }
+            assertEquals(-1, records.read());
+        }
+    }
+
+    /**
+     * The frames given one by one are the same as the packed ones, and
+     * there are no more after the last chunk.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testFramesOneByOne() throws IOException {
+        LoginSnapshot snapshot = new LoginSnapshot();
+        for (int i = 0; i < 100; i++)
+            snapshot.addUser("user" + i, "Offline");
+
+        List<String> packed = snapshot.toFrames(false, 100);
+        Iterator<String> frames = snapshot.frames(false, 100);
+        for (String frame : packed)
+            assertEquals(frame, frames.next());
+        assertFalse(frames.hasNext());
+        assertThrows(NoSuchElementException.class, frames::next);
+    }
+}
@@ -0,0 +1,511 @@
+package com.latsa.chatserver;
+
+import com.latsa.chatserver.utils.HashedWheelTimer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Online status of the registered users, with a version number, that grows
+ * by one with every change. The last changes are kept in a ring, so a
+ * client, that tells the last version it has seen, can get only what
+ * changed since then. Clients further behind get a full snapshot.
+ * <p>
+ * Every user has a slot, the status is one byte per slot. A user is online
+ * while at least one of her/his sessions is logged in, so a second session
+ * of the same user doesn't change the status.
+ * <p>
+ * Versions start from the start time of the service in microseconds, so the
+ * versions of an earlier run of the server are older than the first version
+ * of this one, and clients reconnecting after a restart get a full snapshot.
+ * <p>
+ * Once started, changes are not published one by one, but collected for a
+ * short window, and published together. A user, who changed more than
+ * once in the window, is published only with the final status, and not at
+ * all, if she/he ended up where she/he started.
+ */
+public class PresenceService {
+
+    /**
+     * Status of a registered user, who isn't logged in.
+     */
+    public static final byte OFFLINE = 0;
+
+    /**
+     * Status of a logged in user.
+     */
+    public static final byte ONLINE = 1;
+
+    /**
+     * Status of a deleted user.
+     */
+    public static final byte DELETED = 2;
+
+    private static final String[] STATUS = {"Offline", "Online", "Deleted"};
+
+    private HashMap<String, Integer> slots;
+    private String[] names;
+    private byte[] states;
+    private int[] sessions;
+    private int used;
+
+    private String[] logNames;
+    private byte[] logStates;
+    private final long baseVersion;
+    private long version;
+
+    private ReentrantReadWriteLock lock;
+
+    private HashedWheelTimer timer;
+    private long windowNanos;
+    private Consumer<Changes> publisher;
+    private LinkedHashMap<String, byte[]> pending;
+    private boolean flushScheduled;
+    private long events;
+    private long coalesced;
+    private long published;
+
+    /**
+     * Constructs the service with every user offline.
+     *
+     * @param users registered users
+     * @param logSize number of changes remembered for delta sync
+     */
+    public PresenceService(Collection<UserData> users, int logSize) {
+        int capacity = Math.max(16, users.size() + users.size() / 4);
+        slots = new HashMap<>(capacity * 2);
+        names = new String[capacity];
+        states = new byte[capacity];
+        sessions = new int[capacity];
+        for (UserData ud : users)
+            slot(ud.getUsername());
+        logNames = new String[logSize];
+        logStates = new byte[logSize];
+        baseVersion = System.currentTimeMillis() * 1000;
+        version = baseVersion;
+        lock = new ReentrantReadWriteLock();
+        pending = new LinkedHashMap<>();
+    }
+
+    /**
+     * Starts publishing the changes.
+     *
+     * @param timer timer of the windows
+     * @param windowMillis how long changes are collected, 0 publishes every change at once
+     * @param publisher gets the changes of a window, on the timer thread
+     *                  or on the thread, that made the change
+     */
+    public void start(HashedWheelTimer timer, int windowMillis, Consumer<Changes> publisher) {
+        lock.writeLock().lock();
+        try {
+            this.timer = timer;
+            this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+            this.publisher = publisher;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the text form of a status, as it is sent to clients.
+     *
+     * @param state OFFLINE, ONLINE or DELETED
+     * @return Offline, Online or Deleted
+     */
+    public static String statusName(byte state) {
+        return STATUS[state];
+    }
+
+    /**
+     * Adds a newly registered user, who is offline.
+     *
+     * @param name name of the user
+     * @return version of the change
+     */
+    public long add(String name) {
+        long v;
+        lock.writeLock().lock();
+        try {
+            boolean known = slots.containsKey(name);
+            int slot = slot(name);
+            if (!known)
+                states[slot] = DELETED;
+            v = change(slot, OFFLINE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        changed();
+        return v;
+    }
+
+    /**
+     * Marks a deleted user.
+     *
+     * @param name name of the user
+     * @return version of the change, or -1 if there is no such user
+     */
+    public long remove(String name) {
+        long v;
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.remove(name);
+            if (slot == null)
+                return -1;
+            v = change(slot, DELETED);
+            names[slot] = null;
+            sessions[slot] = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        changed();
+        return v;
+    }
+
+    /**
+     * Counts a logged in session of the user.
+     *
+     * @param name name of the user
+     * @return version of the change, or -1 if the user was online already
+     */
+    public long online(String name) {
+        long v;
+        lock.writeLock().lock();
+        try {
+            int slot = slot(name);
+            if (sessions[slot]++ > 0)
+                return -1;
+            v = change(slot, ONLINE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        changed();
+        return v;
+    }
+
+    /**
+     * Counts a session of the user, that left.
+     *
+     * @param name name of the user
+     * @return version of the change, or -1 if the user has other sessions
+     * or isn't registered any more
+     */
+    public long offline(String name) {
+        long v;
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.get(name);
+            if (slot == null || sessions[slot] == 0 || --sessions[slot] > 0)
+                return -1;
+            v = change(slot, OFFLINE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        changed();
+        return v;
+    }
+
+    /**
+     * Looks up the status of a user.
+     *
+     * @param name name of the user
+     * @return Offline, Online, or null if there is no such user
+     */
+    public String getStatus(String name) {
+        lock.readLock().lock();
+        try {
+            Integer slot = slots.get(name);
+            return slot == null ? null : STATUS[states[slot]];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return version of the last change
+     */
+    public long getVersion() {
+        lock.readLock().lock();
+        try {
+            return version;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Collects the changes after a version. A user, who changed more
+     * than once, is in it only with the latest status.
+     *
+     * @param since last version the client has seen
+     * @return the changes, or null if they are not remembered any more
+     */
+    public Changes since(long since) {
+        lock.readLock().lock();
+        try {
+            if (since < baseVersion || since > version || version - since > logNames.length)
+                return null;
+            LinkedHashMap<String, Byte> latest = new LinkedHashMap<>();
+            for (long v = since + 1; v <= version; v++) {
+                int i = (int) (v % logNames.length);
+                latest.remove(logNames[i]);
+                latest.put(logNames[i], logStates[i]);
+            }
+            Changes changes = new Changes(version, latest.size());
+            for (Map.Entry<String, Byte> e : latest.entrySet())
+                changes.add(e.getKey(), e.getValue());
+            return changes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return status of every registered user at the current version
+     */
+    public Changes snapshot() {
+        lock.readLock().lock();
+        try {
+            Changes changes = new Changes(version, slots.size());
+            for (int slot = 0; slot < used; slot++)
+                if (names[slot] != null)
+                    changes.add(names[slot], states[slot]);
+            return changes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the slot of a user, or gives her/him a new one.
+     * Must hold the write lock, or run in the constructor.
+     *
+     * @param name name of the user
+     * @return slot of the user
+     */
+    private int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null)
+            return slot;
+        if (used == names.length) {
+            int capacity = names.length * 2;
+            names = Arrays.copyOf(names, capacity);
+            states = Arrays.copyOf(states, capacity);
+            sessions = Arrays.copyOf(sessions, capacity);
+        }
+        names[used] = name;
+        states[used] = OFFLINE;
+        slots.put(name, used);
+        return used++;
+    }
+
+    /**
+     * Sets the status in a slot and remembers the change. If publishing
+     * is started, the change waits for the end of the window.
+     * Must hold the write lock.
+     *
+     * @param slot slot of the user
+     * @param state new status
+     * @return version of the change
+     */
+    private long change(int slot, byte state) {
+        if (publisher != null) {
+            events++;
+            byte[] change = pending.get(names[slot]);
+            if (change == null)
+                pending.put(names[slot], new byte[]{states[slot], state});
+            else {
+                change[1] = state;
+                coalesced++;
+            }
+        }
+        states[slot] = state;
+        version++;
+        int i = (int) (version % logNames.length);
+        logNames[i] = names[slot];
+        logStates[i] = state;
+        return version;
+    }
+
+    /**
+     * Publishes the pending changes at once, or at the end of the window,
+     * if the window isn't started yet.
+     */
+    private void changed() {
+        boolean schedule;
+        lock.writeLock().lock();
+        try {
+            if (publisher == null || pending.isEmpty() || flushScheduled)
+                return;
+            flushScheduled = windowNanos > 0;
+            schedule = flushScheduled;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (schedule)
+            timer.newTimeout(this::flush, windowNanos, TimeUnit.NANOSECONDS);
+        else
+            flush();
+    }
+
+    /**
+     * Publishes the changes of the window. Users, who are back in the
+     * status they had at the start of the window, are left out.
+     */
+    private void flush() {
+        Changes changes;
+        Consumer<Changes> to;
+        lock.writeLock().lock();
+        try {
+            flushScheduled = false;
+            changes = new Changes(version, pending.size());
+            for (Map.Entry<String, byte[]> e : pending.entrySet()) {
+                byte[] change = e.getValue();
+                if (change[0] == change[1])
+                    coalesced++;
+                else
+                    changes.add(e.getKey(), change[1]);
+            }
+            pending.clear();
+            if (changes.size() > 0)
+                published++;
+            to = publisher;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (changes.size() > 0)
+            to.accept(changes);
+    }
+
+    /**
+     * @return version, number of changes, how many of them were coalesced
+     * and how many windows were published
+     */
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return String.format("presence version: %d, changes: %d, coalesced: %d, digests: %d",
+                    version, events, coalesced, published);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Users and their status at a version: either the changes since an
+     * earlier version, or everyone.
+     */
+    public static class Changes {
+        private final long version;
+        private String[] names;
+        private byte[] states;
+        private int size;
+
+        /**
+         * Constructs an empty list.
+         *
+         * @param version version, the list is up to date with
+         * @param capacity number of users, that will be added
+         */
+        Changes(long version, int capacity) {
+            this.version = version;
+            names = new String[capacity];
+            states = new byte[capacity];
+        }
+
+        /**
+         * Adds a user to the list.
+         *
+         * @param name name of the user
+         * @param state status of the user
+         */
+        void add(String name, byte state) {
+            names[size] = name;
+            states[size++] = state;
+        }
+
+        /**
+         * @return version, the list is up to date with
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return number of users in the list
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param i index in the list
+         * @return name of the user
+         */
+        public String getName(int i) {
+            return names[i];
+        }
+
+        /**
+         * @param i index in the list
+         * @return status of the user
+         */
+        public byte getState(int i) {
+            return states[i];
+        }
+
+        /**
+         * @param i index in the list
+         * @return text form of the status of the user
+         */
+        public String getStatus(int i) {
+            return STATUS[states[i]];
+        }
+
+        /**
+         * Encodes the list as a delta frame:
+         * presence#delta#[version]#[name]#[status]#[name]#[status]...
+         *
+         * @return the frame
+         */
+        public String toDeltaFrame() {
+            StringBuilder sb = new StringBuilder("presence#delta#").append(version);
+            for (int i = 0; i < size; i++)
+                sb.append('#').append(names[i]).append('#').append(STATUS[states[i]]);
+            return sb.toString();
+        }
+
+        /**
+         * Encodes the list as delta frames, that are not longer than the
+         * given number of characters, unless a single user is longer.
+         * Every frame has the same version.
+         *
+         * @param maxChars preferred maximum length of a frame
+         * @return the frames
+         */
+        public List<String> toDeltaFrames(int maxChars) {
+            List<String> frames = new ArrayList<>();
+            String head = "presence#delta#" + version;
+            StringBuilder sb = new StringBuilder(head);
+            for (int i = 0; i < size; i++) {
+                int length = names[i].length() + STATUS[states[i]].length() + 2;
+                if (sb.length() > head.length() && sb.length() + length > maxChars) {
+                    frames.add(sb.toString());
+                    sb.setLength(0);
+                    sb.append(head);
+                }
+                sb.append('#').append(names[i]).append('#').append(STATUS[states[i]]);
+            }
+            frames.add(sb.toString());
+            return frames;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.latsa.chatserver;
+
+import com.latsa.chatserver.utils.HashedWheelTimer;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests PresenceService.
+ */
+class PresenceServiceTest {
+
+    /**
+     * Only the latest status of each changed user is in the delta.
+     */
+    @Test
+    void testSince() {
+        PresenceService presence = new PresenceService(List.of(new UserData("a", "x"), new UserData("b", "x")), 16);
+        long start = presence.getVersion();
+        presence.online("a");
+        presence.online("b");
+        presence.offline("a");
+
+        PresenceService.Changes changes = presence.since(start + 1);
+        assertEquals(start + 3, changes.getVersion());
+        assertEquals(2, changes.size());
+        assertEquals("presence#delta#" + (start + 3) + "#b#Online#a#Offline", changes.toDeltaFrame());
+        assertEquals(0, presence.since(start + 3).size());
+    }
+
+    /**
+     * A second session doesn't change the status, and the user goes
+     * offline only when the last session leaves.
+     */
+    @Test
+    void testSessionsCounted() {
+        PresenceService presence = new PresenceService(List.of(new UserData("a", "x")), 16);
+        assertTrue(presence.online("a") > 0);
+        assertEquals(-1, presence.online("a"));
+        assertEquals(-1, presence.offline("a"));
+        assertEquals("Online", presence.getStatus("a"));
+        assertTrue(presence.offline("a") > 0);
+        assertEquals("Offline", presence.getStatus("a"));
+    }
+
+    /**
+     * Versions, that are too old, unknown or from before the start,
+     * have no delta.
+     */
+    @Test
+    void testTooFarBehind() {
+        PresenceService presence = new PresenceService(List.of(), 4);
+        long start = presence.getVersion();
+        for (int i = 0; i < 6; i++)
+            presence.add("user" + i);
+        assertNull(presence.since(start));
+        assertNull(presence.since(start - 1));
+        assertNull(presence.since(start + 7));
+        assertEquals(4, presence.since(start + 2).size());
+
+        presence.remove("user0");
+        PresenceService.Changes all = presence.snapshot();
+        assertEquals(5, all.size());
+        assertEquals("Deleted", presence.since(start + 6).getStatus(0));
+    }
+
+    /**
+     * Changes of a window are published together, with only the final
+     * status, and users back in their first status are left out.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    void testCoalesce() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+        try {
+            PresenceService presence = new PresenceService(List.of(new UserData("a", "x"), new UserData("b", "x")), 16);
+            BlockingQueue<PresenceService.Changes> published = new ArrayBlockingQueue<>(4);
+            presence.start(timer, 100, published::add);
+            presence.online("a");
+            presence.online("b");
+            presence.offline("b");
+            presence.offline("a");
+            presence.online("a");
+            presence.add("c");
+
+            PresenceService.Changes changes = published.poll(5, TimeUnit.SECONDS);
+            assertNotNull(changes);
+            assertEquals(presence.getVersion(), changes.getVersion());
+            assertEquals("presence#delta#" + changes.getVersion() + "#a#Online#c#Offline", changes.toDeltaFrame());
+            assertNull(published.poll(300, TimeUnit.MILLISECONDS));
+            assertTrue(presence.toString().endsWith("changes: 6, coalesced: 4, digests: 1"));
+        } finally {
+            timer.stop();
+        }
+    }
+}
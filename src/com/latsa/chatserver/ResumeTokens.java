@@ -0,0 +1,140 @@
+package com.latsa.chatserver;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issues and checks the tokens, that let a client resume its session after
+ * a reconnect without sending the password again. A token is the username,
+ * the expiry and the epoch of the user, signed with HMAC-SHA256, so
+ * checking it takes no lookup and no bcrypt.
+ * <p>
+ * Kicking or banning a user increments her/his epoch, which revokes every
+ * token issued before. The key is random and lives only in memory, so the
+ * tokens of a previous run of the server are not accepted.
+ */
+public class ResumeTokens {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final long lifetimeMillis;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final ConcurrentHashMap<String, Long> epochs;
+    private final AtomicLong issued;
+    private final AtomicLong accepted;
+    private final AtomicLong refused;
+
+    /**
+     * Constructs the tokens with a new random key.
+     *
+     * @param lifetimeMillis time a token is valid after it was issued
+     */
+    public ResumeTokens(long lifetimeMillis) {
+        this.lifetimeMillis = lifetimeMillis;
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        key = new SecretKeySpec(secret, ALGORITHM);
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        epochs = new ConcurrentHashMap<>();
+        issued = new AtomicLong();
+        accepted = new AtomicLong();
+        refused = new AtomicLong();
+    }
+
+    /**
+     * Issues a new token for a user.
+     *
+     * @param username name of the user
+     * @return the token, it contains no # character
+     */
+    public String issue(String username) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String body = encoder.encodeToString(username.getBytes(StandardCharsets.UTF_8))
+                + "." + Long.toString(System.currentTimeMillis() + lifetimeMillis, 36)
+                + "." + Long.toString(epochs.getOrDefault(username, 0L), 36);
+        issued.incrementAndGet();
+        return body + "." + encoder.encodeToString(sign(body));
+    }
+
+    /**
+     * Checks a token.
+     *
+     * @param token the token sent by the client
+     * @return name of the user, or null if the token is forged, expired or revoked
+     */
+    public String verify(String token) {
+        String username = check(token);
+        if (username == null)
+            refused.incrementAndGet();
+        else
+            accepted.incrementAndGet();
+        return username;
+    }
+
+    /**
+     * Checks the signature, the expiry and the epoch of a token.
+     *
+     * @param token the token sent by the client
+     * @return name of the user, or null if the token is not valid
+     */
+    private String check(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 4)
+            return null;
+        try {
+            byte[] signature = Base64.getUrlDecoder().decode(parts[3]);
+            if (!MessageDigest.isEqual(sign(token.substring(0, token.lastIndexOf('.'))), signature))
+                return null;
+            if (Long.parseLong(parts[1], 36) < System.currentTimeMillis())
+                return null;
+            String username = new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8);
+            if (Long.parseLong(parts[2], 36) != epochs.getOrDefault(username, 0L))
+                return null;
+            return username;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param body the signed part of a token
+     * @return the signature
+     */
+    private byte[] sign(String body) {
+        return macs.get().doFinal(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Revokes every token of a user issued until now.
+     *
+     * @param username name of the user
+     */
+    public void revoke(String username) {
+        epochs.merge(username, 1L, Long::sum);
+    }
+
+    /**
+     * @return number of the issued, accepted and refused tokens
+     */
+    @Override
+    public String toString() {
+        return String.format("resume tokens issued: %d, accepted: %d, refused: %d",
+                issued.get(), accepted.get(), refused.get());
+    }
+}
@@ -0,0 +1,35 @@
+package com.latsa.chatserver;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests ResumeTokens.
+ */
+class ResumeTokensTest {
+
+    /**
+     * A token is accepted until it is changed, revoked or expired.
+     */
+    @Test
+    void testVerify() {
+        ResumeTokens tokens = new ResumeTokens(60_000);
+        String token = tokens.issue("álice");
+        assertFalse(token.contains("#"));
+        assertEquals("álice", tokens.verify(token));
+        assertEquals("álice", tokens.verify(token));
+
+        String forged = tokens.issue("bob").substring(0, 4) + token.substring(4);
+        assertNull(tokens.verify(forged));
+        assertNull(tokens.verify("garbage"));
+        assertNull(tokens.verify(new ResumeTokens(60_000).issue("álice")));
+
+        tokens.revoke("álice");
+        assertNull(tokens.verify(token));
+        assertEquals("álice", tokens.verify(tokens.issue("álice")));
+
+        ResumeTokens expired = new ResumeTokens(-1);
+        assertNull(expired.verify(expired.issue("bob")));
+    }
+}
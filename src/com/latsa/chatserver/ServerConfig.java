@@ -0,0 +1,771 @@
+package com.latsa.chatserver;
+
+import com.latsa.chatserver.net.SlowConsumerPolicy;
+import com.latsa.chatserver.net.TransportMode;
+import com.latsa.chatserver.storage.FsyncPolicy;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+/**
+ * Settings of the server. Every setting has a default value, which can be
+ * overridden in the server.properties file next to the application.
+ */
+public class ServerConfig {
+
+    /**
+     * Default location of the settings file.
+     */
+    public static final String LOCATION = "server.properties";
+
+    private TransportMode transport;
+    private int eventLoops;
+    private int outboundHighWatermark;
+    private int outboundLowWatermark;
+    private SlowConsumerPolicy slowConsumerPolicy;
+    private int writeBatchBytes;
+    private int writeLatencyBudgetMicros;
+    private int snapshotHistory;
+    private int snapshotChunkBytes;
+    private int compressionLevel;
+    private int maxConnections;
+    private int maxConnectionsPerIp;
+    private int connectionRatePerIp;
+    private int connectionBurstPerIp;
+    private int messageRate;
+    private int messageBurst;
+    private int messageBytesRate;
+    private int messageBytesBurst;
+    private FloodPolicy floodPolicy;
+    private boolean floodExemptAdmins;
+    private int loginTimeoutSeconds;
+    private int idleTimeoutSeconds;
+    private int heartbeatSeconds;
+    private int presenceLogSize;
+    private int presenceWindowMillis;
+    private int historyMaxEntries;
+    private int historyMaxBytes;
+    private int historyMaxAgeSeconds;
+    private FsyncPolicy walFsync;
+    private int walFsyncIntervalMillis;
+    private int snapshotIntervalSeconds;
+    private int snapshotWalBytes;
+    private int archiveSegmentBytes;
+    private int authThreads;
+    private int authQueueLimit;
+    private int bcryptCost;
+    private int resumeTokenSeconds;
+    private int loginHistory;
+    private int inboxMaxMessages;
+
+    /**
+     * Constructs settings with the default values.
+     */
+    public ServerConfig() {
+        transport = TransportMode.THREAD;
+        eventLoops = Runtime.getRuntime().availableProcessors();
+        outboundHighWatermark = 1024 * 1024;
+        outboundLowWatermark = 256 * 1024;
+        slowConsumerPolicy = SlowConsumerPolicy.DROP_SESSION;
+        writeBatchBytes = 16 * 1024;
+        writeLatencyBudgetMicros = 200;
+        snapshotHistory = 1000;
+        snapshotChunkBytes = 32 * 1024;
+        compressionLevel = 1;
+        maxConnections = 10000;
+        maxConnectionsPerIp = 16;
+        connectionRatePerIp = 5;
+        connectionBurstPerIp = 10;
+        messageRate = 5;
+        messageBurst = 10;
+        messageBytesRate = 8 * 1024;
+        messageBytesBurst = 32 * 1024;
+        floodPolicy = FloodPolicy.THROTTLE;
+        floodExemptAdmins = true;
+        loginTimeoutSeconds = 30;
+        idleTimeoutSeconds = 3600;
+        heartbeatSeconds = 30;
+        presenceLogSize = 4096;
+        presenceWindowMillis = 250;
+        historyMaxEntries = 10000;
+        historyMaxBytes = 4 * 1024 * 1024;
+        historyMaxAgeSeconds = 0;
+        walFsync = FsyncPolicy.INTERVAL;
+        walFsyncIntervalMillis = 200;
+        snapshotIntervalSeconds = 300;
+        snapshotWalBytes = 16 * 1024 * 1024;
+        archiveSegmentBytes = 64 * 1024 * 1024;
+        authThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        authQueueLimit = 256;
+        bcryptCost = 10;
+        resumeTokenSeconds = 24 * 60 * 60;
+        loginHistory = 50;
+        inboxMaxMessages = 100;
+    }
+
+    /**
+     * Loads the settings from the given properties file. Missing settings
+     * keep their default value, a missing file means default settings.
+     * Invalid values are reported, and the default is used instead.
+     *
+     * @param location where the properties file is located
+     * @param warnings gets a message about every invalid value
+     * @return the loaded settings
+     */
+    public static ServerConfig load(String location, Consumer<String> warnings) {
+        ServerConfig config = new ServerConfig();
+        Properties props = new Properties();
+        try (FileInputStream fis = new FileInputStream(location)) {
+            props.load(fis);
+        } catch (FileNotFoundException e) {
+            return config;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return config;
+        }
+
+        config.setTransport(enumProperty(props, warnings, "transport", config.transport));
+        config.setEventLoops(intProperty(props, warnings, "event_loops", config.eventLoops));
+        config.setOutboundHighWatermark(intProperty(props, warnings, "outbound_high_watermark", config.outboundHighWatermark));
+        config.setOutboundLowWatermark(intProperty(props, warnings, "outbound_low_watermark", config.outboundLowWatermark));
+        config.setSlowConsumerPolicy(enumProperty(props, warnings, "slow_consumer_policy", config.slowConsumerPolicy));
+        config.setWriteBatchBytes(intProperty(props, warnings, "write_batch_bytes", config.writeBatchBytes));
+        config.setWriteLatencyBudgetMicros(intProperty(props, warnings, "write_latency_budget_us", config.writeLatencyBudgetMicros));
+        config.setSnapshotHistory(intProperty(props, warnings, "snapshot_history", config.snapshotHistory));
+        config.setSnapshotChunkBytes(intProperty(props, warnings, "snapshot_chunk_bytes", config.snapshotChunkBytes));
+        config.setCompressionLevel(intProperty(props, warnings, "compression_level", config.compressionLevel));
+        config.setMaxConnections(intProperty(props, warnings, "max_connections", config.maxConnections));
+        config.setMaxConnectionsPerIp(intProperty(props, warnings, "max_connections_per_ip", config.maxConnectionsPerIp));
+        config.setConnectionRatePerIp(intProperty(props, warnings, "connection_rate_per_ip", config.connectionRatePerIp));
+        config.setConnectionBurstPerIp(intProperty(props, warnings, "connection_burst_per_ip", config.connectionBurstPerIp));
+        config.setMessageRate(intProperty(props, warnings, "message_rate", config.messageRate));
+        config.setMessageBurst(intProperty(props, warnings, "message_burst", config.messageBurst));
+        config.setMessageBytesRate(intProperty(props, warnings, "message_bytes_rate", config.messageBytesRate));
+        config.setMessageBytesBurst(intProperty(props, warnings, "message_bytes_burst", config.messageBytesBurst));
+        config.setFloodPolicy(enumProperty(props, warnings, "flood_policy", config.floodPolicy));
+        config.setFloodExemptAdmins(Boolean.parseBoolean(
+                props.getProperty("flood_exempt_admins", String.valueOf(config.floodExemptAdmins)).trim()));
+        config.setLoginTimeoutSeconds(intProperty(props, warnings, "login_timeout_seconds", config.loginTimeoutSeconds));
+        config.setIdleTimeoutSeconds(intProperty(props, warnings, "idle_timeout_seconds", config.idleTimeoutSeconds));
+        config.setHeartbeatSeconds(intProperty(props, warnings, "heartbeat_seconds", config.heartbeatSeconds));
+        config.setPresenceLogSize(intProperty(props, warnings, "presence_log_size", config.presenceLogSize));
+        config.setPresenceWindowMillis(intProperty(props, warnings, "presence_window_ms", config.presenceWindowMillis));
+        config.setHistoryMaxEntries(intProperty(props, warnings, "history_max_entries", config.historyMaxEntries));
+        config.setHistoryMaxBytes(intProperty(props, warnings, "history_max_bytes", config.historyMaxBytes));
+        config.setHistoryMaxAgeSeconds(intProperty(props, warnings, "history_max_age_seconds", config.historyMaxAgeSeconds));
+        config.setWalFsync(enumProperty(props, warnings, "wal_fsync", config.walFsync));
+        config.setWalFsyncIntervalMillis(intProperty(props, warnings, "wal_fsync_interval_ms", config.walFsyncIntervalMillis));
+        config.setSnapshotIntervalSeconds(intProperty(props, warnings, "snapshot_interval_seconds", config.snapshotIntervalSeconds));
+        config.setSnapshotWalBytes(intProperty(props, warnings, "snapshot_wal_bytes", config.snapshotWalBytes));
+        config.setArchiveSegmentBytes(intProperty(props, warnings, "archive_segment_bytes", config.archiveSegmentBytes));
+        config.setAuthThreads(intProperty(props, warnings, "auth_threads", config.authThreads));
+        config.setAuthQueueLimit(intProperty(props, warnings, "auth_queue_limit", config.authQueueLimit));
+        config.setBcryptCost(intProperty(props, warnings, "bcrypt_cost", config.bcryptCost));
+        config.setResumeTokenSeconds(intProperty(props, warnings, "resume_token_seconds", config.resumeTokenSeconds));
+        config.setLoginHistory(intProperty(props, warnings, "login_history", config.loginHistory));
+        config.setInboxMaxMessages(intProperty(props, warnings, "inbox_max_messages", config.inboxMaxMessages));
+        return config;
+    }
+
+    /**
+     * Reads a number from the properties.
+     *
+     * @param props loaded properties
+     * @param warnings gets a message, if the value is invalid
+     * @param key name of the setting
+     * @param def default value
+     * @return value of the setting, or the default if it's missing or invalid
+     */
+    static int intProperty(Properties props, Consumer<String> warnings, String key, int def) {
+        String value = props.getProperty(key);
+        if (value == null)
+            return def;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            warnings.accept(String.format("Warning: invalid %s \"%s\", using %d.", key, value, def));
+            return def;
+        }
+    }
+
+    /**
+     * Reads a constant of an enum from the properties, ignoring the case.
+     *
+     * @param props loaded properties
+     * @param warnings gets a message, if the value is invalid
+     * @param key name of the setting
+     * @param def default value
+     * @param <E> type of the enum
+     * @return value of the setting, or the default if it's missing or invalid
+     */
+    static <E extends Enum<E>> E enumProperty(Properties props, Consumer<String> warnings, String key, E def) {
+        String value = props.getProperty(key);
+        if (value == null)
+            return def;
+        try {
+            return Enum.valueOf(def.getDeclaringClass(), value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            warnings.accept(String.format("Warning: invalid %s \"%s\", using %s.", key, value,
+                    def.name().toLowerCase()));
+            return def;
+        }
+    }
+
+    /**
+     * @return how the clients are served
+     */
+    public TransportMode getTransport() {
+        return transport;
+    }
+
+    /**
+     * @param transport how the clients should be served
+     */
+    public void setTransport(TransportMode transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return number of event loops in nio mode
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * @param eventLoops number of event loops in nio mode
+     */
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * @return queued bytes of a client, over which the slow consumer policy kicks in
+     */
+    public int getOutboundHighWatermark() {
+        return outboundHighWatermark;
+    }
+
+    /**
+     * @param outboundHighWatermark queued bytes of a client, over which the slow consumer policy kicks in
+     */
+    public void setOutboundHighWatermark(int outboundHighWatermark) {
+        this.outboundHighWatermark = outboundHighWatermark;
+    }
+
+    /**
+     * @return queued bytes of a client, under which a paused client resumes
+     */
+    public int getOutboundLowWatermark() {
+        return outboundLowWatermark;
+    }
+
+    /**
+     * @param outboundLowWatermark queued bytes of a client, under which a paused client resumes
+     */
+    public void setOutboundLowWatermark(int outboundLowWatermark) {
+        this.outboundLowWatermark = outboundLowWatermark;
+    }
+
+    /**
+     * @return what happens with a client, that doesn't read fast enough
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * @param slowConsumerPolicy what happens with a client, that doesn't read fast enough
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * @return bytes a writer collects before writing them with one call
+     */
+    public int getWriteBatchBytes() {
+        return writeBatchBytes;
+    }
+
+    /**
+     * @param writeBatchBytes bytes a writer collects before writing them with one call
+     */
+    public void setWriteBatchBytes(int writeBatchBytes) {
+        this.writeBatchBytes = writeBatchBytes;
+    }
+
+    /**
+     * @return microseconds a frame may wait for others to be written with
+     */
+    public int getWriteLatencyBudgetMicros() {
+        return writeLatencyBudgetMicros;
+    }
+
+    /**
+     * @param writeLatencyBudgetMicros microseconds a frame may wait for others to be written with
+     */
+    public void setWriteLatencyBudgetMicros(int writeLatencyBudgetMicros) {
+        this.writeLatencyBudgetMicros = writeLatencyBudgetMicros;
+    }
+
+    /**
+     * @return most history lines a login snapshot can hold
+     */
+    public int getSnapshotHistory() {
+        return snapshotHistory;
+    }
+
+    /**
+     * @param snapshotHistory most history lines a login snapshot can hold
+     */
+    public void setSnapshotHistory(int snapshotHistory) {
+        this.snapshotHistory = snapshotHistory;
+    }
+
+    /**
+     * @return bytes of snapshot records carried by one chunk frame
+     */
+    public int getSnapshotChunkBytes() {
+        return snapshotChunkBytes;
+    }
+
+    /**
+     * @param snapshotChunkBytes bytes of snapshot records carried by one chunk frame,
+     *                           at most 49140, so the base64 form fits in a frame
+     */
+    public void setSnapshotChunkBytes(int snapshotChunkBytes) {
+        this.snapshotChunkBytes = Math.max(1, Math.min(snapshotChunkBytes, 49140));
+    }
+
+    /**
+     * @return DEFLATE level of compressed connections, 0 if clients can't turn compression on
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @param compressionLevel DEFLATE level of compressed connections, 1 to 9,
+     *                         0 if clients can't turn compression on
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = Math.max(0, Math.min(compressionLevel, 9));
+    }
+
+    /**
+     * @return most connections of the server
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param maxConnections most connections of the server
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return most connections from one ip address
+     */
+    public int getMaxConnectionsPerIp() {
+        return maxConnectionsPerIp;
+    }
+
+    /**
+     * @param maxConnectionsPerIp most connections from one ip address
+     */
+    public void setMaxConnectionsPerIp(int maxConnectionsPerIp) {
+        this.maxConnectionsPerIp = maxConnectionsPerIp;
+    }
+
+    /**
+     * @return connections an ip address may open every second
+     */
+    public int getConnectionRatePerIp() {
+        return connectionRatePerIp;
+    }
+
+    /**
+     * @param connectionRatePerIp connections an ip address may open every second
+     */
+    public void setConnectionRatePerIp(int connectionRatePerIp) {
+        this.connectionRatePerIp = connectionRatePerIp;
+    }
+
+    /**
+     * @return connections an ip address may open at once
+     */
+    public int getConnectionBurstPerIp() {
+        return connectionBurstPerIp;
+    }
+
+    /**
+     * @param connectionBurstPerIp connections an ip address may open at once
+     */
+    public void setConnectionBurstPerIp(int connectionBurstPerIp) {
+        this.connectionBurstPerIp = connectionBurstPerIp;
+    }
+
+    /**
+     * @return messages a user may send every second
+     */
+    public int getMessageRate() {
+        return messageRate;
+    }
+
+    /**
+     * @param messageRate messages a user may send every second, at least 1
+     */
+    public void setMessageRate(int messageRate) {
+        this.messageRate = Math.max(1, messageRate);
+    }
+
+    /**
+     * @return messages a user may send at once
+     */
+    public int getMessageBurst() {
+        return messageBurst;
+    }
+
+    /**
+     * @param messageBurst messages a user may send at once, at least 1
+     */
+    public void setMessageBurst(int messageBurst) {
+        this.messageBurst = Math.max(1, messageBurst);
+    }
+
+    /**
+     * @return message bytes a user may send every second
+     */
+    public int getMessageBytesRate() {
+        return messageBytesRate;
+    }
+
+    /**
+     * @param messageBytesRate message bytes a user may send every second, at least 1
+     */
+    public void setMessageBytesRate(int messageBytesRate) {
+        this.messageBytesRate = Math.max(1, messageBytesRate);
+    }
+
+    /**
+     * @return message bytes a user may send at once
+     */
+    public int getMessageBytesBurst() {
+        return messageBytesBurst;
+    }
+
+    /**
+     * @param messageBytesBurst message bytes a user may send at once, at least 1
+     */
+    public void setMessageBytesBurst(int messageBytesBurst) {
+        this.messageBytesBurst = Math.max(1, messageBytesBurst);
+    }
+
+    /**
+     * @return what happens with users over the message limits
+     */
+    public FloodPolicy getFloodPolicy() {
+        return floodPolicy;
+    }
+
+    /**
+     * @param floodPolicy what happens with users over the message limits
+     */
+    public void setFloodPolicy(FloodPolicy floodPolicy) {
+        this.floodPolicy = floodPolicy;
+    }
+
+    /**
+     * @return if admins are exempt from the message limits
+     */
+    public boolean isFloodExemptAdmins() {
+        return floodExemptAdmins;
+    }
+
+    /**
+     * @param floodExemptAdmins if admins are exempt from the message limits
+     */
+    public void setFloodExemptAdmins(boolean floodExemptAdmins) {
+        this.floodExemptAdmins = floodExemptAdmins;
+    }
+
+    /**
+     * @return seconds a client has to log in, 0 means no limit
+     */
+    public int getLoginTimeoutSeconds() {
+        return loginTimeoutSeconds;
+    }
+
+    /**
+     * @param loginTimeoutSeconds seconds a client has to log in, 0 means no limit
+     */
+    public void setLoginTimeoutSeconds(int loginTimeoutSeconds) {
+        this.loginTimeoutSeconds = Math.max(0, loginTimeoutSeconds);
+    }
+
+    /**
+     * @return seconds a logged in user may stay without sending a command, 0 means no limit
+     */
+    public int getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    /**
+     * @param idleTimeoutSeconds seconds a logged in user may stay without sending a command,
+     *                           0 means no limit
+     */
+    public void setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = Math.max(0, idleTimeoutSeconds);
+    }
+
+    /**
+     * @return seconds of silence before a heartbeat client is pinged, 0 turns heartbeats off
+     */
+    public int getHeartbeatSeconds() {
+        return heartbeatSeconds;
+    }
+
+    /**
+     * @param heartbeatSeconds seconds of silence before a heartbeat client is pinged,
+     *                         0 turns heartbeats off
+     */
+    public void setHeartbeatSeconds(int heartbeatSeconds) {
+        this.heartbeatSeconds = Math.max(0, heartbeatSeconds);
+    }
+
+    /**
+     * @return presence changes remembered for delta sync, clients further behind get a full snapshot
+     */
+    public int getPresenceLogSize() {
+        return presenceLogSize;
+    }
+
+    /**
+     * @param presenceLogSize presence changes remembered for delta sync,
+     *                        clients further behind get a full snapshot
+     */
+    public void setPresenceLogSize(int presenceLogSize) {
+        this.presenceLogSize = Math.max(1, presenceLogSize);
+    }
+
+    /**
+     * @return milliseconds presence changes are collected before they are sent, 0 sends them at once
+     */
+    public int getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+
+    /**
+     * @param presenceWindowMillis milliseconds presence changes are collected before they are sent,
+     *                             0 sends them at once
+     */
+    public void setPresenceWindowMillis(int presenceWindowMillis) {
+        this.presenceWindowMillis = Math.max(0, presenceWindowMillis);
+    }
+
+    /**
+     * @return maximum number of messages kept in the history
+     */
+    public int getHistoryMaxEntries() {
+        return historyMaxEntries;
+    }
+
+    /**
+     * @param historyMaxEntries maximum number of messages kept in the history
+     */
+    public void setHistoryMaxEntries(int historyMaxEntries) {
+        this.historyMaxEntries = Math.max(1, historyMaxEntries);
+    }
+
+    /**
+     * @return maximum bytes of the messages kept in the history
+     */
+    public int getHistoryMaxBytes() {
+        return historyMaxBytes;
+    }
+
+    /**
+     * @param historyMaxBytes maximum bytes of the messages kept in the history,
+     *                        at least 64 KiB, so the longest message fits
+     */
+    public void setHistoryMaxBytes(int historyMaxBytes) {
+        this.historyMaxBytes = Math.max(64 * 1024, historyMaxBytes);
+    }
+
+    /**
+     * @return seconds a message is kept in the history, 0 means no limit
+     */
+    public int getHistoryMaxAgeSeconds() {
+        return historyMaxAgeSeconds;
+    }
+
+    /**
+     * @param historyMaxAgeSeconds seconds a message is kept in the history, 0 means no limit
+     */
+    public void setHistoryMaxAgeSeconds(int historyMaxAgeSeconds) {
+        this.historyMaxAgeSeconds = Math.max(0, historyMaxAgeSeconds);
+    }
+
+    /**
+     * @return when the write-ahead log is forced to the disk
+     */
+    public FsyncPolicy getWalFsync() {
+        return walFsync;
+    }
+
+    /**
+     * @param walFsync when the write-ahead log is forced to the disk
+     */
+    public void setWalFsync(FsyncPolicy walFsync) {
+        this.walFsync = walFsync;
+    }
+
+    /**
+     * @return milliseconds between two fsyncs of the write-ahead log with the INTERVAL policy
+     */
+    public int getWalFsyncIntervalMillis() {
+        return walFsyncIntervalMillis;
+    }
+
+    /**
+     * @param walFsyncIntervalMillis milliseconds between two fsyncs of the write-ahead log
+     *                               with the INTERVAL policy
+     */
+    public void setWalFsyncIntervalMillis(int walFsyncIntervalMillis) {
+        this.walFsyncIntervalMillis = Math.max(1, walFsyncIntervalMillis);
+    }
+
+    /**
+     * @return seconds between two snapshots of the server state, 0 means no time trigger
+     */
+    public int getSnapshotIntervalSeconds() {
+        return snapshotIntervalSeconds;
+    }
+
+    /**
+     * @param snapshotIntervalSeconds seconds between two snapshots, 0 means no time trigger
+     */
+    public void setSnapshotIntervalSeconds(int snapshotIntervalSeconds) {
+        this.snapshotIntervalSeconds = Math.max(0, snapshotIntervalSeconds);
+    }
+
+    /**
+     * @return bytes written to the write-ahead log, that trigger a snapshot, 0 means no size trigger
+     */
+    public int getSnapshotWalBytes() {
+        return snapshotWalBytes;
+    }
+
+    /**
+     * @param snapshotWalBytes bytes written to the write-ahead log, that trigger a snapshot,
+     *                         0 means no size trigger
+     */
+    public void setSnapshotWalBytes(int snapshotWalBytes) {
+        this.snapshotWalBytes = Math.max(0, snapshotWalBytes);
+    }
+
+    /**
+     * @return size of a segment file of the message archive
+     */
+    public int getArchiveSegmentBytes() {
+        return archiveSegmentBytes;
+    }
+
+    /**
+     * @param archiveSegmentBytes size of a segment file of the message archive, at least 64 KiB
+     */
+    public void setArchiveSegmentBytes(int archiveSegmentBytes) {
+        this.archiveSegmentBytes = Math.max(64 * 1024, archiveSegmentBytes);
+    }
+
+    /**
+     * @return number of threads checking and hashing passwords
+     */
+    public int getAuthThreads() {
+        return authThreads;
+    }
+
+    /**
+     * @param authThreads number of threads checking and hashing passwords, at least 1
+     */
+    public void setAuthThreads(int authThreads) {
+        this.authThreads = Math.max(1, authThreads);
+    }
+
+    /**
+     * @return most logins and registrations waiting for an auth thread
+     */
+    public int getAuthQueueLimit() {
+        return authQueueLimit;
+    }
+
+    /**
+     * @param authQueueLimit most logins and registrations waiting for an auth thread, at least 1
+     */
+    public void setAuthQueueLimit(int authQueueLimit) {
+        this.authQueueLimit = Math.max(1, authQueueLimit);
+    }
+
+    /**
+     * @return log2 of the bcrypt rounds of new password hashes
+     */
+    public int getBcryptCost() {
+        return bcryptCost;
+    }
+
+    /**
+     * @param bcryptCost log2 of the bcrypt rounds of new password hashes, between 4 and 31
+     */
+    public void setBcryptCost(int bcryptCost) {
+        this.bcryptCost = Math.min(31, Math.max(4, bcryptCost));
+    }
+
+    /**
+     * @return seconds a resume token is valid, 0 means sessions can't be resumed
+     */
+    public int getResumeTokenSeconds() {
+        return resumeTokenSeconds;
+    }
+
+    /**
+     * @param resumeTokenSeconds seconds a resume token is valid, 0 means sessions can't be resumed
+     */
+    public void setResumeTokenSeconds(int resumeTokenSeconds) {
+        this.resumeTokenSeconds = Math.max(0, resumeTokenSeconds);
+    }
+
+    /**
+     * @return number of the latest messages sent on login without a snapshot
+     */
+    public int getLoginHistory() {
+        return loginHistory;
+    }
+
+    /**
+     * @param loginHistory number of the latest messages sent on login without a snapshot
+     */
+    public void setLoginHistory(int loginHistory) {
+        this.loginHistory = Math.max(0, loginHistory);
+    }
+
+    /**
+     * @return most messages kept in the inbox of an offline user, 0 means no inbox
+     */
+    public int getInboxMaxMessages() {
+        return inboxMaxMessages;
+    }
+
+    /**
+     * @param inboxMaxMessages most messages kept in the inbox of an offline user, 0 means no inbox
+     */
+    public void setInboxMaxMessages(int inboxMaxMessages) {
+        this.inboxMaxMessages = Math.max(0, inboxMaxMessages);
+    }
+}
@@ -0,0 +1,134 @@
+package com.latsa.chatserver;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connected clients of the server. Sessions can be found by connection
+ * id or by username without scanning, and broadcasts iterate an immutable
+ * array of the logged in sessions, that is replaced whenever somebody
+ * logs in or leaves. Readers never lock, and never see the array change
+ * under them.
+ * <p>
+ * A user can be logged in from more than one client at a time, so a name
+ * finds all of her/his sessions, in the same kind of immutable array.
+ */
+public class SessionRegistry {
+
+    private static final ClientHandler[] NONE = new ClientHandler[0];
+
+    private ConcurrentHashMap<Long, ClientHandler> byId;
+    private ConcurrentHashMap<String, ClientHandler[]> byName;
+    private ConcurrentHashMap<Long, ClientHandler> loggedIn;
+    private volatile ClientHandler[] snapshot;
+    private ReentrantLock writeLock;
+
+    /**
+     * Constructs an empty registry.
+     */
+    public SessionRegistry() {
+        byId = new ConcurrentHashMap<>();
+        byName = new ConcurrentHashMap<>();
+        loggedIn = new ConcurrentHashMap<>();
+        snapshot = NONE;
+        writeLock = new ReentrantLock();
+    }
+
+    /**
+     * Adds a new connection, that didn't log in yet.
+     *
+     * @param session handler of the connection
+     */
+    public void add(ClientHandler session) {
+        byId.put(session.getId(), session);
+    }
+
+    /**
+     * Marks a session logged in, so it gets broadcasts and can be found
+     * by its username, along with the other sessions of the same user.
+     *
+     * @param session handler of a logged in user
+     */
+    public void login(ClientHandler session) {
+        writeLock.lock();
+        try {
+            if (loggedIn.put(session.getId(), session) == null) {
+                ClientHandler[] same = byName.getOrDefault(session.getUsername(), NONE);
+                ClientHandler[] more = Arrays.copyOf(same, same.length + 1);
+                more[same.length] = session;
+                byName.put(session.getUsername(), more);
+            }
+            snapshot = loggedIn.values().toArray(NONE);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a session, that left the server.
+     *
+     * @param session handler of the connection
+     */
+    public void remove(ClientHandler session) {
+        byId.remove(session.getId());
+        writeLock.lock();
+        try {
+            if (loggedIn.remove(session.getId()) != null) {
+                ClientHandler[] same = byName.getOrDefault(session.getUsername(), NONE);
+                ClientHandler[] rest = Arrays.stream(same).filter(ch -> ch != session).toArray(ClientHandler[]::new);
+                if (rest.length == 0)
+                    byName.remove(session.getUsername());
+                else
+                    byName.put(session.getUsername(), rest);
+                snapshot = loggedIn.values().toArray(NONE);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the sessions of a user. The array must not be changed.
+     *
+     * @param username name of a user
+     * @return every session of the user, empty if she/he isn't logged in
+     */
+    public ClientHandler[] get(String username) {
+        return byName.getOrDefault(username, NONE);
+    }
+
+    /**
+     * @param username name of a user
+     * @return if the user is logged in from at least one client
+     */
+    public boolean isLoggedIn(String username) {
+        return byName.containsKey(username);
+    }
+
+    /**
+     * @param id id of a connection
+     * @return the session of the connection, or null if it's closed
+     */
+    public ClientHandler get(long id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Returns the logged in sessions. The array must not be changed.
+     *
+     * @return sessions of the logged in users, at the time of the call
+     */
+    public ClientHandler[] getLoggedIn() {
+        return snapshot;
+    }
+
+    /**
+     * @return every connected session, logged in or not
+     */
+    public Collection<ClientHandler> getAll() {
+        return Collections.unmodifiableCollection(byId.values());
+    }
+}
@@ -0,0 +1,150 @@
+package com.latsa.chatserver;
+
+import com.latsa.chatserver.net.ClientConnection;
+import com.latsa.chatserver.net.CompressionStats;
+import com.latsa.chatserver.net.Frame;
+import com.latsa.chatserver.net.Protocol;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests SessionRegistry.
+ */
+class SessionRegistryTest {
+
+    /**
+     * A name finds every session of the user, and stays logged in until
+     * the last one leaves, whichever order they leave in.
+     */
+    @Test
+    void testSameUserTwice() {
+        SessionRegistry sessions = new SessionRegistry();
+        Session first = new Session("alice");
+        Session second = new Session("alice");
+        Session other = new Session("bob");
+        for (Session session : List.of(first, second, other)) {
+            sessions.add(session);
+            sessions.login(session);
+        }
+        sessions.login(first);
+
+        assertEquals(Set.of(first, second), Set.of(sessions.get("alice")));
+        assertEquals(3, sessions.getLoggedIn().length);
+
+        sessions.remove(second);
+        assertTrue(sessions.isLoggedIn("alice"));
+        assertArrayEquals(new ClientHandler[]{first}, sessions.get("alice"));
+
+        sessions.remove(first);
+        assertFalse(sessions.isLoggedIn("alice"));
+        assertEquals(0, sessions.get("alice").length);
+        assertArrayEquals(new ClientHandler[]{other}, sessions.getLoggedIn());
+        assertEquals(1, sessions.getAll().size());
+    }
+
+    /**
+     * Handler with a fixed username, on a connection that goes nowhere.
+     */
+    private static class Session extends ClientHandler {
+
+        private final String username;
+
+        Session(String username) {
+            super(new NoConnection(), config(), null, null, null, null, null, null, null, null, null);
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        private static ServerConfig config() {
+            ServerConfig config = new ServerConfig();
+            config.setLoginTimeoutSeconds(0);
+            config.setIdleTimeoutSeconds(0);
+            return config;
+        }
+    }
+
+    /**
+     * Connection, that drops everything.
+     */
+    private static class NoConnection implements ClientConnection {
+
+        @Override
+        public void open(ClientHandler handler) {
+        }
+
+        @Override
+        public void send(String frame) {
+        }
+
+        @Override
+        public void send(Frame frame) {
+        }
+
+        @Override
+        public void setProtocol(Protocol protocol) {
+        }
+
+        @Override
+        public Protocol getProtocol() {
+            return Protocol.V1;
+        }
+
+        @Override
+        public void startCompression(int level) {
+        }
+
+        @Override
+        public CompressionStats getCompressionStats() {
+            return null;
+        }
+
+        @Override
+        public void pauseReading() {
+        }
+
+        @Override
+        public void resumeReading() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public boolean isBacklogged() {
+            return false;
+        }
+
+        @Override
+        public void whenDrained(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public String getAddress() {
+            return "127.0.0.1";
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.latsa.chatserver;
+
+import com.latsa.chatserver.storage.UserRecords;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Measures how long it takes to load the registered users on startup:
+ * from the old users.ser list with Java serialization, and from the
+ * binary user records, decoded on one thread and on every processor.
+ * The password hashes are random strings of the length of a bcrypt hash,
+ * as hashing a million passwords would take hours.
+ * <p>
+ * Usage: StartupBenchmark [users] [threads]
+ */
+public class StartupBenchmark {
+
+    private static final String BCRYPT = "./ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    /**
+     * Runs the benchmark and prints the results.
+     *
+     * @param args number of users and number of decoder threads
+     * @throws Exception if a file can't be written or read
+     */
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        ArrayList<UserData> users = new ArrayList<>(count);
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            StringBuilder hash = new StringBuilder("$2a$10$");
+            while (hash.length() < 60) {
+                // the last character of the salt and of the hash only has 2 and 4 bits
+                int step = hash.length() == 28 ? 16 : hash.length() == 59 ? 4 : 1;
+                hash.append(BCRYPT.charAt(random.nextInt(BCRYPT.length() / step) * step));
+            }
+            UserData ud = new UserData("user" + i, hash.toString());
+            ud.setAdmin(i % 1000 == 0);
+            ud.setBanned(i % 100 == 0);
+            users.add(ud);
+        }
+
+        File ser = File.createTempFile("users", ".ser");
+        File bin = File.createTempFile("users", ".bin");
+        try {
+            try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(ser)))) {
+                oos.writeObject(users);
+            }
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bin)))) {
+                UserRecords.write(dos, users);
+            }
+            users = null;
+            System.out.printf("%d users, users.ser: %d bytes, records: %d bytes%n", count, ser.length(), bin.length());
+
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            for (int round = 0; round < 3; round++) {
+                System.out.printf("round %d%n", round);
+                print("java serialization", () -> readSerialized(ser));
+                print("records, 1 thread", () -> readRecords(bin, 1));
+                print("records, " + threads + " threads", () -> readRecords(bin, threads));
+            }
+        } finally {
+            ser.delete();
+            bin.delete();
+        }
+    }
+
+    /**
+     * Loads the users one way.
+     */
+    private interface Loader {
+        /**
+         * @return the loaded users
+         * @throws Exception if the file can't be read
+         */
+        UserRegistry load() throws Exception;
+    }
+
+    /**
+     * Loads the users, and prints the time and the heap it took.
+     *
+     * @param name name of the way
+     * @param loader loads the users
+     * @throws Exception if the file can't be read
+     */
+    private static void print(String name, Loader loader) throws Exception {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        UserRegistry loaded = loader.load();
+        long nanos = System.nanoTime() - start;
+        System.gc();
+        long heap = runtime.totalMemory() - runtime.freeMemory() - before;
+        System.out.printf("  %-22s %8.1f ms %8.1f MB heap, %d users%n", name, nanos / 1e6, heap / 1e6, loaded.size());
+    }
+
+    /**
+     * @param file the users.ser list
+     * @return the users, as the server loaded them before
+     * @throws Exception if the file can't be read
+     */
+    @SuppressWarnings("unchecked")
+    private static UserRegistry readSerialized(File file) throws Exception {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return new InMemoryUserRegistry((ArrayList<UserData>) ois.readObject());
+        }
+    }
+
+    /**
+     * @param file the user records
+     * @param threads number of decoder threads
+     * @return the users, as the server loads them from the snapshot
+     * @throws IOException if the file can't be read
+     */
+    private static UserRegistry readRecords(File file, int threads) throws IOException {
+        UserRegistry users = new InMemoryUserRegistry(new ArrayList<>());
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            UserRecords.read(dis, users, threads);
+        }
+        return users;
+    }
+}
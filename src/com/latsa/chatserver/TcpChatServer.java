@@ -1,13 +1,46 @@
 package com.latsa.chatserver;
 
 import com.latsa.chatserver.gui.ServerTerminal;
+import com.latsa.chatserver.net.AdmissionController;
+import com.latsa.chatserver.net.BlockingConnection;
+import com.latsa.chatserver.net.ClientConnection;
+import com.latsa.chatserver.net.CompressionStats;
+import com.latsa.chatserver.net.EventLoopGroup;
+import com.latsa.chatserver.net.Frame;
+import com.latsa.chatserver.net.IpBlacklist;
+import com.latsa.chatserver.net.NioConnection;
+import com.latsa.chatserver.net.OutboundQueue;
+import com.latsa.chatserver.net.TransportMode;
+import com.latsa.chatserver.net.TransportStats;
+import com.latsa.chatserver.net.VirtualThreads;
+import com.latsa.chatserver.storage.DurableUserRegistry;
+import com.latsa.chatserver.storage.Inbox;
+import com.latsa.chatserver.storage.LegacyFiles;
+import com.latsa.chatserver.storage.MessageArchive;
+import com.latsa.chatserver.storage.Snapshot;
+import com.latsa.chatserver.storage.Snapshotter;
+import com.latsa.chatserver.storage.WriteAheadLog;
+import com.latsa.chatserver.utils.HashedWheelTimer;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Set;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Runs the server and executes some commands.
@@ -17,92 +50,207 @@ public class TcpChatServer implements Runnable {
     private ServerSocket welcomeSocket;
     private boolean stopServer = false;
 
-    private ArrayList<ClientHandler> clients;
-    private ArrayList<UserData> users;
-    private ArrayList<String> blacklist;
-    private ArrayList<String> previousMessages;
+    private ServerConfig config;
+    private EventLoopGroup eventLoops;
+    private Executor clientThreads;
+    private TransportStats stats;
+    private AdmissionController admission;
+    private HashedWheelTimer timer;
+
+    private SessionRegistry sessions;
+    private UserRegistry users;
+    private PresenceService presence;
+    private IpBlacklist blacklist;
+    private HistoryStore history;
+    private WriteAheadLog wal;
+    private MessageArchive archive;
+    private Snapshotter snapshotter;
+    private AuthExecutor auth;
+    private ResumeTokens tokens;
+    private Inbox inbox;
 
     private ServerTerminal terminal;
 
-    private static final String IPADDRESS_PATTERN =
-            "^([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.([01]?\\d\\d?|2[0-4]\\d|25[0-5])$";
+    private static final String SNAPSHOT = "server.snapshot";
+    private static final String WAL = "server.wal";
+    private static final String ARCHIVE = "archive";
+    private static final String INBOX = "inbox";
 
     /**
-     * Instantiates a new server on given port. Port can't be a well known port!
+     * Instantiates a new server on given port with default settings.
+     * Port can't be a well known port!
      *
      * @param port The port number that the server listens on
      * @param terminal The terminal class that the server sends output messages
      */
-    @SuppressWarnings("unchecked")
     public TcpChatServer(int port, ServerTerminal terminal) {
+        this(port, terminal, new ServerConfig());
+    }
+
+    /**
+     * Instantiates a new server on given port. Port can't be a well known port!
+     *
+     * @param port The port number that the server listens on
+     * @param terminal The terminal class that the server sends output messages
+     * @param config settings of the server
+     */
+    public TcpChatServer(int port, ServerTerminal terminal, ServerConfig config) {
         this.PORT = port;
         this.terminal = terminal;
+        this.config = config;
+        this.stats = new TransportStats();
+
+        UserRegistry loaded = new InMemoryUserRegistry(new ArrayList<>());
+        history = new HistoryStore(config.getHistoryMaxEntries(), config.getHistoryMaxBytes(),
+                TimeUnit.SECONDS.toMillis(config.getHistoryMaxAgeSeconds()));
+        blacklist = new IpBlacklist();
+        archive = initArchive();
+        history.setArchive(archive);
+        long lsn = initSnapshot(loaded);
+
+        this.timer = new HashedWheelTimer("session-timer", 10, TimeUnit.MILLISECONDS, 1024);
+        this.admission = new AdmissionController(config.getMaxConnections(), config.getMaxConnectionsPerIp(),
+                config.getConnectionRatePerIp(), config.getConnectionBurstPerIp());
         initServer();
+        wal = initWal(loaded, lsn);
+        users = wal == null ? loaded : new DurableUserRegistry(loaded, wal);
+        history.setWriteAheadLog(wal);
+        if (wal != null) {
+            snapshotter = new Snapshotter(SNAPSHOT, wal, users, blacklist, history, config.getSnapshotIntervalSeconds(),
+                    config.getSnapshotWalBytes(), terminal::appendTextToTerminal);
+            snapshotter.start();
+        }
+        presence = new PresenceService(users.getAll(), config.getPresenceLogSize());
+        presence.start(timer, config.getPresenceWindowMillis(), this::publishPresence);
 
-        users = new ArrayList<>();
-        previousMessages = new ArrayList<>();
-        blacklist = new ArrayList<>();
+        sessions = new SessionRegistry();
+        auth = new AuthExecutor(config.getAuthThreads(), config.getAuthQueueLimit(), config.getBcryptCost());
+        tokens = new ResumeTokens(TimeUnit.SECONDS.toMillis(config.getResumeTokenSeconds()));
+        inbox = initInbox();
+    }
+
+    /**
+     * Loads the last snapshot of the users, the banned ip addresses and the
+     * previous messages. If there is no snapshot yet, they are moved from
+     * the files of the older versions into the first snapshot, see
+     * {@link LegacyFiles}.
+     *
+     * @param loaded registry to add the users to
+     * @return log sequence number of the snapshot
+     * @throws IllegalStateException if the old files can't be moved, the
+     *                               server doesn't start then, so they aren't lost
+     */
+    private long initSnapshot(UserRegistry loaded) {
+        if (new File(SNAPSHOT).exists()) {
+            try {
+                return Snapshot.read(SNAPSHOT, loaded, blacklist, history);
+            } catch (IOException e) {
+                e.printStackTrace();
+                terminal.appendTextToTerminal("Error: Couldn't read the snapshot!");
+                return 0;
+            }
+        }
 
-        users = (ArrayList<UserData>)initList("users.ser");
-        previousMessages = (ArrayList<String>)initList("prev.ser");
-        blacklist = (ArrayList<String>)initList("blacklist.ser");
+        Path dir = Paths.get("");
+        if (!LegacyFiles.exist(dir))
+            return 0;
+        try {
+            for (String name : LegacyFiles.migrate(dir, SNAPSHOT, loaded, blacklist, history))
+                terminal.appendTextToTerminal("Error: Couldn't delete " + name);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (archive != null)
+                archive.close();
+            throw new IllegalStateException("Couldn't move the saved files to the snapshot, they are kept: "
+                    + e.getMessage(), e);
+        }
+        return 0;
+    }
 
-        clients = new ArrayList<>();
+    /**
+     * Opens the archive of the messages.
+     *
+     * @return the archive, or null if it can't be used
+     */
+    private MessageArchive initArchive() {
+        try {
+            return new MessageArchive(ARCHIVE, config.getArchiveSegmentBytes());
+        } catch (IOException e) {
+            e.printStackTrace();
+            terminal.appendTextToTerminal("Error: Message archive can't be used, only the latest messages are kept!");
+            return null;
+        }
     }
 
     /**
-     * This loads serialized data from location, and returns it in an ArrayList.
-     * If no data is stored, returns an empty ArrayList.
+     * Opens the inbox of the offline users.
      *
-     * @param location Where the serialized list is located
-     * @return a generic ArrayList of previously saved data
+     * @return the inbox, or null if it's turned off or can't be opened
      */
-    private ArrayList<?> initList(String location) {
-        ArrayList<?> temp = new ArrayList<>();
+    private Inbox initInbox() {
+        if (config.getInboxMaxMessages() == 0)
+            return null;
         try {
-            FileInputStream fis = new FileInputStream(location);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            temp = (ArrayList<?>) ois.readObject();
-            ois.close();
-            fis.close();
-        } catch (Exception e) {
+            return new Inbox(INBOX, config.getInboxMaxMessages());
+        } catch (IOException e) {
             e.printStackTrace();
+            terminal.appendTextToTerminal("Error: Inbox can't be used, offline users won't get their mentions!");
+            return null;
         }
-        return temp;
     }
 
     /**
-     * Saves the serialized list to the given location.
+     * Opens the write-ahead log, and replays the changes, that are not in
+     * the snapshot yet.
      *
-     * @param location Where the file should be saved
-     * @param list The ArrayList to save
+     * @param loaded users loaded from the snapshot
+     * @param lsn log sequence number of the snapshot
+     * @return the log, or null if it can't be used
      */
-    private void saveList(String location, ArrayList<?> list) {
+    private WriteAheadLog initWal(UserRegistry loaded, long lsn) {
         try {
-            FileOutputStream fos = new FileOutputStream(location);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(list);
-            oos.close();
-            fos.close();
-        } catch (Exception e) {
+            WriteAheadLog log = new WriteAheadLog(WAL, config.getWalFsync(), config.getWalFsyncIntervalMillis(),
+                    terminal::appendTextToTerminal);
+            int replayed = log.replay(loaded, blacklist, history, lsn);
+            if (replayed > 0)
+                terminal.appendTextToTerminal(String.format("Replayed %d changes from the write-ahead log.", replayed));
+            return log;
+        } catch (IOException e) {
             e.printStackTrace();
+            terminal.appendTextToTerminal("Error: Write-ahead log can't be used, changes are saved only on stop!");
+            return null;
         }
     }
 
     /**
-     * Creates the server socket on given port (from constructor)
+     * Creates the server socket on given port (from constructor).
+     * In nio mode the socket belongs to a channel, so accepted sockets
+     * can be handed to the event loops. In the other modes every client
+     * gets its own platform or virtual thread.
      */
     private void initServer() {
         try {
-            welcomeSocket = new ServerSocket(PORT);
+            if (config.getTransport() == TransportMode.NIO) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(PORT));
+                welcomeSocket = channel.socket();
+                eventLoops = new EventLoopGroup(config.getEventLoops());
+            } else {
+                if (config.getTransport() == TransportMode.VIRTUAL)
+                    clientThreads = VirtualThreads.newExecutor();
+                else
+                    clientThreads = task -> new Thread(task).start();
+                welcomeSocket = new ServerSocket(PORT);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Accepts incoming sockets, checks, if they are on blacklist.
-     * If not, then adds them to client handlers.
+     * Accepts incoming sockets, checks, if they are on blacklist, or
+     * over the connection limits. If not, then adds them to client handlers.
+     * Refused sockets only get a REFUSED reply, no connection is made for them.
      */
     @Override
     public void run() {
@@ -114,21 +262,40 @@ public class TcpChatServer implements Runnable {
                 boolean accepted = true;
                 String address = clientSocket.getInetAddress().getHostAddress();
 
-                if(blacklist != null) {
-                    for (String s : blacklist) {
-                        if (s.equals(address)) {
-                            refused(clientSocket);
-                            clientSocket.close();
-                            accepted = false;
-                        }
-                    }
+                if (blacklist.contains(clientSocket.getInetAddress()) || !admission.admit(address)) {
+                    refused(clientSocket);
+                    clientSocket.close();
+                    accepted = false;
                 }
 
                 if (accepted) {
-                    newClient = new ClientHandler(clientSocket, terminal, users, clients, previousMessages);
-                    clients.add(newClient);
-                    newClient.start();
-                    terminal.appendTextToTerminal(String.format("Connection from %s accepted!", address));
+                    newClient = null;
+                    try {
+                        ClientConnection connection;
+                        OutboundQueue outbound = new OutboundQueue(config.getOutboundHighWatermark(),
+                                config.getOutboundLowWatermark(), config.getSlowConsumerPolicy());
+                        if (eventLoops != null)
+                            connection = new NioConnection(clientSocket.getChannel(), eventLoops.next(), outbound,
+                                    stats);
+                        else
+                            connection = new BlockingConnection(clientSocket, clientThreads, outbound, stats,
+                                    config.getWriteBatchBytes(), config.getWriteLatencyBudgetMicros() * 1000L);
+                        newClient = new ClientHandler(connection, config, timer, terminal, users, sessions, presence,
+                                history, auth, tokens, inbox);
+                        newClient.setLeaveAction(() -> admission.release(address));
+                        sessions.add(newClient);
+                        connection.open(newClient);
+                        terminal.appendTextToTerminal(String.format("Connection from %s accepted!", address));
+                    } catch (IOException | RuntimeException e) {
+                        // the connection never started, so it won't tell the handler to give back the slot
+                        e.printStackTrace();
+                        if (newClient != null)
+                            newClient.connectionLost();
+                        else
+                            admission.release(address);
+                        clientSocket.close();
+                        terminal.appendTextToTerminal(String.format("Error: Connection from %s failed!", address));
+                    }
                 } else {
                     terminal.appendTextToTerminal(String.format("Connection from %s refused!", address));
                 }
@@ -159,9 +326,28 @@ public class TcpChatServer implements Runnable {
      */
     public void stopServer() {
         stopServer = true;
-        saveList("users.ser", users);
-        saveList("prev.ser", previousMessages);
-        saveList("blacklist.ser", blacklist);
+        if (snapshotter != null)
+            snapshotter.stop();
+        if (wal != null)
+            wal.close();
+        try {
+            Snapshot.write(SNAPSHOT, wal == null ? 0 : wal.getLastLsn(), users, blacklist, history);
+            if (wal != null)
+                wal.delete();
+        } catch (IOException e) {
+            e.printStackTrace();
+            terminal.appendTextToTerminal("Error: Couldn't save the snapshot!");
+        }
+        if (archive != null)
+            archive.close();
+        if (inbox != null)
+            inbox.close();
+        timer.stop();
+        auth.shutdown();
+        if (eventLoops != null)
+            eventLoops.shutdown();
+        if (clientThreads instanceof ExecutorService)
+            ((ExecutorService) clientThreads).shutdown();
         try {
             welcomeSocket.close();
         } catch (IOException e) {
@@ -186,39 +372,145 @@ public class TcpChatServer implements Runnable {
      * @return UserData object of user
      */
     public UserData getUser(String username) {
-        for (UserData ud : users)
-            if (ud.getUsername().equals(username))
-                return ud;
+        return users.get(username);
+    }
 
-        return null;
+    /**
+     * Sends the status changes of a presence window to every logged in
+     * client. The frames are encoded once, and shared by all of them.
+     *
+     * @param changes status changes of the window
+     */
+    private void publishPresence(PresenceService.Changes changes) {
+        List<Frame> userFrames = new ArrayList<>(changes.size());
+        for (int i = 0; i < changes.size(); i++) {
+            if (changes.getState(i) == PresenceService.DELETED)
+                userFrames.add(null);
+            else
+                userFrames.add(new Frame(String.format("user#%s#%s", changes.getName(i), changes.getStatus(i))));
+        }
+        List<Frame> digest = new ArrayList<>();
+        for (String frame : changes.toDeltaFrames(config.getSnapshotChunkBytes()))
+            digest.add(new Frame(frame));
+        for (ClientHandler ch : sessions.getLoggedIn())
+            ch.deliverPresence(userFrames, digest);
+    }
+
+    /**
+     * Saves the changed admin or ban flag of a user.
+     *
+     * @param user the changed user
+     */
+    public void updateUser(UserData user) {
+        users.update(user);
     }
 
     /**
      * Lists users of server and their status (online/offline).
      */
     public void showUsers() {
-        TreeMap<String, String> online = ClientHandler.getOnline();
+        PresenceService.Changes all = presence.snapshot();
+        TreeMap<String, String> online = new TreeMap<>();
+        for (int i = 0; i < all.size(); i++)
+            online.put(all.getName(i), all.getStatus(i));
         terminal.appendTextToTerminal("\n\nusers\tonline");
         terminal.appendTextToTerminal("------------------------------------------------------------------------------");
-        if (online != null) {
-            Set<String> names = online.keySet();
-            for (String name : names)
-                terminal.appendTextToTerminal(String.format("%s\t%s", name, online.get(name)));
-        } else {
-            for (UserData ud : users) {
-                terminal.appendTextToTerminal(String.format("%s\t%s", ud.getUsername(), "Offline"));
+        for (String name : online.keySet())
+            terminal.appendTextToTerminal(String.format("%s\t%s", name, online.get(name)));
+
+    }
+
+
+    /**
+     * Shows counters of the outgoing traffic.
+     */
+    public void showStats() {
+        terminal.appendTextToTerminal(String.format("frames written: %d, bytes written: %d, write calls: %d",
+                stats.getFramesWritten(), stats.getBytesWritten(), stats.getWriteCalls()));
+        terminal.appendTextToTerminal(String.format("average frames per write: %.2f", stats.getFramesPerWrite()));
+        terminal.appendTextToTerminal(admission.toString());
+        terminal.appendTextToTerminal(presence.toString());
+        terminal.appendTextToTerminal(auth.toString());
+        terminal.appendTextToTerminal(tokens.toString());
+        if (inbox != null)
+            terminal.appendTextToTerminal(inbox.toString());
+        if (snapshotter != null)
+            terminal.appendTextToTerminal(snapshotter.toString());
+        if (archive != null)
+            terminal.appendTextToTerminal(String.format("archive segments: %d, messages: %d-%d",
+                    archive.getSegments(), archive.getFirstSeq(), archive.getLastSeq()));
+        for (ClientHandler ch : sessions.getAll()) {
+            CompressionStats compression = ch.getConnection().getCompressionStats();
+            if (compression != null) {
+                String name = ch.getLoggedIn() ? ch.getUsername() : ch.getConnection().getAddress();
+                terminal.appendTextToTerminal(name + " compressed: " + compression);
             }
         }
+    }
+
+    /**
+     * Sets the most connections the server accepts.
+     *
+     * @param max most connections of the server
+     */
+    public void setMaxConnections(int max) {
+        admission.setMaxConnections(max);
+        terminal.appendTextToTerminal(String.format("Max connections set to %d.", max));
+    }
+
+    /**
+     * Sets the most connections the server accepts from one ip address.
+     *
+     * @param max most connections from one ip address
+     */
+    public void setIpConnections(int max) {
+        admission.setMaxPerIp(max);
+        terminal.appendTextToTerminal(String.format("Max connections per ip address set to %d.", max));
+    }
 
+    /**
+     * Sets how fast an ip address may open new connections.
+     *
+     * @param rate connections per second
+     * @param burst connections at once
+     */
+    public void setIpRate(int rate, int burst) {
+        admission.setRatePerIp(rate, burst);
+        terminal.appendTextToTerminal(String.format("Connection rate per ip address set to %d/s, burst %d.", rate, burst));
     }
 
+    /**
+     * Shows messages from the archive with the time they were sent. Without
+     * an archive, the latest messages are shown from the history.
+     *
+     * @param from day the messages start at, null for the latest messages
+     * @param count number of messages
+     */
+    public void showHistory(LocalDate from, int count) {
+        if (archive == null) {
+            for (String message : history.tail(count))
+                terminal.appendTextToTerminal(message);
+            return;
+        }
+        long seq = from == null ? archive.getLastSeq() - count + 1
+                : archive.seqAt(from.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        int[] shown = new int[1];
+        archive.read(seq, (s, time, message) -> {
+            LocalDateTime sent = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+            terminal.appendTextToTerminal(String.format("%d [%s] %s", s, format.format(sent),
+                    StandardCharsets.UTF_8.decode(message)));
+            return ++shown[0] < count;
+        });
+        if (shown[0] == 0)
+            terminal.appendTextToTerminal("No messages.");
+    }
 
     /**
      * Deletes previous messages sent through the server.
      */
     public void deleteHistory() {
-        previousMessages.clear();
-        saveList("prev.ser", previousMessages);
+        history.clear();
     }
 
 
@@ -228,16 +520,14 @@ public class TcpChatServer implements Runnable {
      * @param user name of user to kick.
      */
     public void kickUser(String user) {
-        ClientHandler selected = null;
-        for (ClientHandler ch : clients) {
-            if (ch.getUsername().equals(user)) {
-                selected = ch;
+        tokens.revoke(user);
+        ClientHandler[] selected = sessions.get(user);
+        if (selected.length > 0) {
+            for (ClientHandler ch : selected) {
+                ch.sendMessage("kick#REKT");
+                ch.disconnect();
             }
-        }
-        if(selected != null){
-            selected.sendMessage("kick#REKT");
-            selected.disconnect();
-            selected.announce(String.format("%s has been kicked from the server by server admin!", user));
+            selected[0].announce(String.format("%s has been kicked from the server by server admin!", user));
             terminal.appendTextToTerminal(String.format("%s has been kicked.", user));
         } else
             terminal.appendTextToTerminal("Error: selected user is offline!");
@@ -251,12 +541,7 @@ public class TcpChatServer implements Runnable {
      * @param reason why you want to ban this user
      */
     public void banUser(String user, String reason) {
-        UserData target = null;
-        for (UserData ud : users) {
-            if (ud.getUsername().equals(user)) {
-                target = ud;
-            }
-        }
+        UserData target = users.get(user);
 
         if (target == null) {
             terminal.appendTextToTerminal("Error: No such user!");
@@ -266,24 +551,18 @@ public class TcpChatServer implements Runnable {
             terminal.appendTextToTerminal("Error: User is already banned!");
         else {
             target.setBanned(true);
-            ClientHandler selected = null;
-            for(ClientHandler ch : clients)
-            {
-                if(ch.getUsername().equals(user))
-                    selected = ch;
-            }
-            if(selected != null)
-                selected.sendMessage(String.format("ban#%s", reason));
+            users.update(target);
+            tokens.revoke(user);
             terminal.appendTextToTerminal(String.format("%s banned successfully!", user));
         }
 
-        for (ClientHandler ch : clients) {
-            if (ch.getUsername().equals(user)) {
-                ch.sendMessage(String.format("ban#%s", reason));
-                ch.disconnect();
-                ch.announce(String.format("%s has been banned by server admin!", user));
-            }
+        ClientHandler[] banned = sessions.get(user);
+        for (ClientHandler ch : banned) {
+            ch.sendMessage(String.format("ban#%s", reason));
+            ch.disconnect();
         }
+        if (banned.length > 0)
+            banned[0].announce(String.format("%s has been banned by server admin!", user));
     }
 
     /**
@@ -292,17 +571,14 @@ public class TcpChatServer implements Runnable {
      * @param user name of user to unban
      */
     public void removeBan(String user) {
-        UserData target = null;
-        for (UserData ud : users) {
-            if (ud.getUsername().equals(user))
-                target = ud;
-        }
+        UserData target = users.get(user);
 
         if (target == null)
             terminal.appendTextToTerminal("Error: No such user!");
         else {
             if (target.getBanned()) {
                 target.setBanned(false);
+                users.update(target);
                 terminal.appendTextToTerminal("Ban removed from user.");
             } else
                 terminal.appendTextToTerminal("Error: User is not banned.");
@@ -310,37 +586,41 @@ public class TcpChatServer implements Runnable {
     }
 
     /**
-     * Adds ip address to blacklist.
+     * Adds ip address or range to blacklist.
      *
-     * @param ip Ip address to ban
+     * @param ip Ip address (IPv4 or IPv6) or CIDR range like 203.0.113.0/24 to ban
      */
     public void banIp(String ip) {
-        if (ip.matches(IPADDRESS_PATTERN)) {
-            if (blacklist.contains(ip))
-                terminal.appendTextToTerminal("Error: IP address already banned.");
-            else {
-                blacklist.add(ip);
+        try {
+            if (blacklist.add(ip)) {
+                if (wal != null)
+                    wal.sync(wal.logIpBan(ip));
                 terminal.appendTextToTerminal("IP address added to blacklist!");
             }
-        } else
-            terminal.appendTextToTerminal("Error: This is not an IP address!");
+            else
+                terminal.appendTextToTerminal("Error: IP address already banned.");
+        } catch (IllegalArgumentException e) {
+            terminal.appendTextToTerminal("Error: " + e.getMessage());
+        }
     }
 
     /**
-     * Removes ip address from blacklist.
+     * Removes ip address or range from blacklist.
      *
-     * @param ip Ip address to unban
+     * @param ip Ip address or CIDR range to unban, as it was banned
      */
     public void unbanIp(String ip) {
-        if (ip.matches(IPADDRESS_PATTERN)) {
-            if (blacklist.contains(ip)) {
-                blacklist.remove(ip);
+        try {
+            if (blacklist.remove(ip)) {
+                if (wal != null)
+                    wal.sync(wal.logIpUnban(ip));
                 terminal.appendTextToTerminal("IP removed from blacklist!");
-            } else {
-                terminal.appendTextToTerminal("Error: IP address is not on blacklist!");
             }
-        } else
-            terminal.appendTextToTerminal("Error: This is not an IP address!");
+            else
+                terminal.appendTextToTerminal("Error: IP address is not on blacklist!");
+        } catch (IllegalArgumentException e) {
+            terminal.appendTextToTerminal("Error: " + e.getMessage());
+        }
     }
 
     /**
@@ -349,20 +629,13 @@ public class TcpChatServer implements Runnable {
      * @param user name of user to delete
      */
     public void deleteUser(String user) {
-        UserData toDelete = null;
-        for(UserData ud : users)
-        {
-            if(ud.getUsername().equals(user))
-                toDelete = ud;
-        }
-
-        if (toDelete == null)
+        if (users.remove(user) == null)
             terminal.appendTextToTerminal("Error: User doesn't exist!");
         else {
-            users.remove(toDelete);
-            if(ClientHandler.getOnline() != null){
-                ClientHandler.getOnline().remove(user);
-            }
+            presence.remove(user);
+            tokens.revoke(user);
+            if (inbox != null)
+                inbox.remove(user);
             terminal.appendTextToTerminal(String.format("%s removed from users!", user));
         }
     }
@@ -379,34 +652,27 @@ public class TcpChatServer implements Runnable {
      *
      */
     public void addUser(String name, String pass) {
-        boolean exists = false;
-        for (UserData u : users) {
-            if (u.getUsername().equals(name))
-                exists = true;
-        }
-
-        if (!exists)
-            users.add(new UserData(name, pass));
-
+        if (users.add(new UserData(name, pass)))
+            presence.add(name);
     }
 
     /**
      * FOR TESTING ONLY
      * Returns messages, that went through the server.
      *
-     * @return list of previous messages
+     * @return store of previous messages
      */
-    public ArrayList<String> getPreviousMessages() {
-        return previousMessages;
+    public HistoryStore getHistory() {
+        return history;
     }
 
     /**
      * FOR TESTING ONLY
-     * Returns ip addresses that are banned from the server.
+     * Returns ip addresses and ranges that are banned from the server.
      *
-     * @return list of banned ip addresses
+     * @return list of banned ip addresses and ranges
      */
     public ArrayList<String> getBlacklist() {
-        return blacklist;
+        return new ArrayList<>(blacklist.entries());
     }
 }
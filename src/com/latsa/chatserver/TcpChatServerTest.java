@@ -37,9 +37,9 @@ class TcpChatServerTest {
         UserData result = tcs.getUser("Test");
         assertNotNull(result);
 
-        tcs.getPreviousMessages().add("Test");
+        tcs.getHistory().append("Test");
         tcs.deleteHistory();
-        assertEquals(0, tcs.getPreviousMessages().size());
+        assertEquals(0, tcs.getHistory().size());
 
         tcs.banUser("Test", "For testing");
         assertTrue(tcs.getUser("Test").getBanned());
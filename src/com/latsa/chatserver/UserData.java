@@ -6,10 +6,16 @@ import java.io.Serializable;
  * Class that holds data of a user.
  */
 public class UserData implements Serializable {
+    /**
+     * Value computed from the class before the flags became volatile,
+     * so users.ser files written by older versions still load.
+     */
+    private static final long serialVersionUID = 6317972435884340944L;
+
     private String username;
     private String password;
-    private boolean isAdmin;
-    private boolean banned;
+    private volatile boolean isAdmin;
+    private volatile boolean banned;
 
     /**
      * Constructs a new data object.
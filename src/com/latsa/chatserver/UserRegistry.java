@@ -0,0 +1,52 @@
+package com.latsa.chatserver;
+
+import java.util.Collection;
+
+/**
+ * Registered users of the server, keyed by username. Implementations
+ * must be safe to use from many client threads at the same time.
+ */
+public interface UserRegistry {
+
+    /**
+     * Looks up a user.
+     *
+     * @param username name of the user
+     * @return data of the user, or null if there is no such user
+     */
+    UserData get(String username);
+
+    /**
+     * Adds a user, if the username is not taken yet. Of two concurrent
+     * registrations of the same name only one succeeds.
+     *
+     * @param user data of the new user
+     * @return if the user was added
+     */
+    boolean add(UserData user);
+
+    /**
+     * Removes a user.
+     *
+     * @param username name of the user
+     * @return data of the removed user, or null if there was no such user
+     */
+    UserData remove(String username);
+
+    /**
+     * Tells the registry, that the admin or ban flag of a user changed.
+     *
+     * @param user the changed user
+     */
+    void update(UserData user);
+
+    /**
+     * @return every registered user, in no particular order
+     */
+    Collection<UserData> getAll();
+
+    /**
+     * @return number of registered users
+     */
+    int size();
+}
@@ -16,6 +16,7 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A simple terminal like interface. Takes input and acts as a default output.
@@ -34,17 +35,26 @@ public class ServerTerminal extends JFrame {
 
     private final String welcome = "Welcome to my chat server!\n"
             + "Usage:\n"
-            + "start_server [port]              Starting server on port [port].\n"
+            + "start_server [port] [mode]       Starting server on port [port]. [mode] is thread,\n"
+            + "                                 virtual or nio, and can be left out.\n"
             + "stop_server                      Stopping server.\n"
             + "add_admin [username]             Adds admin privileges to [username]\n"
             + "remove_admin [username]          Removes admin privileges from [username]\n"
             + "show_users                       Show all registered users and their status.\n"
+            + "show_stats                       Shows traffic, compression and presence counters.\n"
+            + "set_max_connections [n]          Sets the most connections of the server.\n"
+            + "set_ip_connections [n]           Sets the most connections from one ip address.\n"
+            + "set_ip_rate [n] [burst]          Sets how many connections one ip address can open\n"
+            + "                                 in a second, and at once.\n"
             + "delete_history                   Deletes previous messages from storage.\n"
+            + "show_history [n]                 Shows the last [n] messages from the archive.\n"
+            + "show_history [yyyy-mm-dd] [n]    Shows [n] messages sent from the given day.\n"
             + "kick_user [username]             Kicks [username] from server.\n"
             + "ban_user [username] [reason]     Bans [username] from the server for the following\n"
             + "                                 reason: [reason].\n"
             + "remove_ban [username]            Removes ban from [username].\n"
             + "ban_ip [ip address]              Adds [ip address] to blacklist.\n"
+            + "ban_ip [ip address]/[prefix]     Adds the whole range to blacklist.\n"
             + "unban_ip [ip address]            Removes [ip address] from blacklist.\n"
             + "delete_user [username]           Deletes data of [username] from server.\n"
             + "show_msg                         Toggles showing messages going through the server.\n"
@@ -53,6 +63,7 @@ public class ServerTerminal extends JFrame {
             + "\n";
 
     private ArrayList<String> logs;
+    private ReentrantLock logLock;
 
     /**
      * Constructs a new terminal.
@@ -65,6 +76,7 @@ public class ServerTerminal extends JFrame {
         this.buffer = new CommandBuffer();
 
         logs = new ArrayList<>();
+        logLock = new ReentrantLock();
         format = new SimpleDateFormat("yyyy.MM.dd hh:mm:ss a");
 
         initWindow();
@@ -128,14 +140,23 @@ public class ServerTerminal extends JFrame {
     }
 
     /**
-     * Shows text on the terminal.
+     * Shows text on the terminal. Can be called from any thread, even
+     * from virtual ones: it doesn't use monitors, and the text area is
+     * only touched on the event dispatch thread.
      *
      * @param s text to display
      */
-    public synchronized void appendTextToTerminal(String s) {
-        terminalArea.append(s + "\n");
-        terminalArea.setCaretPosition(terminalArea.getDocument().getLength());
-        logs.add(String.format("%s :\t %s\n", format.format(new Date()), s));
+    public void appendTextToTerminal(String s) {
+        logLock.lock();
+        try {
+            logs.add(String.format("%s :\t %s\n", format.format(new Date()), s));
+        } finally {
+            logLock.unlock();
+        }
+        SwingUtilities.invokeLater(() -> {
+            terminalArea.append(s + "\n");
+            terminalArea.setCaretPosition(terminalArea.getDocument().getLength());
+        });
     }
 
     /**
@@ -203,8 +224,13 @@ public class ServerTerminal extends JFrame {
     private void saveLogs() {
         try {
             BufferedWriter bw = new BufferedWriter(new FileWriter("log.txt", true));
-            for (String s : logs)
-                bw.write(s);
+            logLock.lock();
+            try {
+                for (String s : logs)
+                    bw.write(s);
+            } finally {
+                logLock.unlock();
+            }
 
             bw.write("****************************************************************");
             bw.write("\n\n");
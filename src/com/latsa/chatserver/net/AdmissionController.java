@@ -0,0 +1,152 @@
+package com.latsa.chatserver.net;
+
+import com.latsa.chatserver.utils.TokenBucket;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides on the accept thread, if a new connection may come in. It caps
+ * the number of connections of the server and of every ip address, and
+ * limits how fast an address may connect with a token bucket.
+ * Connections are released from any thread, when they end.
+ */
+public class AdmissionController {
+
+    /**
+     * Number of admissions between two sweeps of the idle buckets.
+     */
+    private static final int SWEEP_INTERVAL = 1024;
+
+    private volatile int maxConnections;
+    private volatile int maxPerIp;
+    private volatile double ratePerIp;
+    private volatile double burstPerIp;
+    private volatile boolean ratesChanged;
+
+    private AtomicInteger connections;
+    private ConcurrentHashMap<String, Integer> perIp;
+    private HashMap<String, TokenBucket> buckets;
+    private int sinceSweep;
+    private LongAdder refused;
+
+    /**
+     * Constructs a new controller.
+     *
+     * @param maxConnections most connections of the server
+     * @param maxPerIp most connections from one ip address
+     * @param ratePerIp connections an ip address may open every second
+     * @param burstPerIp connections an ip address may open at once
+     */
+    public AdmissionController(int maxConnections, int maxPerIp, double ratePerIp, double burstPerIp) {
+        this.maxConnections = maxConnections;
+        this.maxPerIp = maxPerIp;
+        this.ratePerIp = ratePerIp;
+        this.burstPerIp = burstPerIp;
+        connections = new AtomicInteger();
+        perIp = new ConcurrentHashMap<>();
+        buckets = new HashMap<>();
+        refused = new LongAdder();
+    }
+
+    /**
+     * Checks if a new connection may come in, and counts it if so.
+     * Must be called by the accept thread only.
+     *
+     * @param address ip address of the client
+     * @return if the connection is admitted
+     */
+    public boolean admit(String address) {
+        if (ratesChanged) {
+            ratesChanged = false;
+            buckets.clear();
+        }
+        if (++sinceSweep >= SWEEP_INTERVAL)
+            sweep();
+
+        if (connections.get() >= maxConnections || perIp.getOrDefault(address, 0) >= maxPerIp) {
+            refused.increment();
+            return false;
+        }
+        TokenBucket bucket = buckets.computeIfAbsent(address, a -> new TokenBucket(ratePerIp, burstPerIp));
+        if (!bucket.tryAcquire()) {
+            refused.increment();
+            return false;
+        }
+        connections.incrementAndGet();
+        perIp.merge(address, 1, Integer::sum);
+        return true;
+    }
+
+    /**
+     * Forgets an admitted connection, that ended.
+     *
+     * @param address ip address of the client
+     */
+    public void release(String address) {
+        connections.decrementAndGet();
+        perIp.computeIfPresent(address, (a, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Drops the buckets of the addresses, that didn't connect for a while.
+     */
+    private void sweep() {
+        sinceSweep = 0;
+        Iterator<TokenBucket> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isFull())
+                it.remove();
+        }
+    }
+
+    /**
+     * @param maxConnections most connections of the server
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @param maxPerIp most connections from one ip address
+     */
+    public void setMaxPerIp(int maxPerIp) {
+        this.maxPerIp = maxPerIp;
+    }
+
+    /**
+     * Changes the connection rate of the addresses. Every address starts
+     * again with a full bucket.
+     *
+     * @param ratePerIp connections an ip address may open every second
+     * @param burstPerIp connections an ip address may open at once
+     */
+    public void setRatePerIp(double ratePerIp, double burstPerIp) {
+        this.ratePerIp = ratePerIp;
+        this.burstPerIp = burstPerIp;
+        ratesChanged = true;
+    }
+
+    /**
+     * @return number of admitted connections, that are still open
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * @return number of refused connections
+     */
+    public long getRefused() {
+        return refused.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connections: %d/%d, per ip: %d, rate per ip: %.1f/s (burst %.0f), refused: %d",
+                getConnections(), maxConnections, maxPerIp, ratePerIp, burstPerIp, getRefused());
+    }
+}
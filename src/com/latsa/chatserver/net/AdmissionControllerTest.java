@@ -0,0 +1,46 @@
+package com.latsa.chatserver.net;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests AdmissionController.
+ */
+class AdmissionControllerTest {
+
+    /**
+     * The caps count open connections, released ones make room again.
+     */
+    @Test
+    void testCaps() {
+        AdmissionController admission = new AdmissionController(3, 2, 1000, 1000);
+        assertTrue(admission.admit("10.0.0.1"));
+        assertTrue(admission.admit("10.0.0.1"));
+        assertFalse(admission.admit("10.0.0.1"));
+        assertTrue(admission.admit("10.0.0.2"));
+        assertFalse(admission.admit("10.0.0.3"));
+
+        admission.release("10.0.0.1");
+        assertTrue(admission.admit("10.0.0.3"));
+        assertEquals(3, admission.getConnections());
+        assertEquals(2, admission.getRefused());
+    }
+
+    /**
+     * An address reconnecting in a loop runs out of tokens.
+     */
+    @Test
+    void testRate() {
+        AdmissionController admission = new AdmissionController(100, 100, 0.001, 2);
+        assertTrue(admission.admit("10.0.0.1"));
+        admission.release("10.0.0.1");
+        assertTrue(admission.admit("10.0.0.1"));
+        admission.release("10.0.0.1");
+        assertFalse(admission.admit("10.0.0.1"));
+        assertTrue(admission.admit("10.0.0.2"));
+
+        admission.setRatePerIp(0.001, 5);
+        assertTrue(admission.admit("10.0.0.1"));
+    }
+}
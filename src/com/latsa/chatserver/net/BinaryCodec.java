@@ -0,0 +1,269 @@
+package com.latsa.chatserver.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes and decodes frames of the binary (v2) protocol. A frame is a
+ * 1 byte opcode, the varint length of the payload, then the payload.
+ * The payload is a list of fields, each one a varint length followed
+ * by UTF-8 bytes, so fields can contain any character, even '#'.
+ * <p>
+ * Varints are unsigned, 7 bits per byte, least significant group first,
+ * the highest bit of a byte tells if more bytes follow.
+ */
+public final class BinaryCodec {
+
+    /**
+     * Text frame. From the server it carries one field, the same text a v1
+     * frame would carry. From the client it carries one '#' separated v1
+     * command, for commands without their own opcode.
+     */
+    public static final int TEXT = 0x00;
+
+    /**
+     * hello, fields: the requested features.
+     */
+    public static final int HELLO = 0x01;
+
+    /**
+     * login, fields: username, password.
+     */
+    public static final int LOGIN = 0x02;
+
+    /**
+     * register, fields: username, password.
+     */
+    public static final int REGISTER = 0x03;
+
+    /**
+     * disconnect, no fields.
+     */
+    public static final int DISCONNECT = 0x04;
+
+    /**
+     * msg, fields: the message.
+     */
+    public static final int MSG = 0x05;
+
+    /**
+     * kick, fields: username.
+     */
+    public static final int KICK = 0x06;
+
+    /**
+     * ban, fields: username, reason.
+     */
+    public static final int BAN = 0x07;
+
+    /**
+     * Longest payload a frame can carry.
+     */
+    public static final int MAX_PAYLOAD = FrameCodec.MAX_PAYLOAD;
+
+    /**
+     * Longest header: opcode and a 3 byte varint.
+     */
+    public static final int MAX_HEADER = 4;
+
+    private static final String[] COMMANDS = {null, "hello", "login", "register", "disconnect", "msg", "kick", "ban"};
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Encodes a server frame, that carries the given text.
+     *
+     * @param text text of the frame
+     * @return buffer holding the frame, ready to be written
+     * @throws ProtocolException if the text is too long
+     */
+    public static ByteBuffer encode(String text) throws ProtocolException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int payload = varintSize(bytes.length) + bytes.length;
+        if (payload > MAX_PAYLOAD)
+            throw new ProtocolException("frame too long: " + payload + " bytes");
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(payload) + payload);
+        buf.put((byte) TEXT);
+        putVarint(buf, payload);
+        putVarint(buf, bytes.length);
+        buf.put(bytes);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Encodes a frame with the given opcode and fields.
+     *
+     * @param opcode opcode of the frame
+     * @param fields fields of the payload
+     * @return buffer holding the frame, ready to be written
+     * @throws ProtocolException if the fields are too long
+     */
+    public static ByteBuffer encode(int opcode, String... fields) throws ProtocolException {
+        byte[][] bytes = new byte[fields.length][];
+        int payload = 0;
+        for (int i = 0; i < fields.length; i++) {
+            bytes[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            payload += varintSize(bytes[i].length) + bytes[i].length;
+        }
+        if (payload > MAX_PAYLOAD)
+            throw new ProtocolException("frame too long: " + payload + " bytes");
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(payload) + payload);
+        buf.put((byte) opcode);
+        putVarint(buf, payload);
+        for (byte[] field : bytes) {
+            putVarint(buf, field.length);
+            buf.put(field);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Decodes the client frame at the position of the buffer into a command,
+     * the same way a v1 command would be split on '#'.
+     *
+     * @param buf buffer with received bytes
+     * @return the command, or null if the buffer doesn't hold the whole frame yet
+     * @throws ProtocolException if the frame is malformed
+     */
+    public static String[] decode(ByteBuffer buf) throws ProtocolException {
+        int start = buf.position();
+        if (buf.remaining() < 2)
+            return null;
+        int opcode = buf.get() & 0xFF;
+        int payload = getVarint(buf);
+        if (payload > MAX_PAYLOAD)
+            throw new ProtocolException("frame too long: " + payload + " bytes");
+        if (payload < 0 || buf.remaining() < payload) {
+            buf.position(start);
+            return null;
+        }
+        return fields(opcode, buf, buf.position() + payload);
+    }
+
+    /**
+     * Reads a client frame from a blocking stream and decodes it into a command.
+     *
+     * @param in stream of the socket
+     * @return the command
+     * @throws IOException if the stream is closed or the frame is malformed
+     */
+    public static String[] read(DataInputStream in) throws IOException {
+        int opcode = in.readUnsignedByte();
+        int payload = readVarint(in);
+        if (payload > MAX_PAYLOAD)
+            throw new ProtocolException("frame too long: " + payload + " bytes");
+        byte[] bytes = new byte[payload];
+        in.readFully(bytes);
+        return fields(opcode, ByteBuffer.wrap(bytes), payload);
+    }
+
+    /**
+     * Reads the fields of a payload, and moves the position of the buffer after it.
+     *
+     * @param opcode opcode of the frame
+     * @param buf buffer positioned at the payload
+     * @param end position where the payload ends
+     * @return the command
+     * @throws ProtocolException if a field is malformed
+     */
+    private static String[] fields(int opcode, ByteBuffer buf, int end) throws ProtocolException {
+        List<String> fields = new ArrayList<>(3);
+        while (buf.position() < end) {
+            int length = getVarint(buf);
+            if (length < 0 || buf.position() + length > end)
+                throw new ProtocolException("malformed field");
+            fields.add(new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8));
+            buf.position(buf.position() + length);
+        }
+        return command(opcode, fields);
+    }
+
+    /**
+     * Turns an opcode and its fields into a v1 style command.
+     *
+     * @param opcode opcode of the frame
+     * @param fields fields of the frame
+     * @return the command, its first element is the name of the command
+     */
+    private static String[] command(int opcode, List<String> fields) {
+        if (opcode == TEXT)
+            return fields.isEmpty() ? new String[]{""} : fields.get(0).split("#");
+        String[] cmd = new String[fields.size() + 1];
+        cmd[0] = opcode < COMMANDS.length ? COMMANDS[opcode] : "unknown";
+        for (int i = 0; i < fields.size(); i++)
+            cmd[i + 1] = fields.get(i);
+        return cmd;
+    }
+
+    /**
+     * @param value non-negative number
+     * @return bytes needed to write the number as a varint
+     */
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    /**
+     * Writes a varint in the buffer.
+     *
+     * @param buf buffer to write in
+     * @param value non-negative number
+     */
+    static void putVarint(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * Reads a varint from the buffer. At most 3 bytes are read, that
+     * is more than enough for the longest payload.
+     *
+     * @param buf buffer to read from
+     * @return the number, or -1 if the buffer ends before the varint
+     * @throws ProtocolException if the varint is longer than 3 bytes
+     */
+    static int getVarint(ByteBuffer buf) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < 21; shift += 7) {
+            if (!buf.hasRemaining())
+                return -1;
+            int b = buf.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new ProtocolException("varint too long");
+    }
+
+    /**
+     * Reads a varint from a blocking stream.
+     *
+     * @param in stream to read from
+     * @return the number
+     * @throws IOException if the stream is closed or the varint is too long
+     */
+    static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 21; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new ProtocolException("varint too long");
+    }
+}
@@ -0,0 +1,60 @@
+package com.latsa.chatserver.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests BinaryCodec.
+ */
+class BinaryCodecTest {
+
+    /**
+     * Fields can contain '#', and come back as a v1 style command.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testCommand() throws IOException {
+        ByteBuffer frame = BinaryCodec.encode(BinaryCodec.MSG, "Hash # in message");
+        String[] cmd = BinaryCodec.decode(frame);
+        assertEquals(2, cmd.length);
+        assertEquals("msg", cmd[0]);
+        assertEquals("Hash # in message", cmd[1]);
+        assertFalse(frame.hasRemaining());
+
+        frame.rewind();
+        cmd = BinaryCodec.read(new DataInputStream(new ByteArrayInputStream(frame.array(), 0, frame.limit())));
+        assertEquals("Hash # in message", cmd[1]);
+    }
+
+    /**
+     * Text frames are split like v1 commands.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testText() throws IOException {
+        String[] cmd = BinaryCodec.decode(BinaryCodec.encode(BinaryCodec.TEXT, "login#Test#Test"));
+        assertEquals(3, cmd.length);
+        assertEquals("login", cmd[0]);
+    }
+
+    /**
+     * An incomplete frame is left in the buffer.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testPartialFrame() throws IOException {
+        ByteBuffer frame = BinaryCodec.encode(BinaryCodec.LOGIN, "Test", new String(new char[300]));
+        frame.limit(frame.limit() - 1);
+        assertNull(BinaryCodec.decode(frame));
+        assertEquals(0, frame.position());
+    }
+}
@@ -0,0 +1,461 @@
+package com.latsa.chatserver.net;
+
+import com.latsa.chatserver.ClientHandler;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connection served by its own threads: a reader, that blocks on reading
+ * the socket, and a writer, that drains the outbound queue. The writer
+ * coalesces frames, so one write call carries many of them. The threads
+ * can be virtual ones, so the connection must not block inside
+ * synchronized code, that would pin the carrier thread.
+ * On a compressed connection the writer compresses each batch before
+ * writing it, and the reader reads through an inflating stream.
+ * <p>
+ * Frames and tasks of other threads are handled one at a time, in the
+ * order they came. A task is put in a queue, that the reader works off
+ * after its frame, or, while the reader waits for the socket, a thread of
+ * the executor. So the timer and the auth threads never wait for the
+ * handler.
+ */
+public class BlockingConnection implements ClientConnection, Runnable {
+
+    private Socket clientSock;
+    private DataInputStream dis;
+    private OutputStream out;
+    private ClientHandler handler;
+    private Executor executor;
+    private OutboundQueue outbound;
+    private volatile Protocol protocol;
+    private TransportStats stats;
+    private byte[] writeBuffer;
+    private int writeLength;
+    private int batchFrames;
+    private long latencyBudget;
+    private StreamCompressor compressor;
+    private int compressionLevel;
+    private volatile CompressionStats compressionStats;
+
+    private ReentrantLock pauseLock;
+    private Condition resumed;
+    private int pauses;
+    private ReentrantLock taskLock;
+    private Condition taskDone;
+    private ArrayDeque<Runnable> tasks;
+    private boolean running;
+    private long queuedTasks;
+    private long doneTasks;
+
+    private volatile boolean isConnected;
+    private volatile boolean closeRequested;
+    private AtomicBoolean lostReported;
+
+    /**
+     * Constructs a new connection on an accepted socket.
+     *
+     * @param clientSock socket of the client
+     * @param executor runs the reader and the writer of the connection on their own threads
+     * @param outbound queue of the frames waiting to be written
+     * @param stats counters of the written frames
+     * @param batchBytes bytes to collect, before they are written
+     * @param latencyBudget nanoseconds a frame may wait for others to be written with
+     */
+    public BlockingConnection(Socket clientSock, Executor executor, OutboundQueue outbound, TransportStats stats,
+                              int batchBytes, long latencyBudget) {
+        this.clientSock = clientSock;
+        this.executor = executor;
+        this.outbound = outbound;
+        this.protocol = Protocol.V1;
+        this.stats = stats;
+        this.writeBuffer = new byte[Math.max(batchBytes, 1)];
+        this.latencyBudget = latencyBudget;
+        try {
+            this.dis = new DataInputStream(clientSock.getInputStream());
+            this.out = clientSock.getOutputStream();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        pauseLock = new ReentrantLock();
+        resumed = pauseLock.newCondition();
+        lostReported = new AtomicBoolean(false);
+        taskLock = new ReentrantLock();
+        taskDone = taskLock.newCondition();
+        tasks = new ArrayDeque<>();
+        outbound.setResumeAction(this::resumeReading);
+        isConnected = true;
+    }
+
+    @Override
+    public void open(ClientHandler handler) {
+        this.handler = handler;
+        executor.execute(this::writeLoop);
+        executor.execute(this);
+    }
+
+    /**
+     * Reads frames until the connection is closed. If handling a frame
+     * fails, the connection is dropped, so the socket isn't left open.
+     */
+    @Override
+    public void run() {
+        try {
+            while (isConnected && !closeRequested) {
+                awaitResume();
+                String[] cmd = protocol.read(dis);
+                handle(() -> handler.onCommand(cmd));
+            }
+        } catch (IOException | InterruptedException e) {
+            // the socket is closed, either by us or by the client
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            if (!closeRequested)
+                lost();
+        }
+    }
+
+    /**
+     * Writes queued frames until the connection is closed. After a close
+     * request the remaining frames are written before closing the socket.
+     * <p>
+     * Frames are collected until the write buffer fills up or the queue
+     * runs empty. If the previous write carried more than one frame, the
+     * traffic is bursty, so the writer also waits for more frames until the
+     * latency budget of the first frame runs out.
+     */
+    private void writeLoop() {
+        try {
+            ByteBuffer frame;
+            boolean bursty = false;
+            while ((frame = outbound.take()) != null) {
+                long deadline = System.nanoTime() + latencyBudget;
+                int frames = 0;
+                int bytes = 0;
+                do {
+                    if (frame == OutboundQueue.START_COMPRESSION) {
+                        writeOut();
+                        compressor = new StreamCompressor(compressionLevel, compressionStats);
+                    } else {
+                        bytes += frame.remaining();
+                        append(frame);
+                        frames++;
+                    }
+                    if (bytes >= writeBuffer.length)
+                        break;
+                    long wait = bursty ? deadline - System.nanoTime() : 0;
+                    frame = outbound.poll(Math.max(wait, 0));
+                } while (frame != null);
+                writeOut();
+                bursty = frames > 1;
+            }
+        } catch (IOException | InterruptedException e) {
+            lost();
+            return;
+        } finally {
+            if (compressor != null)
+                compressor.end();
+        }
+        closeSocket();
+    }
+
+    /**
+     * Copies a frame in the write buffer, writes the buffer out if it is full.
+     *
+     * @param frame frame to write
+     * @throws IOException if the socket is broken
+     */
+    private void append(ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) {
+            if (writeLength == writeBuffer.length)
+                writeOut();
+            int length = Math.min(frame.remaining(), writeBuffer.length - writeLength);
+            frame.get(writeBuffer, writeLength, length);
+            writeLength += length;
+        }
+        batchFrames++;
+    }
+
+    /**
+     * Writes the content of the write buffer with one call, compressed
+     * if the connection is compressed.
+     *
+     * @throws IOException if the socket is broken
+     */
+    private void writeOut() throws IOException {
+        if (writeLength == 0)
+            return;
+        if (compressor != null) {
+            ByteBuffer compressed = compressor.compress(writeBuffer, 0, writeLength);
+            out.write(compressed.array(), 0, compressed.limit());
+            stats.recordWrite(batchFrames, compressed.limit());
+        } else {
+            out.write(writeBuffer, 0, writeLength);
+            stats.recordWrite(batchFrames, writeLength);
+        }
+        writeLength = 0;
+        batchFrames = 0;
+    }
+
+    @Override
+    public void send(String frame) {
+        try {
+            offer(protocol.encode(frame));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void send(Frame frame) {
+        try {
+            offer(frame.encode(protocol).duplicate());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Puts an encoded frame in the outbound queue.
+     *
+     * @param frame encoded frame
+     */
+    private void offer(ByteBuffer frame) {
+        switch (outbound.offer(frame)) {
+            case PAUSED:
+                pauseReading();
+                break;
+            case OVERFLOW:
+                closeSocket();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Runs on the reader, so the next frame is already read through the
+     * inflating stream. The writer starts compressing at the marker.
+     */
+    @Override
+    public void startCompression(int level) {
+        if (compressionStats != null)
+            return;
+        compressionLevel = level;
+        compressionStats = new CompressionStats();
+        dis = new DataInputStream(new StreamCompressor.InflatingStream(dis, compressionStats));
+        offer(OutboundQueue.START_COMPRESSION);
+    }
+
+    @Override
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    @Override
+    public void pauseReading() {
+        pauseLock.lock();
+        try {
+            pauses++;
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    @Override
+    public void resumeReading() {
+        pauseLock.lock();
+        try {
+            if (pauses > 0 && --pauses == 0)
+                resumed.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    /**
+     * Waits while reading is paused.
+     *
+     * @throws InterruptedException if the reader is interrupted
+     */
+    private void awaitResume() throws InterruptedException {
+        pauseLock.lock();
+        try {
+            while (pauses > 0 && isConnected)
+                resumed.await();
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        closeRequested = true;
+        outbound.close();
+    }
+
+    @Override
+    public void abort() {
+        lost();
+    }
+
+    /**
+     * Queues the task after the frames and tasks already waiting. If
+     * nothing is being handled, a thread of the executor works off the
+     * queue, so the calling thread never waits for the handler.
+     *
+     * @param task task to run
+     */
+    @Override
+    public void execute(Runnable task) {
+        taskLock.lock();
+        try {
+            queuedTasks++;
+            tasks.add(task);
+            if (running)
+                return;
+            running = true;
+        } finally {
+            taskLock.unlock();
+        }
+        try {
+            executor.execute(this::runTasks);
+        } catch (RejectedExecutionException e) {
+            // the server is stopping
+            runTasks();
+        }
+    }
+
+    /**
+     * Handles a frame on the reader. If a task is running on another
+     * thread, the frame is queued after it, and the reader waits until
+     * the frame is handled, so it doesn't read ahead of a pause.
+     *
+     * @param frame handles the frame
+     * @throws InterruptedException if the reader is interrupted
+     */
+    private void handle(Runnable frame) throws InterruptedException {
+        taskLock.lock();
+        try {
+            long ticket = ++queuedTasks;
+            tasks.add(frame);
+            if (running) {
+                while (doneTasks < ticket && isConnected)
+                    taskDone.await();
+                return;
+            }
+            running = true;
+        } finally {
+            taskLock.unlock();
+        }
+        runTasks();
+    }
+
+    /**
+     * Runs the queued frames and tasks, until the queue is empty.
+     * If one of them fails, the connection is dropped.
+     */
+    private void runTasks() {
+        while (true) {
+            Runnable task;
+            taskLock.lock();
+            try {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            } finally {
+                taskLock.unlock();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                lost();
+            }
+            taskLock.lock();
+            try {
+                doneTasks++;
+                taskDone.signalAll();
+            } finally {
+                taskLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The connection broke, or was dropped for being too slow.
+     * The handler is told only once, and not after a close request.
+     */
+    private void lost() {
+        closeSocket();
+        if (!closeRequested && lostReported.compareAndSet(false, true))
+            execute(handler::connectionLost);
+    }
+
+    /**
+     * Closes the socket, and wakes up the reader and the writer.
+     */
+    private void closeSocket() {
+        isConnected = false;
+        outbound.clear();
+        pauseLock.lock();
+        try {
+            resumed.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
+        taskLock.lock();
+        try {
+            taskDone.signalAll();
+        } finally {
+            taskLock.unlock();
+        }
+        try {
+            clientSock.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    @Override
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public boolean isBacklogged() {
+        return outbound.isBacklogged();
+    }
+
+    @Override
+    public void whenDrained(Runnable task) {
+        outbound.whenDrained(() -> execute(task));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isConnected && !closeRequested;
+    }
+
+    @Override
+    public String getAddress() {
+        return clientSock.getInetAddress().getHostAddress();
+    }
+}
@@ -0,0 +1,117 @@
+package com.latsa.chatserver.net;
+
+import com.latsa.chatserver.ClientHandler;
+
+/**
+ * Transport side of a connected client. The client handler only talks
+ * to the socket through this interface, so it does not have to know if
+ * the connection is served by its own thread or by an event loop.
+ */
+public interface ClientConnection {
+
+    /**
+     * Starts reading frames from the client and passing them to the handler.
+     *
+     * @param handler handler of this connection
+     */
+    void open(ClientHandler handler);
+
+    /**
+     * Sends a frame to the client.
+     *
+     * @param frame text of the frame
+     */
+    void send(String frame);
+
+    /**
+     * Sends a frame, that is shared by many clients. The frame is encoded
+     * for the protocol of this connection only once, the connection works
+     * on a duplicate of the shared bytes.
+     *
+     * @param frame frame to send
+     */
+    void send(Frame frame);
+
+    /**
+     * Switches the connection to another wire format. Frames sent after
+     * this call, and frames received after the current one are in the
+     * new format.
+     *
+     * @param protocol the new protocol
+     */
+    void setProtocol(Protocol protocol);
+
+    /**
+     * @return wire format of the connection
+     */
+    Protocol getProtocol();
+
+    /**
+     * Switches both directions of the connection to compressed streams.
+     * Frames queued before this call are sent uncompressed, later ones
+     * compressed. Bytes received after the current frame must be compressed.
+     *
+     * @param level DEFLATE level of the outgoing stream
+     */
+    void startCompression(int level);
+
+    /**
+     * @return counters of the compression, or null if the connection isn't compressed
+     */
+    CompressionStats getCompressionStats();
+
+    /**
+     * Stops reading from the client. Reading goes on, when it is resumed
+     * as many times as it was paused.
+     */
+    void pauseReading();
+
+    /**
+     * Resumes reading from the client.
+     */
+    void resumeReading();
+
+    /**
+     * Closes the connection after the already queued frames are sent.
+     */
+    void close();
+
+    /**
+     * Closes the connection right away, and forgets the queued frames.
+     * The handler is told, that the connection was lost.
+     */
+    void abort();
+
+    /**
+     * Runs a task one at a time with the frames passed to the handler, so
+     * the task doesn't race with them. It returns at once, the task runs
+     * later on a thread of the connection, never on the calling thread.
+     *
+     * @param task task to run
+     */
+    void execute(Runnable task);
+
+    /**
+     * @return if more is waiting to be written, than the low watermark of
+     * the outbound queue, so long output should wait until it drained
+     */
+    boolean isBacklogged();
+
+    /**
+     * Runs a task like {@link #execute(Runnable)}, once the outbound queue
+     * drained to the low watermark. A closed connection never runs it.
+     *
+     * @param task task to run
+     */
+    void whenDrained(Runnable task);
+
+    /**
+     * @return if the connection is still open
+     */
+    boolean isOpen();
+
+    /**
+     * @return ip address of the client
+     */
+    String getAddress();
+}
@@ -0,0 +1,120 @@
+package com.latsa.chatserver.net;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a compressed connection, in both directions.
+ */
+public class CompressionStats {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private AtomicLong plainOut;
+    private AtomicLong compressedOut;
+    private AtomicLong deflateNanos;
+    private AtomicLong compressedIn;
+    private AtomicLong plainIn;
+    private AtomicLong inflateNanos;
+
+    /**
+     * Constructs new counters, starting from zero.
+     */
+    public CompressionStats() {
+        plainOut = new AtomicLong();
+        compressedOut = new AtomicLong();
+        deflateNanos = new AtomicLong();
+        compressedIn = new AtomicLong();
+        plainIn = new AtomicLong();
+        inflateNanos = new AtomicLong();
+    }
+
+    /**
+     * Returns the CPU time of the calling thread, or the wall clock time
+     * if CPU time isn't available, like on virtual threads.
+     *
+     * @return time in nanoseconds, only differences mean anything
+     */
+    static long now() {
+        long cpu = THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+        return cpu >= 0 ? cpu : System.nanoTime();
+    }
+
+    /**
+     * Counts compressed outgoing data.
+     *
+     * @param plain bytes before compression
+     * @param compressed bytes after compression
+     * @param nanos time spent compressing
+     */
+    void recordDeflate(long plain, long compressed, long nanos) {
+        plainOut.addAndGet(plain);
+        compressedOut.addAndGet(compressed);
+        deflateNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Counts decompressed incoming data.
+     *
+     * @param compressed bytes before decompression
+     * @param plain bytes after decompression
+     * @param nanos time spent decompressing
+     */
+    void recordInflate(long compressed, long plain, long nanos) {
+        compressedIn.addAndGet(compressed);
+        plainIn.addAndGet(plain);
+        inflateNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return outgoing bytes before compression divided by bytes after it
+     */
+    public double getOutboundRatio() {
+        long compressed = compressedOut.get();
+        return compressed == 0 ? 0 : (double) plainOut.get() / compressed;
+    }
+
+    /**
+     * @return incoming bytes after decompression divided by bytes before it
+     */
+    public double getInboundRatio() {
+        long compressed = compressedIn.get();
+        return compressed == 0 ? 0 : (double) plainIn.get() / compressed;
+    }
+
+    /**
+     * @return outgoing bytes before compression
+     */
+    public long getPlainOut() {
+        return plainOut.get();
+    }
+
+    /**
+     * @return outgoing bytes after compression
+     */
+    public long getCompressedOut() {
+        return compressedOut.get();
+    }
+
+    /**
+     * @return CPU time spent compressing, in nanoseconds
+     */
+    public long getDeflateNanos() {
+        return deflateNanos.get();
+    }
+
+    /**
+     * @return CPU time spent decompressing, in nanoseconds
+     */
+    public long getInflateNanos() {
+        return inflateNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("out %d -> %d bytes (%.2fx, %d us cpu), in ratio %.2fx (%d us cpu)",
+                getPlainOut(), getCompressedOut(), getOutboundRatio(), getDeflateNanos() / 1000,
+                getInboundRatio(), getInflateNanos() / 1000);
+    }
+}
@@ -0,0 +1,121 @@
+package com.latsa.chatserver.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread, that serves many non-blocking connections with a selector.
+ * Other threads can hand work to the loop with execute().
+ */
+public class EventLoop implements Runnable {
+
+    private Selector selector;
+    private ConcurrentLinkedQueue<Runnable> tasks;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Constructs a new event loop and starts its thread.
+     *
+     * @param name name of the thread of the loop
+     * @throws IOException if the selector can't be opened
+     */
+    public EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        running = true;
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the thread of this loop.
+     *
+     * @param task task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop())
+            selector.wakeup();
+    }
+
+    /**
+     * @return if the calling thread is the thread of this loop
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return selector of this loop
+     */
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Waits for ready channels and lets their connections handle them.
+     * An exception while handling a channel drops only its connection,
+     * the loop goes on with the others.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            runTasks();
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable())
+                        connection.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        connection.onWritable();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    connection.abort();
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys())
+            ((NioConnection) key.attachment()).close();
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the tasks handed to this loop.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops the loop and closes its connections.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
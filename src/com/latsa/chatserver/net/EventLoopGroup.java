@@ -0,0 +1,42 @@
+package com.latsa.chatserver.net;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed number of event loops. New connections are spread over them
+ * in round robin.
+ */
+public class EventLoopGroup {
+
+    private EventLoop[] loops;
+    private AtomicInteger next;
+
+    /**
+     * Starts the given number of event loops.
+     *
+     * @param count number of loops
+     * @throws IOException if a selector can't be opened
+     */
+    public EventLoopGroup(int count) throws IOException {
+        loops = new EventLoop[Math.max(1, count)];
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new EventLoop("event-loop-" + i);
+        next = new AtomicInteger();
+    }
+
+    /**
+     * @return the loop that should serve the next connection
+     */
+    public EventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Stops every loop of the group.
+     */
+    public void shutdown() {
+        for (EventLoop loop : loops)
+            loop.shutdown();
+    }
+}
@@ -0,0 +1,51 @@
+package com.latsa.chatserver.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A server frame, that can be sent to many clients. It is encoded at most
+ * once for every protocol, when the first client speaking that protocol
+ * gets it, and all of them share the same read-only bytes.
+ */
+public final class Frame {
+
+    private final String text;
+    private final AtomicReferenceArray<ByteBuffer> encoded;
+
+    /**
+     * Constructs a new frame.
+     *
+     * @param text text of the frame
+     */
+    public Frame(String text) {
+        this.text = text;
+        this.encoded = new AtomicReferenceArray<>(Protocol.values().length);
+    }
+
+    /**
+     * @return text of the frame
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the frame encoded for the given protocol. Don't change the
+     * returned buffer, work on a duplicate of it.
+     *
+     * @param protocol protocol of the recipient
+     * @return read-only buffer holding the encoded frame
+     * @throws IOException if the text is too long for the protocol
+     */
+    public ByteBuffer encode(Protocol protocol) throws IOException {
+        ByteBuffer buf = encoded.get(protocol.ordinal());
+        if (buf == null) {
+            buf = protocol.encode(text).asReadOnlyBuffer();
+            if (!encoded.compareAndSet(protocol.ordinal(), null, buf))
+                buf = encoded.get(protocol.ordinal());
+        }
+        return buf;
+    }
+}
@@ -0,0 +1,127 @@
+package com.latsa.chatserver.net;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes frames of the chat protocol. A frame is exactly what
+ * DataOutputStream.writeUTF writes: a 2 byte big-endian length followed
+ * by the modified UTF-8 form of the string.
+ */
+public final class FrameCodec {
+
+    /**
+     * Size of the length field in front of every frame.
+     */
+    public static final int HEADER_LENGTH = 2;
+
+    /**
+     * Largest payload a frame can hold.
+     */
+    public static final int MAX_PAYLOAD = 65535;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encodes a string into a frame.
+     *
+     * @param s string to encode
+     * @return buffer holding the frame, ready to be written
+     * @throws UTFDataFormatException if the encoded string is too long
+     */
+    public static ByteBuffer encode(String s) throws UTFDataFormatException {
+        int length = s.length();
+        int encoded = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F)
+                encoded++;
+            else if (c > 0x07FF)
+                encoded += 3;
+            else
+                encoded += 2;
+        }
+        if (encoded > MAX_PAYLOAD)
+            throw new UTFDataFormatException("encoded string too long: " + encoded + " bytes");
+
+        byte[] bytes = new byte[HEADER_LENGTH + encoded];
+        bytes[0] = (byte) (encoded >>> 8);
+        bytes[1] = (byte) encoded;
+        int pos = HEADER_LENGTH;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                bytes[pos++] = (byte) c;
+            } else if (c > 0x07FF) {
+                bytes[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Returns the payload length of the frame at the position of the buffer,
+     * or -1 if the buffer doesn't hold the whole frame yet.
+     *
+     * @param buf buffer with received bytes
+     * @return payload length of the next frame or -1
+     */
+    public static int nextFrameLength(ByteBuffer buf) {
+        if (buf.remaining() < HEADER_LENGTH)
+            return -1;
+        int length = buf.getShort(buf.position()) & 0xFFFF;
+        if (buf.remaining() < HEADER_LENGTH + length)
+            return -1;
+        return length;
+    }
+
+    /**
+     * Decodes a modified UTF-8 payload. Reads length bytes from the
+     * position of the buffer and moves the position after them.
+     *
+     * @param buf buffer holding the payload
+     * @param length length of the payload in bytes
+     * @return decoded string
+     * @throws UTFDataFormatException if the payload is malformed
+     */
+    public static String decode(ByteBuffer buf, int length) throws UTFDataFormatException {
+        char[] chars = new char[length];
+        int count = 0;
+        int pos = buf.position();
+        int end = pos + length;
+        while (pos < end) {
+            int c = buf.get(pos) & 0xFF;
+            if (c < 0x80) {
+                chars[count++] = (char) c;
+                pos++;
+            } else if ((c >> 5) == 0x06) {
+                if (pos + 1 >= end)
+                    throw new UTFDataFormatException("partial character at end");
+                int c2 = buf.get(pos + 1);
+                if ((c2 & 0xC0) != 0x80)
+                    throw new UTFDataFormatException("malformed input around byte " + pos);
+                chars[count++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+                pos += 2;
+            } else if ((c >> 4) == 0x0E) {
+                if (pos + 2 >= end)
+                    throw new UTFDataFormatException("partial character at end");
+                int c2 = buf.get(pos + 1);
+                int c3 = buf.get(pos + 2);
+                if ((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80)
+                    throw new UTFDataFormatException("malformed input around byte " + pos);
+                chars[count++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+                pos += 3;
+            } else {
+                throw new UTFDataFormatException("malformed input around byte " + pos);
+            }
+        }
+        buf.position(end);
+        return new String(chars, 0, count);
+    }
+}
@@ -0,0 +1,49 @@
+package com.latsa.chatserver.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests FrameCodec.
+ */
+class FrameCodecTest {
+
+    /**
+     * Encoded frames must be the same as what writeUTF writes,
+     * and must decode to the original string.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testRoundTrip() throws IOException {
+        final String test = "msg#Hello \u00e1rv\u00edzt\u0171r\u0151 \u20ac\u0000!";
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new DataOutputStream(bos).writeUTF(test);
+        ByteBuffer encoded = FrameCodec.encode(test);
+        assertArrayEquals(bos.toByteArray(), encoded.array());
+
+        int length = FrameCodec.nextFrameLength(encoded);
+        assertEquals(encoded.limit() - FrameCodec.HEADER_LENGTH, length);
+        encoded.position(FrameCodec.HEADER_LENGTH);
+        assertEquals(test, FrameCodec.decode(encoded, length));
+    }
+
+    /**
+     * An incomplete frame must not be decoded.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testPartialFrame() throws IOException {
+        ByteBuffer encoded = FrameCodec.encode("login#Test#Test");
+        encoded.limit(encoded.limit() - 1);
+        assertEquals(-1, FrameCodec.nextFrameLength(encoded));
+    }
+}
@@ -0,0 +1,407 @@
+package com.latsa.chatserver.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Banned IPv4 and IPv6 addresses and CIDR ranges, kept in binary prefix
+ * tries, one per address family. Checking an address walks at most as
+ * many nodes as the address has bits, however many bans there are.
+ * <p>
+ * The tries are never changed in place: a change copies the nodes on its
+ * path and publishes the new root, so the accept thread checks addresses
+ * without any lock, while bans are added and removed by the terminal.
+ */
+public class IpBlacklist {
+
+    private static final Pattern IPV4 = Pattern.compile(
+            "^([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.([01]?\\d\\d?|2[0-4]\\d|25[0-5])$");
+    private static final Pattern IPV6 = Pattern.compile("^[0-9a-fA-F:.]*:[0-9a-fA-F:.]*$");
+
+    private static final int MAGIC = 0x49504254;
+    private static final int VERSION = 1;
+
+    /**
+     * Immutable node of a trie. A banned node bans every address under it.
+     */
+    private static final class Node {
+        private final Node zero;
+        private final Node one;
+        private final boolean banned;
+
+        private Node(Node zero, Node one, boolean banned) {
+            this.zero = zero;
+            this.one = one;
+            this.banned = banned;
+        }
+    }
+
+    private static final Node EMPTY = new Node(null, null, false);
+
+    private volatile Node v4;
+    private volatile Node v6;
+    private volatile int size;
+    private ReentrantLock writeLock;
+
+    /**
+     * Constructs an empty blacklist.
+     */
+    public IpBlacklist() {
+        writeLock = new ReentrantLock();
+    }
+
+    /**
+     * Checks an address against the bans. Never blocks.
+     *
+     * @param address address of a client
+     * @return if the address is banned, alone or by a range
+     */
+    public boolean contains(InetAddress address) {
+        return contains(address.getAddress());
+    }
+
+    /**
+     * Checks an address against the bans. Never blocks.
+     *
+     * @param address 4 or 16 bytes of an address
+     * @return if the address is banned, alone or by a range
+     */
+    public boolean contains(byte[] address) {
+        address = unmap(address);
+        Node node = address.length == 4 ? v4 : v6;
+        int bits = address.length * 8;
+        for (int depth = 0; node != null; depth++) {
+            if (node.banned)
+                return true;
+            if (depth == bits)
+                return false;
+            node = bit(address, depth) == 0 ? node.zero : node.one;
+        }
+        return false;
+    }
+
+    /**
+     * Bans an address or a range.
+     *
+     * @param cidr address, or range like 203.0.113.0/24
+     * @return false if it was already banned
+     * @throws IllegalArgumentException if it isn't an address or range
+     */
+    public boolean add(String cidr) {
+        byte[] address = parse(cidr);
+        return add(address, prefixLength(cidr, address));
+    }
+
+    /**
+     * Removes the ban of an address or range. Only a ban added with the
+     * same address and prefix length can be removed.
+     *
+     * @param cidr address, or range like 203.0.113.0/24
+     * @return false if it wasn't banned
+     * @throws IllegalArgumentException if it isn't an address or range
+     */
+    public boolean remove(String cidr) {
+        byte[] address = parse(cidr);
+        int prefix = prefixLength(cidr, address);
+        writeLock.lock();
+        try {
+            Node root = address.length == 4 ? v4 : v6;
+            if (!isBanned(root, address, prefix))
+                return false;
+            setRoot(address.length, remove(root, address, 0, prefix));
+            size--;
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Bans a range.
+     *
+     * @param address first address of the range
+     * @param prefix number of fixed bits
+     * @return false if it was already banned
+     */
+    private boolean add(byte[] address, int prefix) {
+        writeLock.lock();
+        try {
+            Node root = address.length == 4 ? v4 : v6;
+            if (isBanned(root, address, prefix))
+                return false;
+            setRoot(address.length, insert(root, address, 0, prefix));
+            size++;
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Publishes a new root.
+     *
+     * @param family 4 or 16, length of the addresses
+     * @param root the new root
+     */
+    private void setRoot(int family, Node root) {
+        if (family == 4)
+            v4 = root;
+        else
+            v6 = root;
+    }
+
+    /**
+     * @return if exactly this range is banned, not just covered by another one
+     */
+    private static boolean isBanned(Node node, byte[] address, int prefix) {
+        for (int depth = 0; node != null && depth < prefix; depth++)
+            node = bit(address, depth) == 0 ? node.zero : node.one;
+        return node != null && node.banned;
+    }
+
+    /**
+     * Copies the path of a range, with the ban set at its end.
+     */
+    private static Node insert(Node node, byte[] address, int depth, int prefix) {
+        if (node == null)
+            node = EMPTY;
+        if (depth == prefix)
+            return new Node(node.zero, node.one, true);
+        if (bit(address, depth) == 0)
+            return new Node(insert(node.zero, address, depth + 1, prefix), node.one, node.banned);
+        return new Node(node.zero, insert(node.one, address, depth + 1, prefix), node.banned);
+    }
+
+    /**
+     * Copies the path of a range, with the ban cleared at its end.
+     * Nodes left without a ban under them are cut off.
+     */
+    private static Node remove(Node node, byte[] address, int depth, int prefix) {
+        Node result;
+        if (depth == prefix)
+            result = new Node(node.zero, node.one, false);
+        else if (bit(address, depth) == 0)
+            result = new Node(remove(node.zero, address, depth + 1, prefix), node.one, node.banned);
+        else
+            result = new Node(node.zero, remove(node.one, address, depth + 1, prefix), node.banned);
+        return result.banned || result.zero != null || result.one != null ? result : null;
+    }
+
+    /**
+     * @return the bit of the address at the given index, counting from the highest
+     */
+    private static int bit(byte[] address, int index) {
+        return (address[index >> 3] >> (7 - (index & 7))) & 1;
+    }
+
+    /**
+     * Turns IPv4 addresses mapped to IPv6 back to IPv4.
+     *
+     * @param address 4 or 16 bytes of an address
+     * @return the IPv4 address if it was mapped, or the address itself
+     */
+    private static byte[] unmap(byte[] address) {
+        if (address.length != 16 || address[10] != (byte) 0xff || address[11] != (byte) 0xff)
+            return address;
+        for (int i = 0; i < 10; i++) {
+            if (address[i] != 0)
+                return address;
+        }
+        return Arrays.copyOfRange(address, 12, 16);
+    }
+
+    /**
+     * Parses the address of an address or range, and clears the bits
+     * outside the prefix. Host names are not looked up.
+     *
+     * @param cidr address, or range like 203.0.113.0/24
+     * @return 4 or 16 bytes of the first address of the range
+     * @throws IllegalArgumentException if it isn't an address or range
+     */
+    private static byte[] parse(String cidr) {
+        int slash = cidr.indexOf('/');
+        String ip = slash < 0 ? cidr : cidr.substring(0, slash);
+        byte[] address;
+        if (IPV4.matcher(ip).matches()) {
+            String[] parts = ip.split("\\.");
+            address = new byte[4];
+            for (int i = 0; i < 4; i++)
+                address[i] = (byte) Integer.parseInt(parts[i]);
+        } else if (IPV6.matcher(ip).matches()) {
+            try {
+                address = unmap(InetAddress.getByName(ip).getAddress());
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("This is not an IP address!");
+            }
+        } else {
+            throw new IllegalArgumentException("This is not an IP address!");
+        }
+        int prefix = prefixLength(cidr, address);
+        for (int i = prefix; i < address.length * 8; i++)
+            address[i >> 3] &= (byte) ~(1 << (7 - (i & 7)));
+        return address;
+    }
+
+    /**
+     * @return prefix length of the range, all bits for a single address
+     * @throws IllegalArgumentException if the prefix length is invalid
+     */
+    private static int prefixLength(String cidr, byte[] address) {
+        int bits = address.length * 8;
+        int slash = cidr.indexOf('/');
+        if (slash < 0)
+            return bits;
+        try {
+            int prefix = Integer.parseInt(cidr.substring(slash + 1));
+            if (prefix >= 0 && prefix <= bits)
+                return prefix;
+        } catch (NumberFormatException e) {
+            // falls through to the error
+        }
+        throw new IllegalArgumentException("Invalid prefix length!");
+    }
+
+    /**
+     * @return number of bans
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Lists the bans, single addresses without prefix length, ranges with it.
+     *
+     * @return the bans, IPv4 ones first
+     */
+    public List<String> entries() {
+        List<String> entries = new ArrayList<>();
+        for (byte[] record : records())
+            entries.add(format(Arrays.copyOfRange(record, 2, record.length), record[1] & 0xff));
+        return entries;
+    }
+
+    /**
+     * Lists the bans as records of a family byte, a prefix length byte and the address.
+     *
+     * @return the bans, IPv4 ones first
+     */
+    private List<byte[]> records() {
+        List<byte[]> records = new ArrayList<>();
+        collect(v4, new byte[4], 0, records);
+        collect(v6, new byte[16], 0, records);
+        return records;
+    }
+
+    /**
+     * Walks a trie and lists its bans.
+     */
+    private static void collect(Node node, byte[] address, int depth, List<byte[]> records) {
+        if (node == null)
+            return;
+        if (node.banned) {
+            byte[] record = new byte[2 + address.length];
+            record[0] = (byte) address.length;
+            record[1] = (byte) depth;
+            System.arraycopy(address, 0, record, 2, address.length);
+            records.add(record);
+        }
+        if (depth == address.length * 8)
+            return;
+        collect(node.zero, address, depth + 1, records);
+        address[depth >> 3] |= (byte) (1 << (7 - (depth & 7)));
+        collect(node.one, address, depth + 1, records);
+        address[depth >> 3] &= (byte) ~(1 << (7 - (depth & 7)));
+    }
+
+    /**
+     * @return text form of a range
+     */
+    private static String format(byte[] address, int prefix) {
+        String ip;
+        try {
+            ip = InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+        return prefix == address.length * 8 ? ip : ip + "/" + prefix;
+    }
+
+    /**
+     * Saves the bans. Every ban takes a family byte, a prefix length byte,
+     * and only the address bytes covered by the prefix.
+     *
+     * @param location where the file should be saved
+     */
+    public void save(String location) {
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(location)))) {
+            dos.writeInt(MAGIC);
+            dos.writeByte(VERSION);
+            writeTo(dos);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the bans to a stream, in the format of {@link #save(String)}
+     * without the file header. The tries are immutable, so this doesn't
+     * block anyone changing the bans meanwhile.
+     *
+     * @param dos stream to write to
+     * @throws IOException if the stream can't be written
+     */
+    public void writeTo(DataOutputStream dos) throws IOException {
+        List<byte[]> records = records();
+        dos.writeInt(records.size());
+        for (byte[] record : records)
+            dos.write(record, 0, 2 + ((record[1] & 0xff) + 7) / 8);
+    }
+
+    /**
+     * Loads the bans saved by {@link #save(String)}.
+     *
+     * @param location where the file is located
+     * @return the loaded bans
+     * @throws IOException if the file is missing or corrupt
+     */
+    public static IpBlacklist load(String location) throws IOException {
+        IpBlacklist blacklist = new IpBlacklist();
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(location)))) {
+            if (dis.readInt() != MAGIC || dis.readUnsignedByte() != VERSION)
+                throw new IOException("Not a blacklist file: " + location);
+            blacklist.readFrom(dis);
+        }
+        return blacklist;
+    }
+
+    /**
+     * Adds the bans written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @param dis stream to read from
+     * @throws IOException if the stream can't be read or is corrupt
+     */
+    public void readFrom(DataInputStream dis) throws IOException {
+        int count = dis.readInt();
+        for (int i = 0; i < count; i++) {
+            int family = dis.readUnsignedByte();
+            int prefix = dis.readUnsignedByte();
+            if ((family != 4 && family != 16) || prefix > family * 8)
+                throw new IOException("Corrupt blacklist");
+            byte[] address = new byte[family];
+            dis.readFully(address, 0, (prefix + 7) / 8);
+            add(address, prefix);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.latsa.chatserver.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests IpBlacklist.
+ */
+class IpBlacklistTest {
+
+    /**
+     * A range bans every address in it, and nothing outside it.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testRange() throws IOException {
+        IpBlacklist blacklist = new IpBlacklist();
+        assertTrue(blacklist.add("203.0.113.77/24"));
+        assertFalse(blacklist.add("203.0.113.0/24"));
+        assertTrue(blacklist.contains(InetAddress.getByName("203.0.113.1")));
+        assertTrue(blacklist.contains(InetAddress.getByName("203.0.113.255")));
+        assertFalse(blacklist.contains(InetAddress.getByName("203.0.114.0")));
+        assertTrue(blacklist.contains(InetAddress.getByName("::ffff:203.0.113.9")));
+        assertEquals("203.0.113.0/24", blacklist.entries().get(0));
+
+        assertFalse(blacklist.remove("203.0.113.1"));
+        assertTrue(blacklist.remove("203.0.113.0/24"));
+        assertFalse(blacklist.contains(InetAddress.getByName("203.0.113.1")));
+        assertEquals(0, blacklist.size());
+    }
+
+    /**
+     * IPv6 addresses and ranges survive saving and loading.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testSaveAndLoad() throws IOException {
+        IpBlacklist blacklist = new IpBlacklist();
+        blacklist.add("2001:db8::/32");
+        blacklist.add("192.168.0.1");
+        File file = File.createTempFile("blacklist", ".bin");
+        file.deleteOnExit();
+        blacklist.save(file.getPath());
+
+        IpBlacklist loaded = IpBlacklist.load(file.getPath());
+        assertEquals(blacklist.entries(), loaded.entries());
+        assertTrue(loaded.contains(InetAddress.getByName("2001:db8:1::1")));
+        assertFalse(loaded.contains(InetAddress.getByName("2001:db9::1")));
+        assertTrue(loaded.contains(InetAddress.getByName("192.168.0.1")));
+        assertThrows(IllegalArgumentException.class, () -> loaded.add("example.com"));
+        assertThrows(IllegalArgumentException.class, () -> loaded.add("10.0.0.0/33"));
+    }
+}
@@ -0,0 +1,459 @@
+package com.latsa.chatserver.net;
+
+import com.latsa.chatserver.ClientHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Non-blocking connection served by an event loop. Received bytes are
+ * collected until a whole frame arrives, outgoing frames are queued
+ * and written with gathering writes when the socket can take them.
+ * The loop flushes a connection once per round, after it handled every
+ * ready channel, so frames queued in the same round share a write call.
+ * On a compressed connection received bytes are inflated into the read
+ * buffer, and queued frames are compressed in batches before writing.
+ */
+public class NioConnection implements ClientConnection {
+
+    private SocketChannel channel;
+    private EventLoop loop;
+    private SelectionKey key;
+    private ClientHandler handler;
+    private String address;
+
+    private ByteBuffer readBuffer;
+    private OutboundQueue outbound;
+    private volatile Protocol protocol;
+    private TransportStats stats;
+    private ByteBuffer[] writeBatch;
+    private AtomicBoolean flushScheduled;
+    private int pauses;
+
+    private int compressionLevel;
+    private volatile CompressionStats compressionStats;
+    private StreamCompressor compressor;
+    private Inflater inflater;
+    private ByteBuffer compressedIn;
+    private ByteBuffer compressedOut;
+    private int compressedFrames;
+    private byte[] plainOut;
+
+    private volatile boolean isConnected;
+    private volatile boolean closeRequested;
+
+    /**
+     * Constructs a new connection on an accepted channel.
+     *
+     * @param channel channel of the client
+     * @param loop event loop that serves this connection
+     * @param outbound queue of the frames waiting to be written
+     * @param stats counters of the written frames
+     * @throws IOException if the channel can't be made non-blocking
+     */
+    public NioConnection(SocketChannel channel, EventLoop loop, OutboundQueue outbound, TransportStats stats)
+            throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.outbound = outbound;
+        this.protocol = Protocol.V1;
+        this.stats = stats;
+        this.writeBatch = new ByteBuffer[64];
+        this.address = channel.socket().getInetAddress().getHostAddress();
+        channel.configureBlocking(false);
+        readBuffer = ByteBuffer.allocate(Protocol.MAX_FRAME);
+        flushScheduled = new AtomicBoolean(false);
+        outbound.setResumeAction(() -> loop.execute(this::resumeReading));
+        isConnected = true;
+    }
+
+    @Override
+    public void open(ClientHandler handler) {
+        this.handler = handler;
+        loop.execute(this::register);
+    }
+
+    /**
+     * Registers the channel on the selector of the loop.
+     */
+    private void register() {
+        try {
+            key = channel.register(loop.getSelector(), 0, this);
+            updateInterest();
+            if (!outbound.isEmpty() || closeRequested)
+                flush();
+        } catch (ClosedChannelException e) {
+            lost();
+        }
+    }
+
+    /**
+     * Reads the available bytes and passes every complete frame to the handler.
+     */
+    void onReadable() {
+        int read;
+        try {
+            read = channel.read(inflater == null ? readBuffer : compressedIn);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            lost();
+            return;
+        }
+        processFrames();
+    }
+
+    /**
+     * Passes the complete frames of the read buffer to the handler,
+     * while reading isn't paused. On a compressed connection the read
+     * buffer is refilled from the received bytes, until they run out.
+     */
+    private void processFrames() {
+        do {
+            readBuffer.flip();
+            while (isConnected && pauses == 0) {
+                String[] cmd;
+                try {
+                    cmd = protocol.decode(readBuffer);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    lost();
+                    return;
+                }
+                if (cmd == null)
+                    break;
+                handler.onCommand(cmd);
+            }
+            readBuffer.compact();
+        } while (inflater != null && isConnected && pauses == 0 && inflateInput());
+    }
+
+    /**
+     * Inflates received bytes into the read buffer.
+     *
+     * @return if any byte was inflated
+     */
+    private boolean inflateInput() {
+        compressedIn.flip();
+        inflater.setInput(compressedIn.array(), compressedIn.position(), compressedIn.remaining());
+        int inflated;
+        try {
+            inflated = StreamCompressor.inflate(inflater, readBuffer, compressionStats);
+        } catch (DataFormatException e) {
+            e.printStackTrace();
+            lost();
+            return false;
+        }
+        compressedIn.position(compressedIn.limit() - inflater.getRemaining());
+        compressedIn.compact();
+        return inflated > 0;
+    }
+
+    /**
+     * The socket can take more bytes.
+     */
+    void onWritable() {
+        flush();
+    }
+
+    @Override
+    public void send(String frame) {
+        if (!isConnected || closeRequested)
+            return;
+        try {
+            offer(protocol.encode(frame));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void send(Frame frame) {
+        if (!isConnected || closeRequested)
+            return;
+        try {
+            offer(frame.encode(protocol).duplicate());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Puts an encoded frame in the outbound queue.
+     *
+     * @param frame encoded frame
+     */
+    private void offer(ByteBuffer frame) {
+        switch (outbound.offer(frame)) {
+            case ACCEPTED:
+                scheduleFlush();
+                break;
+            case PAUSED:
+                pauseReading();
+                scheduleFlush();
+                break;
+            case OVERFLOW:
+                loop.execute(this::lost);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Makes the loop write the queued frames, if it isn't going to already.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true))
+            loop.execute(this::flush);
+    }
+
+    /**
+     * Writes as much of the queued frames as the socket takes. Runs on the loop.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        if (!isConnected || key == null)
+            return;
+        try {
+            if (compressor == null)
+                writePlain();
+            if (compressor != null)
+                writeCompressed();
+        } catch (IOException e) {
+            lost();
+            return;
+        }
+
+        if (!hasPendingOutput() && closeRequested)
+            closeChannel();
+        else
+            updateInterest();
+    }
+
+    /**
+     * Writes queued frames, many with one gathering write, until the
+     * socket is full or the compression marker comes.
+     *
+     * @throws IOException if the socket is broken
+     */
+    private void writePlain() throws IOException {
+        try {
+            int count;
+            while ((count = outbound.peek(writeBatch)) > 0) {
+                if (writeBatch[0] == OutboundQueue.START_COMPRESSION) {
+                    outbound.remove();
+                    compressor = new StreamCompressor(compressionLevel, compressionStats);
+                    plainOut = new byte[16 * 1024];
+                    return;
+                }
+                for (int i = 1; i < count; i++) {
+                    if (writeBatch[i] == OutboundQueue.START_COMPRESSION)
+                        count = i;
+                }
+                long bytes = channel.write(writeBatch, 0, count);
+                int written = 0;
+                while (written < count && !writeBatch[written].hasRemaining())
+                    written++;
+                outbound.remove(written);
+                stats.recordWrite(written, bytes);
+                if (written < count)
+                    return;
+            }
+        } finally {
+            Arrays.fill(writeBatch, null);
+        }
+    }
+
+    /**
+     * Compresses queued frames in batches and writes them. A batch the
+     * socket didn't take is kept, and written before the next one.
+     *
+     * @throws IOException if the socket is broken
+     */
+    private void writeCompressed() throws IOException {
+        while (true) {
+            if (compressedOut != null && compressedOut.hasRemaining()) {
+                long bytes = channel.write(compressedOut);
+                boolean done = !compressedOut.hasRemaining();
+                stats.recordWrite(done ? compressedFrames : 0, bytes);
+                if (!done)
+                    return;
+            }
+            int length = 0;
+            compressedFrames = 0;
+            ByteBuffer frame;
+            while ((frame = outbound.peek()) != null && (length == 0 || length + frame.remaining() <= plainOut.length)) {
+                if (frame.remaining() > plainOut.length)
+                    plainOut = Arrays.copyOf(plainOut, frame.remaining());
+                int size = frame.remaining();
+                frame.get(plainOut, length, size);
+                length += size;
+                compressedFrames++;
+                outbound.remove();
+            }
+            if (compressedFrames == 0)
+                return;
+            compressedOut = compressor.compress(plainOut, 0, length);
+        }
+    }
+
+    /**
+     * @return if there are queued frames, or compressed bytes not written yet
+     */
+    private boolean hasPendingOutput() {
+        return !outbound.isEmpty() || (compressedOut != null && compressedOut.hasRemaining());
+    }
+
+    /**
+     * Sets the events the selector should wait for. Runs on the loop.
+     */
+    private void updateInterest() {
+        if (key == null || !key.isValid())
+            return;
+        int ops = 0;
+        if (pauses == 0)
+            ops |= SelectionKey.OP_READ;
+        if (hasPendingOutput())
+            ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    /**
+     * Runs on the loop, while the frame asking for compression is being
+     * handled. The bytes received after that frame are already compressed,
+     * they are moved over to the inflater. The flush starts compressing at the marker.
+     */
+    @Override
+    public void startCompression(int level) {
+        if (!loop.inLoop()) {
+            loop.execute(() -> startCompression(level));
+            return;
+        }
+        if (compressionStats != null)
+            return;
+        compressionLevel = level;
+        compressionStats = new CompressionStats();
+        inflater = StreamCompressor.newInflater();
+        compressedIn = ByteBuffer.allocate(readBuffer.capacity());
+        compressedIn.put(readBuffer);
+        offer(OutboundQueue.START_COMPRESSION);
+    }
+
+    @Override
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    @Override
+    public void pauseReading() {
+        if (!loop.inLoop()) {
+            loop.execute(this::pauseReading);
+            return;
+        }
+        pauses++;
+        updateInterest();
+    }
+
+    @Override
+    public void resumeReading() {
+        if (!loop.inLoop()) {
+            loop.execute(this::resumeReading);
+            return;
+        }
+        if (pauses > 0 && --pauses == 0) {
+            updateInterest();
+            if (key != null)
+                processFrames();
+        }
+    }
+
+    @Override
+    public void close() {
+        closeRequested = true;
+        outbound.close();
+        if (loop.inLoop())
+            flush();
+        else
+            loop.execute(this::flush);
+    }
+
+    @Override
+    public void abort() {
+        loop.execute(this::lost);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        loop.execute(task);
+    }
+
+    /**
+     * The client went away without saying goodbye, or was dropped
+     * for being too slow.
+     */
+    private void lost() {
+        if (isConnected) {
+            closeChannel();
+            if (!closeRequested && handler != null)
+                handler.connectionLost();
+        }
+    }
+
+    /**
+     * Closes the channel and forgets the queued frames.
+     */
+    private void closeChannel() {
+        isConnected = false;
+        outbound.clear();
+        if (compressor != null)
+            compressor.end();
+        if (inflater != null)
+            inflater.end();
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    @Override
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public boolean isBacklogged() {
+        return outbound.isBacklogged();
+    }
+
+    @Override
+    public void whenDrained(Runnable task) {
+        outbound.whenDrained(() -> execute(task));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isConnected && !closeRequested;
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+}
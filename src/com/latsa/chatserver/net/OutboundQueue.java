@@ -0,0 +1,411 @@
+package com.latsa.chatserver.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one client.
+ * Any thread can put frames in it without blocking, only the writer of
+ * the connection takes them out. When the queued bytes grow over the high
+ * watermark, the slow consumer policy decides what happens.
+ * Frames are accounted by their limit, so they must start at position 0.
+ * <p>
+ * Long output of the server itself, like the replay on login, shouldn't
+ * be queued at once: its producer sends while the queue is not
+ * {@link #isBacklogged() backlogged}, and goes on, when the queue
+ * {@link #whenDrained(Runnable) drained}. So it never counts against the
+ * slow consumer policy, only a client, that doesn't read, does.
+ */
+public class OutboundQueue {
+
+    /**
+     * Marker frame, after which the frames of the queue are compressed.
+     * It is never dropped, and takes no room in the queue.
+     */
+    public static final ByteBuffer START_COMPRESSION = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    /**
+     * Result of putting a frame in the queue.
+     */
+    public enum Offer {
+        /**
+         * The frame is queued.
+         */
+        ACCEPTED,
+
+        /**
+         * The frame is dropped, because the queue is paused.
+         */
+        DROPPED,
+
+        /**
+         * The frame is queued, but the queue is full and got paused.
+         * Reading from the client should stop until it resumes.
+         */
+        PAUSED,
+
+        /**
+         * The queue is full, the client should be disconnected.
+         */
+        OVERFLOW
+    }
+
+    private ArrayDeque<ByteBuffer> frames;
+    private long queuedBytes;
+    private long droppedFrames;
+    private int inFlight;
+    private int highWatermark;
+    private int lowWatermark;
+    private SlowConsumerPolicy policy;
+    private boolean paused;
+    private boolean closed;
+    private Runnable resumeAction;
+    private Runnable drainAction;
+
+    private ReentrantLock lock;
+    private Condition notEmpty;
+
+    /**
+     * Constructs a new queue.
+     *
+     * @param highWatermark queued bytes, over which the policy kicks in
+     * @param lowWatermark queued bytes, under which a paused queue resumes
+     * @param policy what to do with a full queue
+     */
+    public OutboundQueue(int highWatermark, int lowWatermark, SlowConsumerPolicy policy) {
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+        this.policy = policy;
+        frames = new ArrayDeque<>();
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+    }
+
+    /**
+     * Sets what should run, when a paused queue drained to the low watermark.
+     *
+     * @param resumeAction action to run on the writer thread
+     */
+    public void setResumeAction(Runnable resumeAction) {
+        this.resumeAction = resumeAction;
+    }
+
+    /**
+     * @return if more bytes are queued than the low watermark
+     */
+    public boolean isBacklogged() {
+        lock.lock();
+        try {
+            return queuedBytes > lowWatermark;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs an action once, when the queued bytes drop to the low watermark,
+     * on the thread, that took the frames out. If they are not over it, the
+     * action runs at once. A closed queue never runs it.
+     *
+     * @param action action to run, replaces the one waiting, if any
+     */
+    public void whenDrained(Runnable action) {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            if (queuedBytes > lowWatermark) {
+                drainAction = action;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        action.run();
+    }
+
+    /**
+     * Puts a frame at the end of the queue.
+     *
+     * @param frame encoded frame
+     * @return what happened to the frame
+     */
+    public Offer offer(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (closed)
+                return Offer.DROPPED;
+            if (paused && frame != START_COMPRESSION) {
+                droppedFrames++;
+                return Offer.DROPPED;
+            }
+            frames.add(frame);
+            queuedBytes += frame.limit();
+            notEmpty.signal();
+            if (queuedBytes <= highWatermark)
+                return Offer.ACCEPTED;
+
+            switch (policy) {
+                case DROP_OLDEST:
+                    dropOldest();
+                    return Offer.ACCEPTED;
+                case PAUSE:
+                    paused = true;
+                    return Offer.PAUSED;
+                default:
+                    return Offer.OVERFLOW;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops frames from the front until the queue shrinks to the low watermark.
+     * The frames peeked by the writer and not removed yet are kept, at least
+     * the first one, as the writer may be in the middle of writing them.
+     */
+    private void dropOldest() {
+        Iterator<ByteBuffer> it = frames.iterator();
+        for (int i = 0; i < Math.max(1, inFlight) && it.hasNext(); i++)
+            it.next();
+        while (queuedBytes > lowWatermark && it.hasNext()) {
+            ByteBuffer frame = it.next();
+            if (frame == START_COMPRESSION)
+                continue;
+            queuedBytes -= frame.limit();
+            it.remove();
+            droppedFrames++;
+        }
+    }
+
+    /**
+     * @return first frame of the queue without removing it, or null
+     */
+    public ByteBuffer peek() {
+        lock.lock();
+        try {
+            return frames.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the first frames of the queue in the batch without removing them,
+     * so they can be written with one gathering write. They are not dropped,
+     * until the next {@link #remove(int)}.
+     *
+     * @param batch array to fill with frames
+     * @return number of frames put in the batch
+     */
+    public int peek(ByteBuffer[] batch) {
+        lock.lock();
+        try {
+            int count = 0;
+            Iterator<ByteBuffer> it = frames.iterator();
+            while (count < batch.length && it.hasNext())
+                batch[count++] = it.next();
+            inFlight = count;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the first frame of the queue, after it has been written.
+     */
+    public void remove() {
+        remove(1);
+    }
+
+    /**
+     * Removes the first frames of the queue, after they have been written.
+     * The rest of the peeked frames can be dropped again, except the first.
+     *
+     * @param count number of frames to remove
+     */
+    public void remove(int count) {
+        boolean resumed = false;
+        Runnable drained;
+        lock.lock();
+        try {
+            inFlight = 0;
+            for (int i = 0; i < count; i++) {
+                ByteBuffer frame = frames.poll();
+                if (frame == null)
+                    break;
+                resumed |= removed(frame);
+            }
+            drained = drained();
+        } finally {
+            lock.unlock();
+        }
+        if (resumed && resumeAction != null)
+            resumeAction.run();
+        if (drained != null)
+            drained.run();
+    }
+
+    /**
+     * Takes the first frame out of the queue, waits for one if the
+     * queue is empty.
+     *
+     * @return the first frame, or null if the queue is closed and empty
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public ByteBuffer take() throws InterruptedException {
+        ByteBuffer frame;
+        boolean resumed;
+        Runnable drained;
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed)
+                notEmpty.await();
+            frame = frames.poll();
+            if (frame == null)
+                return null;
+            resumed = removed(frame);
+            drained = drained();
+        } finally {
+            lock.unlock();
+        }
+        if (resumed && resumeAction != null)
+            resumeAction.run();
+        if (drained != null)
+            drained.run();
+        return frame;
+    }
+
+    /**
+     * Takes the first frame out of the queue, waits at most the given
+     * time for one if the queue is empty.
+     *
+     * @param timeoutNanos how long to wait, 0 means no waiting
+     * @return the first frame, or null if none arrived in time
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public ByteBuffer poll(long timeoutNanos) throws InterruptedException {
+        ByteBuffer frame;
+        boolean resumed;
+        Runnable drained;
+        lock.lock();
+        try {
+            long nanos = timeoutNanos;
+            while (frames.isEmpty() && !closed && nanos > 0)
+                nanos = notEmpty.awaitNanos(nanos);
+            frame = frames.poll();
+            if (frame == null)
+                return null;
+            resumed = removed(frame);
+            drained = drained();
+        } finally {
+            lock.unlock();
+        }
+        if (resumed && resumeAction != null)
+            resumeAction.run();
+        if (drained != null)
+            drained.run();
+        return frame;
+    }
+
+    /**
+     * Accounts a removed frame. Must hold the lock.
+     *
+     * @param frame the removed frame
+     * @return if the queue was paused and can resume now
+     */
+    private boolean removed(ByteBuffer frame) {
+        queuedBytes -= frame.limit();
+        if (paused && queuedBytes <= lowWatermark) {
+            paused = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes the drain action, if the queue drained enough for it. Must hold the lock.
+     *
+     * @return the action to run, or null
+     */
+    private Runnable drained() {
+        if (drainAction == null || queuedBytes > lowWatermark)
+            return null;
+        Runnable action = drainAction;
+        drainAction = null;
+        return action;
+    }
+
+    /**
+     * Closes the queue. Already queued frames can still be taken,
+     * new ones are dropped.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            drainAction = null;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue and forgets the queued frames.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            queuedBytes = 0;
+            inFlight = 0;
+            drainAction = null;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return if there is no queued frame
+     */
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of bytes waiting to be written
+     */
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of frames dropped because of the slow consumer policy
+     */
+    public long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
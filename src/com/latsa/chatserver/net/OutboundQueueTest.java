@@ -0,0 +1,138 @@
+package com.latsa.chatserver.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests OutboundQueue with every slow consumer policy.
+ */
+class OutboundQueueTest {
+
+    /**
+     * @return a 10 byte frame
+     */
+    private ByteBuffer frame() {
+        return ByteBuffer.allocate(10);
+    }
+
+    /**
+     * Oldest frames are dropped down to the low watermark, but the
+     * first one is kept.
+     */
+    @Test
+    void testDropOldest() {
+        OutboundQueue queue = new OutboundQueue(50, 20, SlowConsumerPolicy.DROP_OLDEST);
+        ByteBuffer first = frame();
+        assertEquals(OutboundQueue.Offer.ACCEPTED, queue.offer(first));
+        for (int i = 0; i < 5; i++)
+            assertEquals(OutboundQueue.Offer.ACCEPTED, queue.offer(frame()));
+
+        assertEquals(20, queue.getQueuedBytes());
+        assertEquals(4, queue.getDroppedFrames());
+        assertSame(first, queue.peek());
+    }
+
+    /**
+     * Frames peeked for a gathering write are not dropped, until they are removed.
+     */
+    @Test
+    void testDropOldestKeepsPeeked() {
+        OutboundQueue queue = new OutboundQueue(50, 20, SlowConsumerPolicy.DROP_OLDEST);
+        ByteBuffer[] batch = new ByteBuffer[3];
+        for (int i = 0; i < 3; i++)
+            queue.offer(frame());
+        assertEquals(3, queue.peek(batch));
+        for (int i = 0; i < 3; i++)
+            queue.offer(frame());
+
+        assertEquals(3, queue.getDroppedFrames());
+        assertEquals(30, queue.getQueuedBytes());
+        queue.remove(3);
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * The session is dropped, when the high watermark is exceeded.
+     */
+    @Test
+    void testDropSession() {
+        OutboundQueue queue = new OutboundQueue(20, 10, SlowConsumerPolicy.DROP_SESSION);
+        assertEquals(OutboundQueue.Offer.ACCEPTED, queue.offer(frame()));
+        assertEquals(OutboundQueue.Offer.ACCEPTED, queue.offer(frame()));
+        assertEquals(OutboundQueue.Offer.OVERFLOW, queue.offer(frame()));
+    }
+
+    /**
+     * A paused queue drops new frames, and resumes at the low watermark.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    void testPause() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(20, 10, SlowConsumerPolicy.PAUSE);
+        int[] resumed = new int[1];
+        queue.setResumeAction(() -> resumed[0]++);
+
+        queue.offer(frame());
+        queue.offer(frame());
+        assertEquals(OutboundQueue.Offer.PAUSED, queue.offer(frame()));
+        assertEquals(OutboundQueue.Offer.DROPPED, queue.offer(frame()));
+
+        queue.take();
+        assertEquals(0, resumed[0]);
+        queue.take();
+        assertEquals(1, resumed[0]);
+        assertEquals(OutboundQueue.Offer.ACCEPTED, queue.offer(frame()));
+    }
+
+    /**
+     * The drain action runs once, when the queue drops to the low
+     * watermark, and at once, if it isn't over it.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    void testWhenDrained() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(50, 20, SlowConsumerPolicy.DROP_SESSION);
+        int[] drained = new int[1];
+        queue.offer(frame());
+        queue.offer(frame());
+        assertFalse(queue.isBacklogged());
+        queue.whenDrained(() -> drained[0]++);
+        assertEquals(1, drained[0]);
+
+        queue.offer(frame());
+        assertTrue(queue.isBacklogged());
+        queue.whenDrained(() -> drained[0]++);
+        assertEquals(1, drained[0]);
+        queue.take();
+        assertEquals(2, drained[0]);
+        queue.take();
+        assertEquals(2, drained[0]);
+
+        queue.offer(frame());
+        queue.offer(frame());
+        queue.whenDrained(() -> drained[0]++);
+        queue.close();
+        queue.take();
+        assertEquals(2, drained[0]);
+    }
+
+    /**
+     * A closed queue gives out its frames, then null.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    void testClose() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(100, 10, SlowConsumerPolicy.DROP_SESSION);
+        queue.offer(frame());
+        queue.close();
+        assertEquals(OutboundQueue.Offer.DROPPED, queue.offer(frame()));
+        assertNotNull(queue.take());
+        assertNull(queue.take());
+    }
+}
@@ -0,0 +1,89 @@
+package com.latsa.chatserver.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire formats a connection can speak. Every connection starts with V1,
+ * and can switch to V2 after the client asked for it with hello#v2.
+ */
+public enum Protocol {
+
+    /**
+     * '#' separated strings in writeUTF frames.
+     */
+    V1 {
+        @Override
+        public ByteBuffer encode(String text) throws IOException {
+            return FrameCodec.encode(text);
+        }
+
+        @Override
+        public String[] decode(ByteBuffer buf) throws IOException {
+            int length = FrameCodec.nextFrameLength(buf);
+            if (length < 0)
+                return null;
+            buf.position(buf.position() + FrameCodec.HEADER_LENGTH);
+            return FrameCodec.decode(buf, length).split("#");
+        }
+
+        @Override
+        public String[] read(DataInputStream in) throws IOException {
+            return in.readUTF().split("#");
+        }
+    },
+
+    /**
+     * Binary frames with opcodes and varint lengths, see BinaryCodec.
+     */
+    V2 {
+        @Override
+        public ByteBuffer encode(String text) throws IOException {
+            return BinaryCodec.encode(text);
+        }
+
+        @Override
+        public String[] decode(ByteBuffer buf) throws IOException {
+            return BinaryCodec.decode(buf);
+        }
+
+        @Override
+        public String[] read(DataInputStream in) throws IOException {
+            return BinaryCodec.read(in);
+        }
+    };
+
+    /**
+     * Longest frame any of the protocols can receive.
+     */
+    public static final int MAX_FRAME = FrameCodec.MAX_PAYLOAD + BinaryCodec.MAX_HEADER;
+
+    /**
+     * Encodes a server frame carrying the given text.
+     *
+     * @param text text of the frame
+     * @return buffer holding the frame, ready to be written
+     * @throws IOException if the text is too long
+     */
+    public abstract ByteBuffer encode(String text) throws IOException;
+
+    /**
+     * Decodes the frame at the position of the buffer into a command,
+     * and moves the position after it.
+     *
+     * @param buf buffer with received bytes
+     * @return the command, or null if the buffer doesn't hold the whole frame yet
+     * @throws IOException if the frame is malformed
+     */
+    public abstract String[] decode(ByteBuffer buf) throws IOException;
+
+    /**
+     * Reads a frame from a blocking stream and decodes it into a command.
+     *
+     * @param in stream of the socket
+     * @return the command
+     * @throws IOException if the stream is closed or the frame is malformed
+     */
+    public abstract String[] read(DataInputStream in) throws IOException;
+}
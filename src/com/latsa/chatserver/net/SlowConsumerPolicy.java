@@ -0,0 +1,24 @@
+package com.latsa.chatserver.net;
+
+/**
+ * What happens when the outbound queue of a client grows over the
+ * high watermark, because the client doesn't read fast enough.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * The oldest queued frames are dropped until the queue shrinks
+     * to the low watermark.
+     */
+    DROP_OLDEST,
+
+    /**
+     * The client is disconnected.
+     */
+    DROP_SESSION,
+
+    /**
+     * Reading from the client stops, and new frames for it are dropped,
+     * until its queue drains to the low watermark.
+     */
+    PAUSE
+}
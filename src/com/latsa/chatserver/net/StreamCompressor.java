@@ -0,0 +1,154 @@
+package com.latsa.chatserver.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses the outgoing byte stream of a connection, that switched on
+ * compression with hello#deflate. The stream is raw DEFLATE (no zlib
+ * header), both sides start with the same preset dictionary, and every
+ * write is sync flushed, so the client can decode it right away.
+ * Incoming data from the client must be compressed the same way.
+ */
+public class StreamCompressor {
+
+    /**
+     * Preset dictionary of both directions, made of strings, that are
+     * frequent in the traffic of the server. Clients must use the same one.
+     */
+    public static final byte[] DICTIONARY = (
+            "Error: Invalid command" + "Error: Wrong credentials!" + "ban#REKT" + "kick#REKT"
+            + "disconnect" + "register#" + "login#" + "hello#" + "snapshot_chunk#"
+            + " has been kicked from the server!" + " has been banned from the server!"
+            + " disconnected from server." + " left the server!" + " joined the server!"
+            + "#Offline" + "#Online" + "user#" + "(admin)# " + "Me(admin)#  " + "Me#  " + "msg#"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private Deflater deflater;
+    private byte[] output;
+    private CompressionStats stats;
+
+    /**
+     * Constructs a new compressor.
+     *
+     * @param level compression level, 1 to 9
+     * @param stats counters of the connection
+     */
+    public StreamCompressor(int level, CompressionStats stats) {
+        this.stats = stats;
+        deflater = new Deflater(level, true);
+        deflater.setDictionary(DICTIONARY);
+        output = new byte[4096];
+    }
+
+    /**
+     * Compresses the bytes and sync flushes the stream.
+     *
+     * @param data bytes to compress
+     * @param offset where the bytes start
+     * @param length number of bytes
+     * @return the compressed bytes, valid until the next call
+     */
+    public ByteBuffer compress(byte[] data, int offset, int length) {
+        long start = CompressionStats.now();
+        deflater.setInput(data, offset, length);
+        int size = 0;
+        while (true) {
+            size += deflater.deflate(output, size, output.length - size, Deflater.SYNC_FLUSH);
+            if (size < output.length)
+                break;
+            byte[] bigger = new byte[output.length * 2];
+            System.arraycopy(output, 0, bigger, 0, size);
+            output = bigger;
+        }
+        stats.recordDeflate(length, size, CompressionStats.now() - start);
+        return ByteBuffer.wrap(output, 0, size);
+    }
+
+    /**
+     * Frees the native memory of the compressor.
+     */
+    public void end() {
+        deflater.end();
+    }
+
+    /**
+     * Creates an inflater for the incoming stream of a connection.
+     *
+     * @return raw inflater with the preset dictionary
+     */
+    public static Inflater newInflater() {
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY);
+        return inflater;
+    }
+
+    /**
+     * Inflates from an array into a buffer, and counts it.
+     *
+     * @param inflater inflater with input
+     * @param out buffer to inflate into, backed by an array
+     * @param stats counters of the connection
+     * @return number of inflated bytes
+     * @throws DataFormatException if the stream is corrupt
+     */
+    static int inflate(Inflater inflater, ByteBuffer out, CompressionStats stats) throws DataFormatException {
+        long start = CompressionStats.now();
+        long before = inflater.getBytesRead();
+        int n = inflater.inflate(out.array(), out.arrayOffset() + out.position(), out.remaining());
+        out.position(out.position() + n);
+        stats.recordInflate(inflater.getBytesRead() - before, n, CompressionStats.now() - start);
+        return n;
+    }
+
+    /**
+     * Stream, that decompresses the incoming data of a blocking connection.
+     */
+    static class InflatingStream extends InflaterInputStream {
+
+        private CompressionStats stats;
+        private long fillNanos;
+
+        /**
+         * @param in stream of the socket
+         * @param stats counters of the connection
+         */
+        InflatingStream(InputStream in, CompressionStats stats) {
+            super(in, newInflater(), 1024);
+            this.stats = stats;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = CompressionStats.now();
+            long before = inf.getBytesRead();
+            fillNanos = 0;
+            int n = super.read(b, off, len);
+            if (n > 0)
+                stats.recordInflate(inf.getBytesRead() - before, n, CompressionStats.now() - start - fillNanos);
+            return n;
+        }
+
+        /**
+         * Reads from the socket, without counting the waiting as inflating.
+         */
+        @Override
+        protected void fill() throws IOException {
+            long start = CompressionStats.now();
+            super.fill();
+            fillNanos += CompressionStats.now() - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+}
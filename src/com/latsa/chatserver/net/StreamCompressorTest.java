@@ -0,0 +1,48 @@
+package com.latsa.chatserver.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests StreamCompressor.
+ */
+class StreamCompressorTest {
+
+    /**
+     * Every sync flushed batch can be decoded on its own, in order.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testRoundTrip() throws IOException {
+        CompressionStats stats = new CompressionStats();
+        StreamCompressor compressor = new StreamCompressor(1, stats);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(plain);
+            dos.writeUTF("user#alice#Online");
+            dos.writeUTF("alice joined the server! " + i);
+            ByteBuffer compressed = compressor.compress(plain.toByteArray(), 0, plain.size());
+            wire.write(compressed.array(), 0, compressed.limit());
+        }
+        compressor.end();
+        assertTrue(stats.getCompressedOut() < stats.getPlainOut());
+
+        DataInputStream dis = new DataInputStream(new StreamCompressor.InflatingStream(
+                new ByteArrayInputStream(wire.toByteArray()), stats));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("user#alice#Online", dis.readUTF());
+            assertEquals("alice joined the server! " + i, dis.readUTF());
+        }
+        assertTrue(stats.getInboundRatio() > 1);
+    }
+}
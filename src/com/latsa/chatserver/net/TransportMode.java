@@ -0,0 +1,22 @@
+package com.latsa.chatserver.net;
+
+/**
+ * The ways the server can serve its clients.
+ */
+public enum TransportMode {
+    /**
+     * Every client gets its own platform thread, that blocks on reading.
+     */
+    THREAD,
+
+    /**
+     * Every client gets its own virtual thread, that blocks on reading.
+     * Needs Java 21 or newer.
+     */
+    VIRTUAL,
+
+    /**
+     * Clients are served by a few selector based event loops.
+     */
+    NIO
+}
@@ -0,0 +1,63 @@
+package com.latsa.chatserver.net;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the outgoing traffic of all connections of the server.
+ */
+public class TransportStats {
+
+    private LongAdder framesWritten;
+    private LongAdder bytesWritten;
+    private LongAdder writeCalls;
+
+    /**
+     * Constructs new counters, starting from zero.
+     */
+    public TransportStats() {
+        framesWritten = new LongAdder();
+        bytesWritten = new LongAdder();
+        writeCalls = new LongAdder();
+    }
+
+    /**
+     * Counts a write call on a socket.
+     *
+     * @param frames number of frames finished by the call
+     * @param bytes number of bytes written by the call
+     */
+    public void recordWrite(int frames, long bytes) {
+        framesWritten.add(frames);
+        bytesWritten.add(bytes);
+        writeCalls.increment();
+    }
+
+    /**
+     * @return number of frames written
+     */
+    public long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * @return number of write calls on sockets
+     */
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    /**
+     * @return average number of frames written by one write call
+     */
+    public double getFramesPerWrite() {
+        long calls = getWriteCalls();
+        return calls == 0 ? 0 : (double) getFramesWritten() / calls;
+    }
+}
@@ -0,0 +1,51 @@
+package com.latsa.chatserver.net;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates virtual threads for client connections. The project is built
+ * for an older language level, so the virtual thread executor is looked
+ * up at runtime, and the virtual mode works only on Java 21 or newer.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return if the running JVM supports virtual threads
+     */
+    public static boolean isAvailable() {
+        return lookup() != null;
+    }
+
+    /**
+     * Creates an executor, that runs every task on a new virtual thread.
+     *
+     * @return the executor
+     * @throws UnsupportedOperationException if the JVM has no virtual threads
+     */
+    public static ExecutorService newExecutor() {
+        Method factory = lookup();
+        if (factory == null)
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or newer");
+        try {
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads can't be created", e);
+        }
+    }
+
+    /**
+     * @return the Executors.newVirtualThreadPerTaskExecutor method or null
+     */
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
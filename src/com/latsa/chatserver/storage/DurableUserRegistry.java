@@ -0,0 +1,64 @@
+package com.latsa.chatserver.storage;
+
+import com.latsa.chatserver.UserData;
+import com.latsa.chatserver.UserRegistry;
+
+import java.util.Collection;
+
+/**
+ * User registry, that logs every change of another registry in the
+ * write-ahead log. Lookups go straight to the other registry.
+ */
+public class DurableUserRegistry implements UserRegistry {
+
+    private UserRegistry users;
+    private WriteAheadLog wal;
+
+    /**
+     * Constructs a registry logging the changes of the given one.
+     *
+     * @param users registry holding the users
+     * @param wal log of the changes
+     */
+    public DurableUserRegistry(UserRegistry users, WriteAheadLog wal) {
+        this.users = users;
+        this.wal = wal;
+    }
+
+    @Override
+    public UserData get(String username) {
+        return users.get(username);
+    }
+
+    @Override
+    public boolean add(UserData user) {
+        if (!users.add(user))
+            return false;
+        wal.sync(wal.logUser(user));
+        return true;
+    }
+
+    @Override
+    public UserData remove(String username) {
+        UserData removed = users.remove(username);
+        if (removed != null)
+            wal.sync(wal.logUserRemoved(username));
+        return removed;
+    }
+
+    @Override
+    public void update(UserData user) {
+        users.update(user);
+        wal.sync(wal.logUser(user));
+    }
+
+    @Override
+    public Collection<UserData> getAll() {
+        return users.getAll();
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+}
@@ -0,0 +1,24 @@
+package com.latsa.chatserver.storage;
+
+/**
+ * When the write-ahead log forces its records to the disk.
+ */
+public enum FsyncPolicy {
+    /**
+     * Every change waits until its record is on the disk. Records, that
+     * arrive while the disk is busy, are forced together with one fsync.
+     */
+    ALWAYS,
+
+    /**
+     * Records are forced to the disk at most once in the fsync interval,
+     * a crash can lose the changes of the last interval.
+     */
+    INTERVAL,
+
+    /**
+     * Records are written, but the operating system decides, when they
+     * reach the disk.
+     */
+    NEVER
+}
@@ -0,0 +1,286 @@
+package com.latsa.chatserver.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The messages, that mentioned a user while she/he was offline. Only the
+ * sequence numbers are kept, the messages themselves are in the history
+ * and the archive.
+ * <p>
+ * Every user with waiting messages has a file of her/his own on the disk,
+ * named after the hex digits of the UTF-8 username. The file is a ring of
+ * a fixed number of slots: capacity (int), number of added messages (long),
+ * then a sequence number (long) in every slot. When the ring is full, the
+ * oldest message is overwritten, so a user takes a bounded space however
+ * long she/he is away. The file is deleted, when the messages are delivered.
+ * <p>
+ * Adding a message doesn't touch the disk: it is only noted in memory, and
+ * a writer thread of the inbox appends the noted messages of a user with
+ * one open of her/his file. The files are guarded by a lock per user (a
+ * fixed set of locks shared by the hashes of the names), so the writer and
+ * a delivery to another user don't wait for each other. Taking the
+ * messages of a user also takes the ones, that are not written yet.
+ */
+public class Inbox {
+
+    private static final String SUFFIX = ".inbox";
+    private static final int HEADER = 4 + 8;
+    private static final int STRIPES = 64;
+
+    private final Path dir;
+    private final int capacity;
+    private final ReentrantLock[] fileLocks;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final LinkedHashMap<String, ArrayDeque<Long>> pending;
+    private final Thread writer;
+    private boolean closed;
+    private long added;
+    private long delivered;
+
+    /**
+     * Opens the inbox directory, it is created if it doesn't exist, and
+     * starts the writer.
+     *
+     * @param directory directory of the inbox files
+     * @param capacity most messages kept for a user
+     * @throws IOException if the directory can't be created
+     */
+    public Inbox(String directory, int capacity) throws IOException {
+        this.dir = Paths.get(directory);
+        this.capacity = capacity;
+        Files.createDirectories(dir);
+        fileLocks = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            fileLocks[i] = new ReentrantLock();
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+        pending = new LinkedHashMap<>();
+        writer = new Thread(this::writeLoop, "inbox-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Adds a message to the inbox of a user. The file is written later
+     * by the writer.
+     *
+     * @param username name of the user
+     * @param seq sequence number of the message
+     */
+    public void add(String username, long seq) {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            ArrayDeque<Long> seqs = pending.computeIfAbsent(username, name -> new ArrayDeque<>());
+            seqs.add(seq);
+            if (seqs.size() > capacity)
+                seqs.poll();
+            added++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the messages of a user, and empties her/his inbox.
+     *
+     * @param username name of the user
+     * @return sequence numbers of the messages, oldest first
+     */
+    public long[] take(String username) {
+        Path path = path(username);
+        ReentrantLock fileLock = fileLock(username);
+        fileLock.lock();
+        try {
+            ArrayDeque<Long> unwritten = takePending(username);
+            List<Long> seqs = new ArrayList<>();
+            if (Files.exists(path)) {
+                ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+                Files.delete(path);
+                int slots = file.getInt();
+                long count = file.getLong();
+                int n = (int) Math.min(count, slots);
+                for (int i = 0; i < n; i++)
+                    seqs.add(file.getLong(HEADER + (int) ((count - n + i) % slots) * 8));
+            }
+            if (unwritten != null)
+                seqs.addAll(unwritten);
+            int from = Math.max(0, seqs.size() - capacity);
+            long[] taken = new long[seqs.size() - from];
+            for (int i = 0; i < taken.length; i++)
+                taken[i] = seqs.get(from + i);
+            lock.lock();
+            try {
+                delivered += taken.length;
+            } finally {
+                lock.unlock();
+            }
+            return taken;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return new long[0];
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the inbox of a user.
+     *
+     * @param username name of the user
+     */
+    public void remove(String username) {
+        ReentrantLock fileLock = fileLock(username);
+        fileLock.lock();
+        try {
+            takePending(username);
+            Files.deleteIfExists(path(username));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the noted messages, and stops the writer.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Appends the noted messages to the files, user by user, until the
+     * inbox is closed and everything is written.
+     */
+    private void writeLoop() {
+        while (true) {
+            List<String> names;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed)
+                    notEmpty.awaitUninterruptibly();
+                if (pending.isEmpty())
+                    return;
+                names = new ArrayList<>(pending.keySet());
+            } finally {
+                lock.unlock();
+            }
+            for (String name : names) {
+                ReentrantLock fileLock = fileLock(name);
+                fileLock.lock();
+                try {
+                    ArrayDeque<Long> seqs = takePending(name);
+                    if (seqs != null)
+                        append(name, seqs);
+                } finally {
+                    fileLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes messages in the ring of a user. The lock of the user's file
+     * must be held.
+     *
+     * @param username name of the user
+     * @param seqs sequence numbers of the messages, oldest first
+     */
+    private void append(String username, ArrayDeque<Long> seqs) {
+        try (FileChannel channel = FileChannel.open(path(username), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            int slots = capacity;
+            long count = 0;
+            if (channel.size() >= HEADER) {
+                channel.read(header, 0);
+                header.flip();
+                slots = header.getInt();
+                count = header.getLong();
+            }
+            ByteBuffer slot = ByteBuffer.allocate(8);
+            for (long seq : seqs) {
+                channel.write(slot.putLong(0, seq).clear(), HEADER + (count % slots) * 8);
+                count++;
+            }
+            channel.write(header.clear().putInt(slots).putLong(count).flip(), 0);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param username name of a user
+     * @return the noted messages of the user, that are not written yet,
+     * or null if there are none
+     */
+    private ArrayDeque<Long> takePending(String username) {
+        lock.lock();
+        try {
+            return pending.remove(username);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param username name of a user
+     * @return lock of the user's file
+     */
+    private ReentrantLock fileLock(String username) {
+        return fileLocks[(username.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * @param username name of a user
+     * @return file of the inbox of the user
+     */
+    private Path path(String username) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : username.getBytes(StandardCharsets.UTF_8))
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return dir.resolve(name.append(SUFFIX).toString());
+    }
+
+    /**
+     * @return number of the added and the delivered messages
+     */
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("inbox messages added: %d, delivered: %d, not written yet: %d", added, delivered,
+                    pending.values().stream().mapToInt(ArrayDeque::size).sum());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.latsa.chatserver.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests Inbox.
+ */
+class InboxTest {
+
+    /**
+     * Only the latest messages are kept, and taking them empties the inbox,
+     * also after it is opened again.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testBounded() throws IOException {
+        Path dir = Files.createTempDirectory("inbox");
+        Inbox inbox = new Inbox(dir.toString(), 3);
+        for (long seq = 1; seq <= 5; seq++)
+            inbox.add("álice", seq);
+        inbox.add("bob", 9);
+        inbox.close();
+        Inbox reopened = new Inbox(dir.toString(), 3);
+        assertArrayEquals(new long[]{3, 4, 5}, reopened.take("álice"));
+        assertArrayEquals(new long[0], reopened.take("álice"));
+
+        reopened.remove("bob");
+        assertArrayEquals(new long[0], reopened.take("bob"));
+        reopened.close();
+        Files.delete(dir);
+    }
+
+    /**
+     * Taking the messages gets the written and the not yet written ones,
+     * in order, whatever the writer is doing at the time.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testTakeWhileWriting() throws IOException {
+        Path dir = Files.createTempDirectory("inbox");
+        Inbox inbox = new Inbox(dir.toString(), 1000);
+        long next = 1;
+        for (int round = 0; round < 50; round++) {
+            long first = next;
+            for (int i = 0; i < 20; i++)
+                inbox.add("bob", next++);
+            long[] taken = inbox.take("bob");
+            assertEquals(20, taken.length);
+            for (int i = 0; i < taken.length; i++)
+                assertEquals(first + i, taken[i]);
+        }
+        inbox.close();
+        Files.delete(dir);
+    }
+}
@@ -0,0 +1,145 @@
+package com.latsa.chatserver.storage;
+
+import com.latsa.chatserver.HistoryStore;
+import com.latsa.chatserver.UserData;
+import com.latsa.chatserver.UserRegistry;
+import com.latsa.chatserver.net.IpBlacklist;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The files of the older versions of the server: serialized lists of the
+ * users, the previous messages and the banned addresses, and the binary
+ * history and blacklist files, that replaced some of them. They are moved
+ * into the first snapshot once.
+ * <p>
+ * Every file is read before anything is changed, and the old files are
+ * only deleted, after the snapshot holding them is on the disk. If any of
+ * them can't be read, nothing is migrated and all of them are kept.
+ */
+public class LegacyFiles {
+
+    private static final String USERS = "users.ser";
+    private static final String PREVIOUS = "prev.ser";
+    private static final String HISTORY = "history.bin";
+    private static final String BLACKLIST_LIST = "blacklist.ser";
+    private static final String BLACKLIST = "blacklist.bin";
+    private static final String[] NAMES = {USERS, PREVIOUS, HISTORY, BLACKLIST_LIST, BLACKLIST};
+
+    private LegacyFiles() {
+    }
+
+    /**
+     * @param dir directory of the server
+     * @return if there are files of the older versions in the directory
+     */
+    public static boolean exist(Path dir) {
+        for (String name : NAMES) {
+            if (Files.exists(dir.resolve(name)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves the old files into the first snapshot, with log sequence number 0.
+     *
+     * @param dir directory of the server
+     * @param snapshot where the snapshot should be saved
+     * @param users empty registry to add the users to
+     * @param blacklist empty blacklist to add the banned addresses to
+     * @param history empty store to add the messages to
+     * @return names of the old files, that couldn't be deleted after the migration
+     * @throws IOException if a file can't be read or the snapshot can't be written,
+     *                     the old files are kept then
+     */
+    public static List<String> migrate(Path dir, String snapshot, UserRegistry users, IpBlacklist blacklist,
+                                       HistoryStore history) throws IOException {
+        List<UserData> oldUsers = new ArrayList<>();
+        for (Object user : readList(dir.resolve(USERS)))
+            oldUsers.add(cast(user, UserData.class, USERS));
+
+        IpBlacklist oldBlacklist;
+        if (Files.exists(dir.resolve(BLACKLIST))) {
+            oldBlacklist = IpBlacklist.load(dir.resolve(BLACKLIST).toString());
+        } else {
+            oldBlacklist = new IpBlacklist();
+            try {
+                for (Object ip : readList(dir.resolve(BLACKLIST_LIST)))
+                    oldBlacklist.add(cast(ip, String.class, BLACKLIST_LIST));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt " + BLACKLIST_LIST, e);
+            }
+        }
+
+        List<String> messages = new ArrayList<>();
+        if (!Files.exists(dir.resolve(HISTORY))) {
+            for (Object message : readList(dir.resolve(PREVIOUS)))
+                messages.add(cast(message, String.class, PREVIOUS));
+        }
+
+        for (UserData ud : oldUsers)
+            users.add(ud);
+        ByteArrayOutputStream bans = new ByteArrayOutputStream();
+        oldBlacklist.writeTo(new DataOutputStream(bans));
+        blacklist.readFrom(new DataInputStream(new ByteArrayInputStream(bans.toByteArray())));
+        if (Files.exists(dir.resolve(HISTORY)))
+            history.load(dir.resolve(HISTORY).toString());
+        for (String message : messages)
+            history.append(message);
+        Snapshot.write(snapshot, 0, users, blacklist, history);
+
+        List<String> kept = new ArrayList<>();
+        for (String name : NAMES) {
+            try {
+                Files.deleteIfExists(dir.resolve(name));
+            } catch (IOException e) {
+                e.printStackTrace();
+                kept.add(name);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Reads a serialized list.
+     *
+     * @param path the file
+     * @return the elements of the list, empty if the file doesn't exist
+     * @throws IOException if the file can't be read, or isn't a list
+     */
+    private static List<?> readList(Path path) throws IOException {
+        if (!Files.exists(path))
+            return new ArrayList<>();
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))) {
+            return cast(ois.readObject(), ArrayList.class, path.getFileName().toString());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Corrupt " + path.getFileName(), e);
+        }
+    }
+
+    /**
+     * @param value an object read from a file
+     * @param type the expected type
+     * @param name name of the file
+     * @param <T> the expected type
+     * @return the object
+     * @throws IOException if the object has another type
+     */
+    private static <T> T cast(Object value, Class<T> type, String name) throws IOException {
+        if (!type.isInstance(value))
+            throw new IOException("Corrupt " + name + ": unexpected " + (value == null ? null : value.getClass()));
+        return type.cast(value);
+    }
+}
@@ -0,0 +1,85 @@
+package com.latsa.chatserver.storage;
+
+import com.latsa.chatserver.HistoryStore;
+import com.latsa.chatserver.InMemoryUserRegistry;
+import com.latsa.chatserver.UserRegistry;
+import com.latsa.chatserver.net.IpBlacklist;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests LegacyFiles.
+ */
+class LegacyFilesTest {
+
+    /**
+     * users.ser with alice (admin) and bob, written by the UserData class
+     * of the versions before the snapshots.
+     */
+    private static final String USERS_SER = "rO0ABXNyABNqYXZhLnV0aWwuQXJyYXlMaXN0eIHSHZnHYZ0DAAFJAARzaXpleHAAAAACdwQAAAAC"
+            + "c3IAHWNvbS5sYXRzYS5jaGF0c2VydmVyLlVzZXJEYXRhV63ydNWYdtACAARaAAZiYW5uZWRaAAdpc0FkbWluTAAIcGFzc3dvcmR0"
+            + "ABJMamF2YS9sYW5nL1N0cmluZztMAAh1c2VybmFtZXEAfgADeHAAAXQADSQyYSQxMCRzYWx0JDF0AAVhbGljZXNxAH4AAgAAdAAN"
+            + "JDJhJDEwJHNhbHQkMnQAA2JvYng=";
+
+    /**
+     * The users of an old install end up in the snapshot, and the old file
+     * is deleted only after that.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testMigrate() throws IOException {
+        Path dir = Files.createTempDirectory("legacy");
+        Files.write(dir.resolve("users.ser"), Base64.getDecoder().decode(USERS_SER));
+        String snapshot = dir.resolve("server.snapshot").toString();
+        assertTrue(LegacyFiles.exist(dir));
+
+        UserRegistry users = new InMemoryUserRegistry(new ArrayList<>());
+        assertEquals(List.of(), LegacyFiles.migrate(dir, snapshot, users, new IpBlacklist(), history()));
+        assertEquals(2, users.size());
+        assertTrue(users.get("alice").getIsAdmin());
+        assertEquals("$2a$10$salt$2", users.get("bob").getPassword());
+        assertFalse(LegacyFiles.exist(dir));
+
+        UserRegistry read = new InMemoryUserRegistry(new ArrayList<>());
+        Snapshot.read(snapshot, read, new IpBlacklist(), history());
+        assertEquals(2, read.size());
+        Files.delete(dir.resolve("server.snapshot"));
+        Files.delete(dir);
+    }
+
+    /**
+     * If one of the old files is unreadable, nothing is migrated and
+     * every old file is kept.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testUnreadableKept() throws IOException {
+        Path dir = Files.createTempDirectory("legacy");
+        Files.write(dir.resolve("users.ser"), Base64.getDecoder().decode(USERS_SER));
+        Files.write(dir.resolve("prev.ser"), new byte[]{1, 2, 3});
+        String snapshot = dir.resolve("server.snapshot").toString();
+
+        assertThrows(IOException.class, () -> LegacyFiles.migrate(dir, snapshot,
+                new InMemoryUserRegistry(new ArrayList<>()), new IpBlacklist(), history()));
+        assertTrue(Files.exists(dir.resolve("users.ser")));
+        assertTrue(Files.exists(dir.resolve("prev.ser")));
+        assertFalse(Files.exists(dir.resolve("server.snapshot")));
+        Files.delete(dir.resolve("users.ser"));
+        Files.delete(dir.resolve("prev.ser"));
+        Files.delete(dir);
+    }
+
+    private static HistoryStore history() {
+        return new HistoryStore(100, 1024, 0);
+    }
+}
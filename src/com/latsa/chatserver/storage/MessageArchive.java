@@ -0,0 +1,650 @@
+package com.latsa.chatserver.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Every message sent through the server, kept on the disk for as long as
+ * needed, in segment files of a fixed size. The segments are read and
+ * written through memory maps, so the recent ones stay in the page cache,
+ * and the old ones are paged in only when they are read.
+ * <p>
+ * A segment is named after the sequence number of its first message.
+ * Every record is: length (int), CRC32 (int) of the rest, sequence number
+ * (long), timestamp (long), the message in UTF-8. A zero length ends the
+ * segment. Every few kilobytes a record gets into the sparse index of its
+ * segment, so a message is found by its sequence number or timestamp
+ * with a binary search and a short scan of the record headers. When a
+ * segment is full, it is forced to the disk and its index is saved next
+ * to it; the index of the last segment is rebuilt on startup.
+ * <p>
+ * Readers only take the lock to find the records, and read the maps
+ * without it: records are never changed, once they are written.
+ * Messages aren't decoded, unless the reader asks for them.
+ */
+public class MessageArchive {
+
+    private static final int MAGIC = 0x41524348;
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER = 4 + 4 + 8;
+    private static final int RECORD_HEADER = 4 + 4 + 8 + 8;
+    private static final int INDEX_BYTES = 4096;
+    private static final String SEGMENT = ".seg";
+    private static final String INDEX = ".idx";
+    private static final String CLEARED = "cleared";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final List<Segment> segments;
+    private Segment active;
+    private long clearedThrough;
+    private boolean closed;
+
+    private final ReentrantLock lock;
+
+    /**
+     * Gets the messages read from the archive.
+     */
+    public interface Visitor {
+        /**
+         * @param seq sequence number of the message
+         * @param time timestamp of the message
+         * @param message the message in UTF-8, a read-only view of the map
+         * @return if the next message should be read too
+         */
+        boolean visit(long seq, long time, ByteBuffer message);
+    }
+
+    /**
+     * One segment file with its sparse index.
+     */
+    private static final class Segment {
+        private final Path path;
+        private final long firstSeq;
+        private long lastSeq;
+        private long lastTime;
+        private int end;
+        private int capacity;
+        private MappedByteBuffer map;
+        private FileChannel channel;
+
+        private long[] indexSeqs = new long[16];
+        private long[] indexTimes = new long[16];
+        private int[] indexOffsets = new int[16];
+        private int indexSize;
+        private int lastIndexed = -INDEX_BYTES;
+
+        /**
+         * @param path the segment file
+         * @param firstSeq sequence number of the first message
+         */
+        private Segment(Path path, long firstSeq) {
+            this.path = path;
+            this.firstSeq = firstSeq;
+            this.lastSeq = firstSeq - 1;
+            this.end = SEGMENT_HEADER;
+        }
+
+        /**
+         * Adds a record to the index, if it is far enough from the last one.
+         *
+         * @param seq sequence number of the message
+         * @param time timestamp of the message
+         * @param offset offset of the record
+         */
+        private void index(long seq, long time, int offset) {
+            if (offset - lastIndexed < INDEX_BYTES)
+                return;
+            if (indexSize == indexSeqs.length) {
+                indexSeqs = Arrays.copyOf(indexSeqs, indexSize * 2);
+                indexTimes = Arrays.copyOf(indexTimes, indexSize * 2);
+                indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+            }
+            indexSeqs[indexSize] = seq;
+            indexTimes[indexSize] = time;
+            indexOffsets[indexSize] = offset;
+            indexSize++;
+            lastIndexed = offset;
+        }
+
+        /**
+         * @param seq sequence number of a message
+         * @return offset of the last indexed record, that isn't after the message
+         */
+        private int offsetOf(long seq) {
+            int low = 0;
+            int high = indexSize - 1;
+            int offset = SEGMENT_HEADER;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexSeqs[mid] <= seq) {
+                    offset = indexOffsets[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return offset;
+        }
+
+        /**
+         * @param time a timestamp
+         * @return offset of the last indexed record, that is older than the time
+         */
+        private int offsetOfTime(long time) {
+            int low = 0;
+            int high = indexSize - 1;
+            int offset = SEGMENT_HEADER;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexTimes[mid] < time) {
+                    offset = indexOffsets[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Opens the archive in the given directory, or creates it.
+     *
+     * @param directory where the segments are located
+     * @param segmentBytes size of a segment file
+     * @throws IOException if the archive can't be opened
+     */
+    public MessageArchive(String directory, int segmentBytes) throws IOException {
+        this.dir = Paths.get(directory);
+        this.segmentBytes = segmentBytes;
+        this.segments = new ArrayList<>();
+        this.lock = new ReentrantLock();
+        Files.createDirectories(dir);
+
+        Path cleared = dir.resolve(CLEARED);
+        if (Files.exists(cleared)) {
+            try (DataInputStream dis = new DataInputStream(Files.newInputStream(cleared))) {
+                clearedThrough = dis.readLong();
+            }
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT)) {
+            for (Path file : stream)
+                files.add(file);
+        }
+        files.sort(null);
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            String name = file.getFileName().toString();
+            Segment segment = new Segment(file, Long.parseLong(name.substring(0, name.length() - SEGMENT.length())));
+            boolean last = i == files.size() - 1;
+            if (last || !loadIndex(segment))
+                scan(segment);
+            segments.add(segment);
+        }
+        if (!segments.isEmpty())
+            open(segments.get(segments.size() - 1));
+    }
+
+    /**
+     * Finds the records of a segment, and builds its index. Stops at the
+     * first record, that is cut short or doesn't match its checksum.
+     *
+     * @param segment the segment
+     * @throws IOException if the segment can't be read
+     */
+    private void scan(Segment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            segment.capacity = (int) channel.size();
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.capacity);
+            if (segment.capacity < SEGMENT_HEADER || map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+                throw new IOException("Not an archive segment: " + segment.path);
+            CRC32 crc = new CRC32();
+            int offset = SEGMENT_HEADER;
+            while (offset + RECORD_HEADER <= segment.capacity) {
+                int length = map.getInt(offset);
+                if (length <= 0 || offset + RECORD_HEADER + length > segment.capacity)
+                    break;
+                long seq = map.getLong(offset + 8);
+                if (seq <= segment.lastSeq)
+                    break;
+                crc.reset();
+                crc.update(map.duplicate().position(offset + 8).limit(offset + RECORD_HEADER + length));
+                if ((int) crc.getValue() != map.getInt(offset + 4))
+                    break;
+                long time = map.getLong(offset + 16);
+                segment.index(seq, time, offset);
+                segment.lastSeq = seq;
+                segment.lastTime = time;
+                offset += RECORD_HEADER + length;
+            }
+            segment.end = offset;
+        }
+    }
+
+    /**
+     * Loads the saved index of a full segment.
+     *
+     * @param segment the segment
+     * @return if the index was loaded
+     */
+    private boolean loadIndex(Segment segment) {
+        Path path = indexPath(segment);
+        if (!Files.exists(path))
+            return false;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))) {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION)
+                return false;
+            segment.capacity = dis.readInt();
+            segment.end = dis.readInt();
+            segment.lastSeq = dis.readLong();
+            segment.lastTime = dis.readLong();
+            int size = dis.readInt();
+            segment.indexSeqs = new long[Math.max(1, size)];
+            segment.indexTimes = new long[Math.max(1, size)];
+            segment.indexOffsets = new int[Math.max(1, size)];
+            for (int i = 0; i < size; i++) {
+                segment.indexSeqs[i] = dis.readLong();
+                segment.indexTimes[i] = dis.readLong();
+                segment.indexOffsets[i] = dis.readInt();
+            }
+            segment.indexSize = size;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Saves the index of a full segment next to it.
+     *
+     * @param segment the segment
+     * @throws IOException if the index can't be written
+     */
+    private void saveIndex(Segment segment) throws IOException {
+        Path path = indexPath(segment);
+        Path temp = Paths.get(path + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp.toFile())))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(segment.capacity);
+            dos.writeInt(segment.end);
+            dos.writeLong(segment.lastSeq);
+            dos.writeLong(segment.lastTime);
+            dos.writeInt(segment.indexSize);
+            for (int i = 0; i < segment.indexSize; i++) {
+                dos.writeLong(segment.indexSeqs[i]);
+                dos.writeLong(segment.indexTimes[i]);
+                dos.writeInt(segment.indexOffsets[i]);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param segment a segment
+     * @return where the index of the segment is saved
+     */
+    private Path indexPath(Segment segment) {
+        String name = segment.path.getFileName().toString();
+        return segment.path.resolveSibling(name.substring(0, name.length() - SEGMENT.length()) + INDEX);
+    }
+
+    /**
+     * Maps a segment for writing, and makes it the active one.
+     *
+     * @param segment the last segment
+     * @throws IOException if the segment can't be mapped
+     */
+    private void open(Segment segment) throws IOException {
+        segment.channel = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment.map = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, segment.capacity);
+        if (segment.end + 4 <= segment.capacity)
+            segment.map.putInt(segment.end, 0);
+        active = segment;
+    }
+
+    /**
+     * Adds a message, if the archive doesn't have it yet.
+     *
+     * @param seq sequence number of the message
+     * @param time timestamp of the message
+     * @param bytes the message in UTF-8
+     * @return if the message was added
+     */
+    public boolean append(long seq, long time, byte[] bytes) {
+        lock.lock();
+        try {
+            if (closed || seq <= getLastSeqLocked() || seq <= clearedThrough)
+                return false;
+            int size = RECORD_HEADER + bytes.length;
+            if (active == null || active.end + size > active.capacity)
+                roll(seq, size);
+            ByteBuffer map = active.map;
+            int offset = active.end;
+            map.putLong(offset + 8, seq);
+            map.putLong(offset + 16, time);
+            map.duplicate().position(offset + RECORD_HEADER).put(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(map.duplicate().position(offset + 8).limit(offset + size));
+            map.putInt(offset + 4, (int) crc.getValue());
+            if (offset + size + 4 <= active.capacity)
+                map.putInt(offset + size, 0);
+            map.putInt(offset, bytes.length);
+            active.index(seq, time, offset);
+            active.end = offset + size;
+            active.lastSeq = seq;
+            active.lastTime = time;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Seals the active segment and starts a new one. Must hold the lock.
+     *
+     * @param firstSeq sequence number of the first message of the new segment
+     * @param size size of the first record
+     * @throws IOException if a segment can't be written
+     */
+    private void roll(long firstSeq, int size) throws IOException {
+        if (active != null) {
+            active.map.force();
+            active.channel.close();
+            active.channel = null;
+            saveIndex(active);
+            active.capacity = active.end;
+            active.map = null;
+        }
+        Segment segment = new Segment(dir.resolve(String.format("%020d%s", firstSeq, SEGMENT)), firstSeq);
+        segment.capacity = Math.max(segmentBytes, SEGMENT_HEADER + size + 4);
+        open(segment);
+        segment.map.putInt(0, MAGIC);
+        segment.map.putInt(4, VERSION);
+        segment.map.putLong(8, firstSeq);
+        segments.add(segment);
+        WriteAheadLog.syncDirectory(segment.path);
+    }
+
+    /**
+     * Reads messages in the order of their sequence numbers.
+     *
+     * @param fromSeq sequence number of the first message to read
+     * @param visitor gets the messages, until it returns false
+     */
+    public void read(long fromSeq, Visitor visitor) {
+        long seq = fromSeq;
+        while (true) {
+            ByteBuffer map;
+            int offset;
+            int end;
+            lock.lock();
+            try {
+                seq = Math.max(seq, clearedThrough + 1);
+                int i = find(seq);
+                if (i < 0)
+                    return;
+                Segment segment = segments.get(i);
+                map = mapped(segment);
+                offset = segment.offsetOf(seq);
+                end = segment.end;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            while (offset < end) {
+                int length = map.getInt(offset);
+                long recordSeq = map.getLong(offset + 8);
+                if (recordSeq >= seq) {
+                    ByteBuffer message = map.duplicate().position(offset + RECORD_HEADER)
+                            .limit(offset + RECORD_HEADER + length).slice();
+                    if (!visitor.visit(recordSeq, map.getLong(offset + 16), message))
+                        return;
+                    seq = recordSeq + 1;
+                }
+                offset += RECORD_HEADER + length;
+            }
+        }
+    }
+
+    /**
+     * Reads messages as strings.
+     *
+     * @param fromSeq sequence number of the first message to read
+     * @param count maximum number of messages
+     * @return the messages, oldest first
+     */
+    public List<String> get(long fromSeq, int count) {
+        List<String> messages = new ArrayList<>();
+        if (count <= 0)
+            return messages;
+        read(fromSeq, (seq, time, message) -> {
+            messages.add(StandardCharsets.UTF_8.decode(message).toString());
+            return messages.size() < count;
+        });
+        return messages;
+    }
+
+    /**
+     * Finds the first message sent at or after a time. Timestamps are
+     * expected to grow with the sequence numbers.
+     *
+     * @param time timestamp in milliseconds
+     * @return sequence number of the message, or last + 1 if there is none
+     */
+    public long seqAt(long time) {
+        ByteBuffer map;
+        int offset;
+        int end;
+        lock.lock();
+        try {
+            int i = 0;
+            while (i < segments.size() && segments.get(i).lastTime < time)
+                i++;
+            if (i == segments.size())
+                return getLastSeqLocked() + 1;
+            Segment segment = segments.get(i);
+            map = mapped(segment);
+            offset = segment.offsetOfTime(time);
+            end = segment.end;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return getLastSeq() + 1;
+        } finally {
+            lock.unlock();
+        }
+        while (offset < end) {
+            if (map.getLong(offset + 16) >= time)
+                return map.getLong(offset + 8);
+            offset += RECORD_HEADER + map.getInt(offset);
+        }
+        return getLastSeq() + 1;
+    }
+
+    /**
+     * Finds the segment of a message. Must hold the lock.
+     *
+     * @param seq sequence number of the message
+     * @return index of the segment, that has the message or the next one,
+     * -1 if there are no such messages
+     */
+    private int find(long seq) {
+        int low = 0;
+        int high = segments.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segments.get(mid).firstSeq <= seq) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found < 0)
+            found = 0;
+        while (found < segments.size() && segments.get(found).lastSeq < seq)
+            found++;
+        return found < segments.size() ? found : -1;
+    }
+
+    /**
+     * Returns the map of a segment, maps a full segment on its first read.
+     * Must hold the lock.
+     *
+     * @param segment the segment
+     * @return read-only view of the map
+     * @throws IOException if the segment can't be mapped
+     */
+    private ByteBuffer mapped(Segment segment) throws IOException {
+        if (segment.map == null) {
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                segment.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.end);
+            }
+        }
+        return segment.map.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return sequence number of the oldest message, last + 1 if the archive is empty
+     */
+    public long getFirstSeq() {
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                if (segment.lastSeq > clearedThrough)
+                    return Math.max(segment.firstSeq, clearedThrough + 1);
+            }
+            return getLastSeqLocked() + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return sequence number of the latest message, 0 if there was none
+     */
+    public long getLastSeq() {
+        lock.lock();
+        try {
+            return getLastSeqLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return sequence number of the latest message. Must hold the lock.
+     */
+    private long getLastSeqLocked() {
+        return Math.max(clearedThrough, active == null ? 0 : active.lastSeq);
+    }
+
+    /**
+     * @return number of segment files
+     */
+    public int getSegments() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the messages up to a sequence number. Full segments are
+     * deleted, the rest of the messages are hidden from the readers.
+     *
+     * @param seq sequence number of the last message to delete
+     */
+    public void clearThrough(long seq) {
+        lock.lock();
+        try {
+            if (seq <= clearedThrough)
+                return;
+            Path cleared = dir.resolve(CLEARED);
+            Path temp = dir.resolve(CLEARED + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+                 DataOutputStream dos = new DataOutputStream(fos)) {
+                dos.writeLong(seq);
+                dos.flush();
+                fos.getFD().sync();
+            }
+            Files.move(temp, cleared, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            clearedThrough = seq;
+            while (segments.size() > 1 && segments.get(0).lastSeq <= seq) {
+                Segment segment = segments.remove(0);
+                segment.map = null;
+                Files.deleteIfExists(segment.path);
+                Files.deleteIfExists(indexPath(segment));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the written messages to the disk.
+     */
+    public void force() {
+        lock.lock();
+        try {
+            if (active != null && !closed)
+                active.map.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the written messages to the disk, and closes the archive.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            if (active != null) {
+                active.map.force();
+                active.channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.latsa.chatserver.storage;
+
+import com.latsa.chatserver.HistoryStore;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests MessageArchive.
+ */
+class MessageArchiveTest {
+
+    /**
+     * Messages spread over many segments are found by sequence number and
+     * by time, also after the archive is opened again.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testSegments() throws IOException {
+        File dir = Files.createTempDirectory("archive").toFile();
+        try {
+            MessageArchive archive = new MessageArchive(dir.getPath(), 16 * 1024);
+            for (int i = 1; i <= 5000; i++)
+                assertTrue(archive.append(i, 1000L * i, bytes("message " + i)));
+            assertFalse(archive.append(5000, 0, bytes("again")));
+            assertTrue(archive.getSegments() > 10);
+            archive.close();
+
+            MessageArchive reopened = new MessageArchive(dir.getPath(), 16 * 1024);
+            assertEquals(1, reopened.getFirstSeq());
+            assertEquals(5000, reopened.getLastSeq());
+            assertEquals(List.of("message 1234", "message 1235"), reopened.get(1234, 2));
+            assertEquals(List.of("message 5000"), reopened.get(5000, 10));
+            assertEquals(2500, reopened.seqAt(2_500_000));
+            assertEquals(2501, reopened.seqAt(2_500_001));
+            assertEquals(5001, reopened.seqAt(10_000_000));
+            assertTrue(reopened.append(5001, 5_001_000, bytes("message 5001")));
+            assertEquals(List.of("message 5001"), reopened.get(5001, 1));
+            reopened.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * The history reads the messages, that are not in its ring any more,
+     * from the archive, and a deleted history stays deleted.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testHistory() throws IOException {
+        File dir = Files.createTempDirectory("archive").toFile();
+        try {
+            MessageArchive archive = new MessageArchive(dir.getPath(), 64 * 1024);
+            HistoryStore history = new HistoryStore(3, 1024, 0);
+            history.setArchive(archive);
+            List<String> sent = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                sent.add("m" + i);
+                history.append("m" + i);
+            }
+            assertEquals(3, history.size());
+            assertEquals(sent.subList(4, 10), history.tail(6));
+
+            history.clear();
+            history.append("after");
+            assertEquals(List.of("after"), history.tail(100));
+            archive.close();
+
+            MessageArchive reopened = new MessageArchive(dir.getPath(), 64 * 1024);
+            assertEquals(List.of("after"), reopened.get(1, 100));
+            reopened.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void delete(File dir) throws IOException {
+        Files.walk(dir.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+}
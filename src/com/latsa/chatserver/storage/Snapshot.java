@@ -0,0 +1,106 @@
+package com.latsa.chatserver.storage;
+
+import com.latsa.chatserver.HistoryStore;
+import com.latsa.chatserver.UserData;
+import com.latsa.chatserver.UserRegistry;
+import com.latsa.chatserver.net.IpBlacklist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The saved state of the server in one file: the registered users, the
+ * banned ip addresses and the previous messages, with the log sequence
+ * number of the last change of the write-ahead log, that is in it.
+ * <p>
+ * A snapshot is written to a temporary file, forced to the disk, and
+ * renamed over the old one, so there is always one whole snapshot on the
+ * disk, even if the server crashes while writing.
+ * <p>
+ * The state is read while the server runs, so the snapshot may hold some
+ * changes after its log sequence number as well. These are replayed again
+ * from the log, which does no harm.
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x534e4150;
+    private static final int VERSION = 2;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Writes a snapshot.
+     *
+     * @param location where the snapshot should be saved
+     * @param lsn log sequence number of the last change, that is surely in the state
+     * @param users registered users
+     * @param blacklist banned ip addresses
+     * @param history previous messages
+     * @throws IOException if the snapshot can't be written
+     */
+    public static void write(String location, long lsn, UserRegistry users, IpBlacklist blacklist,
+                             HistoryStore history) throws IOException {
+        Path path = Paths.get(location);
+        Path temp = Paths.get(location + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos))) {
+            dos.writeInt(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeLong(lsn);
+            UserRecords.write(dos, users.getAll());
+            blacklist.writeTo(dos);
+            history.writeTo(dos);
+            dos.flush();
+            fos.getFD().sync();
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        WriteAheadLog.syncDirectory(path);
+    }
+
+    /**
+     * Reads a snapshot into empty state objects. The users are decoded
+     * in parallel, see {@link UserRecords}. Snapshots of version 1, with
+     * the users in modified UTF-8, are read as well.
+     *
+     * @param location where the snapshot is located
+     * @param users registry to add the users to
+     * @param blacklist blacklist to add the banned addresses to
+     * @param history store to add the messages to
+     * @return log sequence number of the snapshot, the log has to be replayed after it
+     * @throws IOException if the snapshot is missing or corrupt
+     */
+    public static long read(String location, UserRegistry users, IpBlacklist blacklist,
+                            HistoryStore history) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(location)))) {
+            if (dis.readInt() != MAGIC)
+                throw new IOException("Not a snapshot file: " + location);
+            int version = dis.readUnsignedByte();
+            if (version != 1 && version != VERSION)
+                throw new IOException("Unknown snapshot version: " + version);
+            long lsn = dis.readLong();
+            if (version == 1) {
+                while (dis.readBoolean()) {
+                    UserData ud = new UserData(dis.readUTF(), dis.readUTF());
+                    ud.setAdmin(dis.readBoolean());
+                    ud.setBanned(dis.readBoolean());
+                    users.add(ud);
+                }
+            } else {
+                UserRecords.read(dis, users);
+            }
+            blacklist.readFrom(dis);
+            history.readFrom(dis);
+            return lsn;
+        }
+    }
+}
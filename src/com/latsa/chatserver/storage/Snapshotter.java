@@ -0,0 +1,181 @@
+package com.latsa.chatserver.storage;
+
+import com.latsa.chatserver.HistoryStore;
+import com.latsa.chatserver.UserRegistry;
+import com.latsa.chatserver.net.IpBlacklist;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Takes snapshots of the server state in the background, so the
+ * write-ahead log doesn't grow without limit, and startup doesn't have to
+ * replay all of it. A snapshot is taken, when the given time has passed
+ * since the last one, or when the given number of bytes was logged since.
+ * <p>
+ * Taking a snapshot rotates the log, forces the message archive, writes
+ * the state read while the server runs, and deletes the sealed log segments. Chat threads are not
+ * stopped: users and bans are read from the concurrent registry and the
+ * immutable blacklist, messages one by one without blocking the writer.
+ */
+public class Snapshotter {
+
+    private final String location;
+    private final WriteAheadLog wal;
+    private final UserRegistry users;
+    private final IpBlacklist blacklist;
+    private final HistoryStore history;
+    private final Consumer<String> report;
+    private final long intervalNanos;
+    private final long walBytes;
+
+    private final ReentrantLock snapshotLock;
+    private final ReentrantLock lock;
+    private final Condition stopped;
+    private boolean stop;
+    private Thread thread;
+
+    private volatile long lastSnapshot;
+    private long snapshots;
+    private long lastMillis;
+    private long totalMillis;
+
+    /**
+     * Constructs a snapshotter. It doesn't run until it is started.
+     *
+     * @param location where the snapshot is saved
+     * @param wal log of the changes
+     * @param users registered users
+     * @param blacklist banned ip addresses
+     * @param history previous messages
+     * @param intervalSeconds seconds between two snapshots, 0 means no time trigger
+     * @param walBytes logged bytes that trigger a snapshot, 0 means no size trigger
+     * @param report gets a line about every snapshot
+     */
+    public Snapshotter(String location, WriteAheadLog wal, UserRegistry users, IpBlacklist blacklist,
+                       HistoryStore history, int intervalSeconds, long walBytes, Consumer<String> report) {
+        this.location = location;
+        this.wal = wal;
+        this.users = users;
+        this.blacklist = blacklist;
+        this.history = history;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        this.walBytes = walBytes;
+        this.report = report;
+        snapshotLock = new ReentrantLock();
+        lock = new ReentrantLock();
+        stopped = lock.newCondition();
+        lastSnapshot = System.nanoTime();
+    }
+
+    /**
+     * Starts checking the triggers about once a second.
+     */
+    public void start() {
+        if (intervalNanos == 0 && walBytes == 0)
+            return;
+        thread = new Thread(this::run, "snapshotter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Checks the triggers, until stopped.
+     */
+    private void run() {
+        while (true) {
+            lock.lock();
+            try {
+                if (!stop)
+                    stopped.await(1, TimeUnit.SECONDS);
+                if (stop)
+                    return;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            boolean due = intervalNanos > 0 && System.nanoTime() - lastSnapshot >= intervalNanos;
+            if (due || (walBytes > 0 && wal.getBytesSinceRotation() >= walBytes))
+                snapshot();
+        }
+    }
+
+    /**
+     * Takes a snapshot now. Only one snapshot is taken at a time, and none
+     * after the snapshotter is stopped.
+     *
+     * @return if the snapshot was saved
+     */
+    public boolean snapshot() {
+        snapshotLock.lock();
+        try {
+            lock.lock();
+            try {
+                if (stop)
+                    return false;
+            } finally {
+                lock.unlock();
+            }
+            long start = System.nanoTime();
+            lastSnapshot = start;
+            long lsn = wal.rotate();
+            if (lsn < 0)
+                return false;
+            history.force();
+            Snapshot.write(location, lsn, users, blacklist, history);
+            wal.deleteSealedSegments();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            lock.lock();
+            try {
+                snapshots++;
+                lastMillis = millis;
+                totalMillis += millis;
+            } finally {
+                lock.unlock();
+            }
+            report.accept(String.format("Snapshot of %d users, %d bans and %d messages written in %d ms.",
+                    users.size(), blacklist.size(), history.size(), millis));
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            report.accept("Error: Couldn't write the snapshot!");
+            return false;
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Stops taking snapshots, and waits for the running one.
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            stop = true;
+            stopped.signal();
+        } finally {
+            lock.unlock();
+        }
+        snapshotLock.lock();
+        snapshotLock.unlock();
+    }
+
+    /**
+     * @return number of snapshots and the time they took
+     */
+    @Override
+    public String toString() {
+        long logged = wal.getBytesSinceRotation();
+        lock.lock();
+        try {
+            return String.format("snapshots: %d, last: %d ms, average: %d ms, logged since: %d bytes", snapshots,
+                    lastMillis, snapshots == 0 ? 0 : totalMillis / snapshots, logged);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.latsa.chatserver.storage;
+
+import com.latsa.chatserver.UserData;
+import com.latsa.chatserver.UserRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Binary format of the registered users. A user record is: username length
+ * (unsigned short) and UTF-8 bytes, flags (byte: 1 admin, 2 banned,
+ * 4 packed hash), then the password hash. A bcrypt hash is packed into its
+ * version letter, cost and the 39 bytes of salt and hash, 41 bytes instead
+ * of 60 characters; any other hash is its length (unsigned byte) and UTF-8
+ * bytes. The records are
+ * written in blocks of a few thousand, every block prefixed with its
+ * record count and byte length, and a zero count ends the users.
+ * The format has a version of its own, written before the first block.
+ * <p>
+ * The blocks are read one after another from the stream, and decoded by
+ * a pool of threads at the same time, at most a few blocks ahead of the
+ * decoders, so a large registry loads fast without buffering the file.
+ */
+public class UserRecords {
+
+    private static final int VERSION = 1;
+    private static final int BLOCK_RECORDS = 4096;
+    private static final int ADMIN = 1;
+    private static final int BANNED = 2;
+    private static final int PACKED = 4;
+    private static final int PACKED_BYTES = 16 + 23;
+    private static final String BCRYPT_ALPHABET = "./ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+    private static final byte[] BCRYPT_CHARS = BCRYPT_ALPHABET.getBytes(StandardCharsets.US_ASCII);
+
+    private UserRecords() {
+    }
+
+    /**
+     * Writes the users.
+     *
+     * @param dos stream to write to
+     * @param users the users
+     * @throws IOException if the stream can't be written, or a name or hash is too long
+     */
+    public static void write(DataOutputStream dos, Collection<UserData> users) throws IOException {
+        dos.writeByte(VERSION);
+        ByteArrayOutputStream block = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream out = new DataOutputStream(block);
+        int count = 0;
+        for (UserData ud : users) {
+            byte[] name = ud.getUsername().getBytes(StandardCharsets.UTF_8);
+            byte[] packed = pack(ud.getPassword());
+            byte[] hash = packed != null ? packed : ud.getPassword().getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xffff || hash.length > 0xff)
+                throw new IOException("Username or password hash too long: " + ud.getUsername());
+            out.writeShort(name.length);
+            out.write(name);
+            out.writeByte((ud.getIsAdmin() ? ADMIN : 0) | (ud.getBanned() ? BANNED : 0) | (packed != null ? PACKED : 0));
+            if (packed == null)
+                out.writeByte(hash.length);
+            out.write(hash);
+            if (++count == BLOCK_RECORDS) {
+                writeBlock(dos, count, block);
+                count = 0;
+            }
+        }
+        if (count > 0)
+            writeBlock(dos, count, block);
+        dos.writeInt(0);
+    }
+
+    /**
+     * Writes a block of records, and empties the buffer.
+     *
+     * @param dos stream to write to
+     * @param count number of records in the block
+     * @param block the records
+     * @throws IOException if the stream can't be written
+     */
+    private static void writeBlock(DataOutputStream dos, int count, ByteArrayOutputStream block) throws IOException {
+        dos.writeInt(count);
+        dos.writeInt(block.size());
+        block.writeTo(dos);
+        block.reset();
+    }
+
+    /**
+     * Reads the users with one thread per processor.
+     *
+     * @param dis stream to read from
+     * @param users registry to add the users to
+     * @return number of users read
+     * @throws IOException if the stream can't be read or is corrupt
+     */
+    public static int read(DataInputStream dis, UserRegistry users) throws IOException {
+        return read(dis, users, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Reads the users. The calling thread reads the blocks, the decoder
+     * threads turn them into users and add them to the registry.
+     *
+     * @param dis stream to read from
+     * @param users registry to add the users to, safe for concurrent adds
+     * @param threads number of decoder threads, 1 decodes on the calling thread
+     * @return number of users read
+     * @throws IOException if the stream can't be read or is corrupt
+     */
+    public static int read(DataInputStream dis, UserRegistry users, int threads) throws IOException {
+        int version = dis.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unknown user record version: " + version);
+        AtomicInteger read = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        ExecutorService decoders = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        Semaphore ahead = new Semaphore(threads * 2);
+        try {
+            while (true) {
+                int count = dis.readInt();
+                if (count == 0)
+                    break;
+                int length = dis.readInt();
+                if (count < 0 || length < 0)
+                    throw new IOException("Corrupt user block");
+                byte[] block = new byte[length];
+                dis.readFully(block);
+                if (decoders == null) {
+                    read.addAndGet(decode(block, count, users));
+                    continue;
+                }
+                ahead.acquireUninterruptibly();
+                decoders.execute(() -> {
+                    try {
+                        read.addAndGet(decode(block, count, users));
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        ahead.release();
+                    }
+                });
+                if (failure.get() != null)
+                    break;
+            }
+        } finally {
+            if (decoders != null) {
+                decoders.shutdown();
+                try {
+                    decoders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        if (failure.get() != null)
+            throw failure.get();
+        return read.get();
+    }
+
+    /**
+     * Decodes a block of records.
+     *
+     * @param block the records
+     * @param count number of records in the block
+     * @param users registry to add the users to
+     * @return number of users decoded
+     * @throws IOException if the block is corrupt
+     */
+    private static int decode(byte[] block, int count, UserRegistry users) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(block);
+        try {
+            for (int i = 0; i < count; i++) {
+                int nameLength = in.getShort() & 0xffff;
+                String name = new String(block, in.position(), nameLength, StandardCharsets.UTF_8);
+                in.position(in.position() + nameLength);
+                int flags = in.get();
+                String hash;
+                if ((flags & PACKED) != 0) {
+                    hash = unpack(block, in.position());
+                    in.position(in.position() + 2 + PACKED_BYTES);
+                } else {
+                    int hashLength = in.get() & 0xff;
+                    hash = new String(block, in.position(), hashLength, StandardCharsets.UTF_8);
+                    in.position(in.position() + hashLength);
+                }
+                UserData ud = new UserData(name, hash);
+                ud.setAdmin((flags & ADMIN) != 0);
+                ud.setBanned((flags & BANNED) != 0);
+                users.add(ud);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt user block", e);
+        }
+        if (in.hasRemaining())
+            throw new IOException("Corrupt user block");
+        return count;
+    }
+
+    /**
+     * Packs a bcrypt hash ($2a$10$ and 53 characters of salt and hash).
+     *
+     * @param hash the password hash
+     * @return version letter, cost, salt and hash bytes, or null if the hash
+     * is not a bcrypt hash, that unpacks to the same string
+     */
+    private static byte[] pack(String hash) {
+        if (hash.length() != 60 || !hash.startsWith("$2") || hash.charAt(3) != '$' || hash.charAt(6) != '$'
+                || !Character.isDigit(hash.charAt(4)) || !Character.isDigit(hash.charAt(5)) || hash.charAt(2) > 0x7f)
+            return null;
+        byte[] packed = new byte[2 + PACKED_BYTES];
+        packed[0] = (byte) hash.charAt(2);
+        packed[1] = (byte) ((hash.charAt(4) - '0') * 10 + hash.charAt(5) - '0');
+        if (!decode(hash, 7, packed, 2, 16) || !decode(hash, 29, packed, 18, 23))
+            return null;
+        return unpack(packed, 0).equals(hash) ? packed : null;
+    }
+
+    /**
+     * Unpacks a bcrypt hash.
+     *
+     * @param block array holding the packed hash
+     * @param offset start of the packed hash
+     * @return the hash string
+     */
+    private static String unpack(byte[] block, int offset) {
+        byte[] hash = new byte[60];
+        hash[0] = '$';
+        hash[1] = '2';
+        hash[2] = block[offset];
+        hash[3] = '$';
+        hash[4] = (byte) ('0' + block[offset + 1] / 10);
+        hash[5] = (byte) ('0' + block[offset + 1] % 10);
+        hash[6] = '$';
+        int position = encode(block, offset + 2, 16, hash, 7);
+        encode(block, offset + 18, 23, hash, position);
+        return new String(hash, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Encodes bytes in the base64 alphabet of bcrypt, without padding.
+     *
+     * @param bytes array holding the bytes
+     * @param offset start of the bytes
+     * @param length number of bytes
+     * @param out where the ASCII characters are put
+     * @param position index of the first character
+     * @return index after the last character
+     */
+    private static int encode(byte[] bytes, int offset, int length, byte[] out, int position) {
+        int bits = 0;
+        int count = 0;
+        for (int i = offset; i < offset + length; i++) {
+            bits = (bits << 8) | (bytes[i] & 0xff);
+            count += 8;
+            while (count >= 6) {
+                count -= 6;
+                out[position++] = BCRYPT_CHARS[(bits >> count) & 0x3f];
+            }
+        }
+        if (count > 0)
+            out[position++] = BCRYPT_CHARS[(bits << (6 - count)) & 0x3f];
+        return position;
+    }
+
+    /**
+     * Decodes characters of the base64 alphabet of bcrypt.
+     *
+     * @param s the characters
+     * @param from index of the first character
+     * @param out where the bytes are put
+     * @param position index of the first byte
+     * @param length number of bytes
+     * @return false if a character is not in the alphabet
+     */
+    private static boolean decode(String s, int from, byte[] out, int position, int length) {
+        int bits = 0;
+        int count = 0;
+        int end = position + length;
+        for (int i = from; i < s.length() && position < end; i++) {
+            int value = BCRYPT_ALPHABET.indexOf(s.charAt(i));
+            if (value < 0)
+                return false;
+            bits = (bits << 6) | value;
+            count += 6;
+            if (count >= 8) {
+                count -= 8;
+                out[position++] = (byte) (bits >> count);
+            }
+        }
+        return position == end;
+    }
+}
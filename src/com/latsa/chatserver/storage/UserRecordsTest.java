@@ -0,0 +1,73 @@
+package com.latsa.chatserver.storage;
+
+import com.latsa.chatserver.InMemoryUserRegistry;
+import com.latsa.chatserver.UserData;
+import com.latsa.chatserver.UserRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests UserRecords.
+ */
+class UserRecordsTest {
+
+    /**
+     * Users written in many blocks read back the same, on one thread and on
+     * many, with packed bcrypt hashes and with other hashes.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testRoundTrip() throws IOException {
+        List<UserData> users = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            String hash = i % 2 == 0 ? "$2a$10$N9qo8uLOickgx2ZMRZoMyeIjZAgcfl7p92ldGxad68LJZdL17lhWy" : "plain" + i;
+            UserData ud = new UserData("üser" + i, hash);
+            ud.setAdmin(i % 7 == 0);
+            ud.setBanned(i % 5 == 0);
+            users.add(ud);
+        }
+        byte[] bytes = write(users);
+        assertTrue(bytes.length < 10000 * 50);
+
+        for (int threads : new int[]{1, 4}) {
+            UserRegistry read = new InMemoryUserRegistry(new ArrayList<>());
+            assertEquals(10000, UserRecords.read(new DataInputStream(new ByteArrayInputStream(bytes)), read, threads));
+            assertEquals(10000, read.size());
+            for (UserData ud : users) {
+                UserData copy = read.get(ud.getUsername());
+                assertEquals(ud.getPassword(), copy.getPassword());
+                assertEquals(ud.getIsAdmin(), copy.getIsAdmin());
+                assertEquals(ud.getBanned(), copy.getBanned());
+            }
+        }
+    }
+
+    /**
+     * A damaged block is reported, not loaded as garbage.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testCorrupt() throws IOException {
+        byte[] bytes = write(List.of(new UserData("alice", "hash")));
+        bytes[1 + 4 + 4 + 1] = (byte) 0xff;
+        assertThrows(IOException.class, () -> UserRecords.read(new DataInputStream(new ByteArrayInputStream(bytes)),
+                new InMemoryUserRegistry(new ArrayList<>()), 2));
+    }
+
+    private static byte[] write(List<UserData> users) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        UserRecords.write(new DataOutputStream(bos), users);
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,679 @@
+package com.latsa.chatserver.storage;
+
+import com.latsa.chatserver.HistoryStore;
+import com.latsa.chatserver.UserData;
+import com.latsa.chatserver.UserRegistry;
+import com.latsa.chatserver.net.IpBlacklist;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes of the server state: registrations,
+ * admin and ban flags, banned ip addresses and chat messages. The state is
+ * saved in snapshots, and on startup the log is replayed on top of the
+ * last snapshot, so a crash loses nothing, that reached the disk.
+ * <p>
+ * Every record is: payload length (int), CRC32 (int) of the rest,
+ * log sequence number (long), type (byte), payload. Replay stops at the
+ * first record, that is cut short or doesn't match its checksum, and the
+ * log goes on from there.
+ * <p>
+ * Changes only copy their record into a buffer. One writer thread writes
+ * everything, that piled up, with one write, and forces it to the disk as
+ * the fsync policy says, so concurrent changes share one fsync.
+ * <p>
+ * If the file can't be written, the log stops: the failure is reported
+ * once, and later changes are not logged any more.
+ * <p>
+ * Replaying a record twice gives the same state as replaying it once,
+ * so records already in the snapshot do no harm.
+ * <p>
+ * The log is written to one file, until it is rotated for a snapshot:
+ * then the file is sealed, renamed to the next numbered segment
+ * (server.wal.1, server.wal.2, ...), and a new file is started. Once the
+ * snapshot is saved, the sealed segments are not needed any more.
+ */
+public class WriteAheadLog {
+
+    private static final int HEADER = 4 + 4 + 8 + 1;
+
+    private static final byte USER = 1;
+    private static final byte USER_REMOVED = 2;
+    private static final byte IP_BAN = 3;
+    private static final byte IP_UNBAN = 4;
+    private static final byte MESSAGE = 5;
+    private static final byte HISTORY_CLEARED = 6;
+
+    private final Path path;
+    private final FsyncPolicy policy;
+    private final long fsyncIntervalNanos;
+    private final Consumer<String> report;
+    private FileChannel channel;
+    private long segment;
+    private long written;
+
+    private byte[] buffer;
+    private int buffered;
+    private long nextLsn;
+    private long durableLsn;
+    private boolean closed;
+    private boolean failed;
+    private boolean rotating;
+    private int rotateAt;
+    private Thread writer;
+
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final Condition durable;
+
+    /**
+     * Opens the log, or creates it if it doesn't exist. It has to be
+     * replayed before the first change is logged.
+     *
+     * @param location where the log is located
+     * @param policy when records are forced to the disk
+     * @param fsyncIntervalMillis time between two fsyncs with the INTERVAL policy
+     * @param report gets a line if the log can't be written
+     * @throws IOException if the log can't be opened
+     */
+    public WriteAheadLog(String location, FsyncPolicy policy, int fsyncIntervalMillis, Consumer<String> report)
+            throws IOException {
+        this.path = Paths.get(location);
+        this.policy = policy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.report = report;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        TreeMap<Long, Path> sealed = sealedSegments();
+        segment = sealed.isEmpty() ? 0 : sealed.lastKey();
+        buffer = new byte[64 * 1024];
+        nextLsn = 1;
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+        durable = lock.newCondition();
+    }
+
+    /**
+     * Applies the logged changes to the state loaded from the snapshot,
+     * cuts off a broken end of the log, and starts the writer.
+     *
+     * @param users registered users
+     * @param blacklist banned ip addresses
+     * @param history previous messages
+     * @return number of replayed records
+     * @throws IOException if the log can't be read
+     */
+    public int replay(UserRegistry users, IpBlacklist blacklist, HistoryStore history) throws IOException {
+        return replay(users, blacklist, history, 0);
+    }
+
+    /**
+     * Applies the logged changes, that are newer than the snapshot, to the
+     * state loaded from it, cuts off a broken end of the log, and starts
+     * the writer. The sealed segments are replayed first, in order. If one
+     * of them is broken, the records after the break are dropped with the
+     * later segments, as with a broken end of the log.
+     *
+     * @param users registered users
+     * @param blacklist banned ip addresses
+     * @param history previous messages
+     * @param afterLsn log sequence number of the last change in the snapshot
+     * @return number of replayed records
+     * @throws IOException if the log can't be read
+     */
+    public int replay(UserRegistry users, IpBlacklist blacklist, HistoryStore history, long afterLsn)
+            throws IOException {
+        int[] records = new int[1];
+        nextLsn = afterLsn + 1;
+        boolean broken = false;
+        for (Path sealed : sealedSegments().values()) {
+            if (broken) {
+                Files.delete(sealed);
+                continue;
+            }
+            try (FileChannel in = FileChannel.open(sealed, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long end = replay(in, afterLsn, records, users, blacklist, history);
+                if (end < in.size()) {
+                    in.truncate(end);
+                    broken = true;
+                }
+            }
+        }
+        long position = broken ? 0 : replay(channel, afterLsn, records, users, blacklist, history);
+        if (position < channel.size())
+            channel.truncate(position);
+        channel.position(position);
+        written = position;
+        durableLsn = nextLsn - 1;
+
+        writer = new Thread(this::writeLoop, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return records[0];
+    }
+
+    /**
+     * Applies the records of one file, up to the first broken one.
+     *
+     * @param in the file
+     * @param afterLsn log sequence number of the last change in the snapshot
+     * @param records counter of the replayed records
+     * @param users registered users
+     * @param blacklist banned ip addresses
+     * @param history previous messages
+     * @return position of the end of the last whole record
+     * @throws IOException if the file can't be read
+     */
+    private long replay(FileChannel in, long afterLsn, int[] records, UserRegistry users, IpBlacklist blacklist,
+                        HistoryStore history) throws IOException {
+        long position = 0;
+        long size = in.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        CRC32 crc = new CRC32();
+        while (position + HEADER <= size) {
+            header.clear();
+            in.read(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || position + HEADER + length > size)
+                break;
+            ByteBuffer record = ByteBuffer.allocate(8 + 1 + length);
+            record.putLong(header.getLong()).put(header.get());
+            in.read(record, position + HEADER);
+            if (record.hasRemaining())
+                break;
+            crc.reset();
+            crc.update(record.array(), 0, record.capacity());
+            if ((int) crc.getValue() != checksum)
+                break;
+            record.flip();
+            long lsn = record.getLong();
+            byte type = record.get();
+            if (lsn > afterLsn) {
+                apply(type, record.array(), record.position(), length, users, blacklist, history);
+                records[0]++;
+            }
+            nextLsn = Math.max(nextLsn, lsn + 1);
+            position += HEADER + length;
+        }
+        return position;
+    }
+
+    /**
+     * @return the sealed segments, by their number
+     */
+    private TreeMap<Long, Path> sealedSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        Path dir = path.toAbsolutePath().getParent();
+        String prefix = path.getFileName() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path file : files) {
+                String number = file.getFileName().toString().substring(prefix.length());
+                if (number.matches("\\d{1,18}"))
+                    segments.put(Long.parseLong(number), file);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Applies one logged change.
+     *
+     * @param type type of the record
+     * @param data array holding the payload
+     * @param offset start of the payload
+     * @param length length of the payload
+     * @param users registered users
+     * @param blacklist banned ip addresses
+     * @param history previous messages
+     * @throws IOException if the payload is corrupt
+     */
+    private static void apply(byte type, byte[] data, int offset, int length, UserRegistry users,
+                              IpBlacklist blacklist, HistoryStore history) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            switch (type) {
+                case USER: {
+                    String name = in.readUTF();
+                    String password = in.readUTF();
+                    boolean admin = in.readBoolean();
+                    boolean banned = in.readBoolean();
+                    UserData ud = users.get(name);
+                    if (ud != null && !ud.getPassword().equals(password)) {
+                        users.remove(name);
+                        ud = null;
+                    }
+                    if (ud == null) {
+                        ud = new UserData(name, password);
+                        users.add(ud);
+                    }
+                    ud.setAdmin(admin);
+                    ud.setBanned(banned);
+                    break;
+                }
+                case USER_REMOVED:
+                    users.remove(in.readUTF());
+                    break;
+                case IP_BAN:
+                    blacklist.add(in.readUTF());
+                    break;
+                case IP_UNBAN:
+                    blacklist.remove(in.readUTF());
+                    break;
+                case MESSAGE: {
+                    long seq = in.readLong();
+                    long time = in.readLong();
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    history.restore(seq, time, bytes);
+                    break;
+                }
+                case HISTORY_CLEARED:
+                    history.clearThrough(in.readLong());
+                    break;
+                default:
+                    throw new IOException("Unknown record type: " + type);
+            }
+        } catch (EOFException | IllegalArgumentException e) {
+            throw new IOException("Corrupt record of type " + type, e);
+        }
+    }
+
+    /**
+     * Logs the current state of a user.
+     *
+     * @param user new or changed user
+     * @return log sequence number of the record
+     */
+    public long logUser(UserData user) {
+        return append(USER, out -> {
+            out.writeUTF(user.getUsername());
+            out.writeUTF(user.getPassword());
+            out.writeBoolean(user.getIsAdmin());
+            out.writeBoolean(user.getBanned());
+        });
+    }
+
+    /**
+     * Logs a deleted user.
+     *
+     * @param username name of the user
+     * @return log sequence number of the record
+     */
+    public long logUserRemoved(String username) {
+        return append(USER_REMOVED, out -> out.writeUTF(username));
+    }
+
+    /**
+     * Logs a banned ip address or range.
+     *
+     * @param ip ip address or CIDR range
+     * @return log sequence number of the record
+     */
+    public long logIpBan(String ip) {
+        return append(IP_BAN, out -> out.writeUTF(ip));
+    }
+
+    /**
+     * Logs an ip address or range, that is not banned any more.
+     *
+     * @param ip ip address or CIDR range
+     * @return log sequence number of the record
+     */
+    public long logIpUnban(String ip) {
+        return append(IP_UNBAN, out -> out.writeUTF(ip));
+    }
+
+    /**
+     * Logs a message added to the history.
+     *
+     * @param seq sequence number of the message
+     * @param time timestamp of the message
+     * @param bytes the message in UTF-8
+     * @return log sequence number of the record
+     */
+    public long logMessage(long seq, long time, byte[] bytes) {
+        return append(MESSAGE, out -> {
+            out.writeLong(seq);
+            out.writeLong(time);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        });
+    }
+
+    /**
+     * Logs the deletion of the history.
+     *
+     * @param lastSeq sequence number of the last deleted message
+     * @return log sequence number of the record
+     */
+    public long logHistoryCleared(long lastSeq) {
+        return append(HISTORY_CLEARED, out -> out.writeLong(lastSeq));
+    }
+
+    /**
+     * Writes the payload of a record.
+     */
+    private interface Payload {
+        /**
+         * @param out stream to write the payload to
+         * @throws IOException never, the stream is in memory
+         */
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Puts a record in the buffer of the writer.
+     *
+     * @param type type of the record
+     * @param payload writes the payload
+     * @return log sequence number of the record, -1 if the log is closed
+     * or can't be written
+     */
+    private long append(byte type, Payload payload) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bos);
+        try {
+            out.writeLong(0);
+            out.writeByte(type);
+            payload.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] record = bos.toByteArray();
+        CRC32 crc = new CRC32();
+
+        lock.lock();
+        try {
+            if (closed || failed)
+                return -1;
+            long lsn = nextLsn++;
+            ByteBuffer.wrap(record).putLong(lsn);
+            crc.update(record);
+            int needed = buffered + 8 + record.length;
+            if (needed > buffer.length) {
+                byte[] bigger = new byte[Math.max(needed, buffer.length * 2)];
+                System.arraycopy(buffer, 0, bigger, 0, buffered);
+                buffer = bigger;
+            }
+            ByteBuffer.wrap(buffer, buffered, 8)
+                    .putInt(record.length - 9)
+                    .putInt((int) crc.getValue());
+            System.arraycopy(record, 0, buffer, buffered + 8, record.length);
+            buffered = needed;
+            notEmpty.signal();
+            return lsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Seals the log for a snapshot: the records logged so far are written,
+     * forced to the disk and renamed to the next segment, and the log goes
+     * on in a new file. Waits until it is done.
+     *
+     * @return log sequence number of the last record in the sealed segments,
+     * the snapshot has to hold every change up to it; -1 if the log is closed
+     * or can't be written
+     */
+    public long rotate() {
+        lock.lock();
+        try {
+            if (closed || failed)
+                return -1;
+            long cut = nextLsn - 1;
+            rotating = true;
+            rotateAt = buffered;
+            notEmpty.signal();
+            while (rotating && !failed)
+                durable.awaitUninterruptibly();
+            return failed ? -1 : cut;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the sealed segments, after everything in them is saved in a snapshot.
+     */
+    public void deleteSealedSegments() {
+        try {
+            for (Path sealed : sealedSegments().values())
+                Files.deleteIfExists(sealed);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return bytes written to the log since it was last rotated
+     */
+    public long getBytesSinceRotation() {
+        lock.lock();
+        try {
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return log sequence number of the last logged record
+     */
+    public long getLastLsn() {
+        lock.lock();
+        try {
+            return nextLsn - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * With the ALWAYS policy, waits until the record is on the disk.
+     * With the other policies it returns at once.
+     *
+     * @param lsn log sequence number of the record
+     */
+    public void sync(long lsn) {
+        if (policy != FsyncPolicy.ALWAYS || lsn < 0)
+            return;
+        lock.lock();
+        try {
+            while (durableLsn < lsn && !failed && !closed)
+                durable.awaitUninterruptibly();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered records, until the log is closed.
+     */
+    private void writeLoop() {
+        byte[] spare = new byte[buffer.length];
+        long lastForce = System.nanoTime();
+        boolean unforced = false;
+        while (true) {
+            byte[] batch;
+            int length;
+            int split;
+            long lastLsn;
+            boolean done;
+            lock.lock();
+            try {
+                while (buffered == 0 && !closed && !rotating) {
+                    if (unforced)
+                        notEmpty.awaitNanos(Math.max(1, fsyncIntervalNanos - (System.nanoTime() - lastForce)));
+                    else
+                        notEmpty.awaitUninterruptibly();
+                    if (unforced && System.nanoTime() - lastForce >= fsyncIntervalNanos)
+                        break;
+                }
+                batch = buffer;
+                length = buffered;
+                buffer = spare.length >= batch.length ? spare : new byte[batch.length];
+                buffered = 0;
+                split = rotating ? rotateAt : -1;
+                lastLsn = nextLsn - 1;
+                done = closed;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (split >= 0) {
+                    write(batch, 0, split);
+                    seal();
+                    write(batch, split, length - split);
+                    unforced = length > split;
+                } else {
+                    write(batch, 0, length);
+                    unforced |= length > 0;
+                }
+                long now = System.nanoTime();
+                if (unforced && (policy == FsyncPolicy.ALWAYS || done
+                        || (policy == FsyncPolicy.INTERVAL && now - lastForce >= fsyncIntervalNanos))) {
+                    channel.force(false);
+                    lastForce = now;
+                    unforced = false;
+                } else if (policy == FsyncPolicy.NEVER) {
+                    unforced = false;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                lock.lock();
+                try {
+                    failed = true;
+                    rotating = false;
+                    buffered = 0;
+                    durable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                report.accept("Error: Write-ahead log can't be written, changes are saved only on stop!");
+                return;
+            }
+            spare = batch;
+
+            lock.lock();
+            try {
+                durableLsn = lastLsn;
+                if (split >= 0)
+                    rotating = false;
+                written += length - Math.max(split, 0);
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (done)
+                return;
+        }
+    }
+
+    /**
+     * Writes a part of a batch to the log file.
+     *
+     * @param batch buffered records
+     * @param offset start of the part
+     * @param length length of the part
+     * @throws IOException if the file can't be written
+     */
+    private void write(byte[] batch, int offset, int length) throws IOException {
+        ByteBuffer out = ByteBuffer.wrap(batch, offset, length);
+        while (out.hasRemaining())
+            channel.write(out);
+    }
+
+    /**
+     * Forces and closes the log file, renames it to the next segment,
+     * and opens a new file.
+     *
+     * @throws IOException if a file can't be written or renamed
+     */
+    private void seal() throws IOException {
+        channel.force(false);
+        channel.close();
+        Files.move(path, path.resolveSibling(path.getFileName() + "." + (segment + 1)));
+        segment++;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        syncDirectory(path);
+        lock.lock();
+        try {
+            written = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the directory of a file to the disk, so a new name of the file
+     * survives a crash. Where directories can't be opened, it does nothing.
+     *
+     * @param file the renamed or created file
+     */
+    static void syncDirectory(Path file) {
+        try (FileChannel dir = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // not supported on this platform
+        }
+    }
+
+    /**
+     * Writes and forces the buffered records, and closes the log.
+     * Changes logged after this are not recorded.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (writer != null)
+                writer.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Deletes the closed log with its sealed segments, after everything in
+     * it is saved in a snapshot.
+     */
+    public void delete() {
+        try {
+            deleteSealedSegments();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.latsa.chatserver.storage;
+
+import com.latsa.chatserver.HistoryStore;
+import com.latsa.chatserver.InMemoryUserRegistry;
+import com.latsa.chatserver.UserData;
+import com.latsa.chatserver.UserRegistry;
+import com.latsa.chatserver.net.IpBlacklist;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests WriteAheadLog.
+ */
+class WriteAheadLogTest {
+
+    /**
+     * Logged changes come back on replay, a second replay changes nothing,
+     * and a torn record at the end is cut off.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testReplay() throws IOException {
+        File file = File.createTempFile("server", ".wal");
+        try {
+            WriteAheadLog wal = new WriteAheadLog(file.getPath(), FsyncPolicy.ALWAYS, 10, line -> {});
+            assertEquals(0, wal.replay(new InMemoryUserRegistry(new ArrayList<>()), new IpBlacklist(), history()));
+            UserRegistry users = new DurableUserRegistry(new InMemoryUserRegistry(new ArrayList<>()), wal);
+            HistoryStore history = history();
+            history.setWriteAheadLog(wal);
+
+            UserData alice = new UserData("alice", "hash");
+            users.add(alice);
+            users.add(new UserData("bob", "hash"));
+            alice.setBanned(true);
+            users.update(alice);
+            users.remove("bob");
+            wal.sync(wal.logIpBan("10.0.0.0/8"));
+            history.append("one");
+            history.clear();
+            history.append("two");
+            wal.close();
+            long length = file.length();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(length);
+                raf.write(new byte[]{0, 0, 0, 50, 1, 2, 3});
+            }
+
+            for (int round = 0; round < 2; round++) {
+                UserRegistry replayedUsers = new InMemoryUserRegistry(new ArrayList<>());
+                IpBlacklist blacklist = new IpBlacklist();
+                HistoryStore replayedHistory = history();
+                if (round == 1)
+                    replayedHistory.append("two");
+                WriteAheadLog replay = new WriteAheadLog(file.getPath(), FsyncPolicy.NEVER, 10, line -> {});
+                assertEquals(8, replay.replay(replayedUsers, blacklist, replayedHistory));
+                replay.close();
+
+                assertEquals(length, file.length());
+                assertTrue(replayedUsers.get("alice").getBanned());
+                assertNull(replayedUsers.get("bob"));
+                assertTrue(blacklist.contains(new byte[]{10, 1, 2, 3}));
+                assertEquals(List.of("two"), replayedHistory.tail(10));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Many threads logging with the ALWAYS policy share the fsyncs.
+     *
+     * @throws Exception
+     */
+    @Test
+    void testGroupCommit() throws Exception {
+        File file = File.createTempFile("server", ".wal");
+        try {
+            WriteAheadLog wal = new WriteAheadLog(file.getPath(), FsyncPolicy.ALWAYS, 10, line -> {});
+            wal.replay(new InMemoryUserRegistry(new ArrayList<>()), new IpBlacklist(), history());
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int id = t;
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < 200; i++)
+                        wal.sync(wal.logUserRemoved("user" + id + "-" + i));
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads)
+                thread.join();
+            wal.close();
+
+            WriteAheadLog replay = new WriteAheadLog(file.getPath(), FsyncPolicy.NEVER, 10, line -> {});
+            assertEquals(1600, replay.replay(new InMemoryUserRegistry(new ArrayList<>()), new IpBlacklist(), history()));
+            replay.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * After a rotation the snapshot holds the sealed changes, and only the
+     * newer ones are replayed on top of it.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testRotate() throws IOException {
+        File file = File.createTempFile("server", ".wal");
+        File snapshot = File.createTempFile("server", ".snapshot");
+        try {
+            WriteAheadLog wal = new WriteAheadLog(file.getPath(), FsyncPolicy.INTERVAL, 10, line -> {});
+            UserRegistry users = new DurableUserRegistry(new InMemoryUserRegistry(new ArrayList<>()), wal);
+            IpBlacklist blacklist = new IpBlacklist();
+            HistoryStore history = history();
+            wal.replay(users, blacklist, history);
+            history.setWriteAheadLog(wal);
+
+            users.add(new UserData("alice", "hash"));
+            history.append("one");
+            long lsn = wal.rotate();
+            assertEquals(2, lsn);
+            assertTrue(new File(file.getPath() + ".1").exists());
+            users.add(new UserData("bob", "hash"));
+            Snapshot.write(snapshot.getPath(), lsn, users, blacklist, history);
+            wal.deleteSealedSegments();
+            assertFalse(new File(file.getPath() + ".1").exists());
+            history.append("two");
+            wal.close();
+
+            UserRegistry restoredUsers = new InMemoryUserRegistry(new ArrayList<>());
+            IpBlacklist restoredBlacklist = new IpBlacklist();
+            HistoryStore restoredHistory = history();
+            assertEquals(2, Snapshot.read(snapshot.getPath(), restoredUsers, restoredBlacklist, restoredHistory));
+            WriteAheadLog replay = new WriteAheadLog(file.getPath(), FsyncPolicy.NEVER, 10, line -> {});
+            assertEquals(2, replay.replay(restoredUsers, restoredBlacklist, restoredHistory, lsn));
+            assertEquals(4, replay.getLastLsn());
+            replay.close();
+
+            assertNotNull(restoredUsers.get("alice"));
+            assertNotNull(restoredUsers.get("bob"));
+            assertEquals(List.of("one", "two"), restoredHistory.tail(10));
+        } finally {
+            file.delete();
+            snapshot.delete();
+        }
+    }
+
+    /**
+     * Once the file can't be written, the failure is reported once, and
+     * changes are not logged any more.
+     *
+     * @throws IOException
+     */
+    @Test
+    void testFailed() throws IOException {
+        File file = File.createTempFile("server", ".wal");
+        File taken = new File(file.getPath() + ".1");
+        List<String> reported = new ArrayList<>();
+        try {
+            WriteAheadLog wal = new WriteAheadLog(file.getPath(), FsyncPolicy.ALWAYS, 10, reported::add);
+            wal.replay(new InMemoryUserRegistry(new ArrayList<>()), new IpBlacklist(), history());
+            assertEquals(1, wal.logIpBan("10.0.0.1"));
+            assertTrue(taken.mkdir());
+            assertEquals(-1, wal.rotate());
+            assertEquals(-1, wal.logIpBan("10.0.0.2"));
+            wal.sync(wal.logIpBan("10.0.0.3"));
+            assertEquals(1, wal.getLastLsn());
+            wal.close();
+            assertEquals(1, reported.size());
+        } finally {
+            taken.delete();
+            file.delete();
+        }
+    }
+
+    private static HistoryStore history() {
+        return new HistoryStore(100, 64 * 1024, 0);
+    }
+}
@@ -1,47 +1,41 @@
 package com.latsa.chatserver.utils;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * A fifo that accept commands and holds them, until
- * they get taken.
+ * they get taken. It is built on a blocking queue instead of
+ * monitors, so waiting on it doesn't pin virtual threads.
  */
 public class CommandFifo {
-    private List<String> list;
+    private BlockingQueue<String> list;
 
     /**
      * Constructs a new fifo.
      */
     public CommandFifo() {
-        list = Collections.synchronizedList(new ArrayList<>());
+        list = new LinkedBlockingQueue<>();
     }
 
     /**
-     * Puts a new element in the fifo and notifies other
-     * threads, that they can take it out now.
+     * Puts a new element in the fifo and wakes up a thread,
+     * that waits to take it out.
      *
      * @param elem element to put in fifo
      */
-    public synchronized void put(String elem) {
+    public void put(String elem) {
         list.add(elem);
-        this.notifyAll();
     }
 
     /**
      * If there is an element in the fifo, threads can
-     * synchronously take it out.
+     * take it out, otherwise they wait for one.
      *
      * @return first element of the fifo
      * @throws InterruptedException
      */
-    public synchronized String get() throws InterruptedException {
-        while (list.size() <= 0)
-            this.wait();
-        String temp = list.get(0);
-        list.remove(0);
-        this.notifyAll();
-        return temp;
+    public String get() throws InterruptedException {
+        return list.take();
     }
 }
@@ -0,0 +1,258 @@
+package com.latsa.chatserver.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timer for a large number of timeouts, that are mostly cancelled before
+ * they expire. The timeouts are hashed into the slots of a wheel by their
+ * deadline, and one thread visits a slot every tick, so a timeout costs
+ * one small object, and adding or cancelling it is constant time.
+ * Deadlines are only as precise as the tick.
+ * <p>
+ * Expired tasks run on the timer thread, so they must be short.
+ */
+public class HashedWheelTimer {
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state;
+        private long rounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+            this.state = new AtomicInteger(WAITING);
+        }
+
+        /**
+         * Cancels the task, if it hasn't run yet.
+         *
+         * @return if the task was cancelled by this call
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED))
+                return false;
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * @return if the task was cancelled
+         */
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * Runs the task, unless it was cancelled meanwhile.
+         */
+        private void expire() {
+            if (!state.compareAndSet(WAITING, EXPIRED))
+                return;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Slot of the wheel, a doubly linked list of timeouts. Only the timer
+     * thread touches it.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            if (tail == null)
+                head = timeout;
+            else
+                tail.next = timeout;
+            tail = timeout;
+        }
+
+        private Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev == null)
+                head = next;
+            else
+                timeout.prev.next = next;
+            if (next == null)
+                tail = timeout.prev;
+            else
+                next.prev = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        /**
+         * Runs the timeouts, that are due in this round, and counts down
+         * the rounds of the others.
+         *
+         * @param deadline time of the current tick
+         */
+        private void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+                    Timeout next = remove(timeout);
+                    timeout.expire();
+                    timeout = next;
+                } else if (timeout.isCancelled()) {
+                    timeout = remove(timeout);
+                } else {
+                    timeout.rounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Most new timeouts moved into the wheel in one tick, so a flood of
+     * them can't stall the expiring ones.
+     */
+    private static final int MAX_TRANSFER = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final ConcurrentLinkedQueue<Timeout> pending;
+    private final ConcurrentLinkedQueue<Timeout> cancelled;
+    private final Thread worker;
+    private volatile boolean stopped;
+    private long tick;
+
+    /**
+     * Constructs and starts a new timer.
+     *
+     * @param name name of the timer thread
+     * @param tickDuration time between two ticks
+     * @param unit unit of the tick duration
+     * @param wheelSize number of slots, rounded up to a power of two
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        mask = size - 1;
+        pending = new ConcurrentLinkedQueue<>();
+        cancelled = new ConcurrentLinkedQueue<>();
+        startTime = System.nanoTime();
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task. Can be called from any thread.
+     *
+     * @param task task to run
+     * @param delay time until the task runs
+     * @param unit unit of the delay
+     * @return handle to cancel the task with
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay));
+        if (deadline < 0)
+            deadline = Long.MAX_VALUE;
+        Timeout timeout = new Timeout(this, task, deadline);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread. Tasks, that didn't run yet, never will.
+     */
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    /**
+     * Visits the slots of the wheel one after the other, one every tick.
+     */
+    private void run() {
+        while (!stopped) {
+            long deadline = waitForNextTick();
+            if (deadline < 0)
+                break;
+            removeCancelled();
+            transferPending();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Sleeps until the next tick.
+     *
+     * @return time of the tick since the start, or -1 if the timer stopped
+     */
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long now = System.nanoTime() - startTime;
+            long sleep = deadline - now;
+            if (sleep <= 0)
+                return now;
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            } catch (InterruptedException e) {
+                if (stopped)
+                    return -1;
+            }
+        }
+    }
+
+    /**
+     * Takes the cancelled timeouts out of their slots.
+     */
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    /**
+     * Puts the new timeouts in the slots of their deadlines.
+     */
+    private void transferPending() {
+        for (int i = 0; i < MAX_TRANSFER; i++) {
+            Timeout timeout = pending.poll();
+            if (timeout == null)
+                return;
+            if (timeout.isCancelled())
+                continue;
+            long ticks = timeout.deadline / tickNanos;
+            timeout.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.latsa.chatserver.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests HashedWheelTimer.
+ */
+class HashedWheelTimerTest {
+
+    /**
+     * Tasks run after their delay, even past a full round of the wheel,
+     * cancelled ones never run.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    void testTimeouts() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 8);
+        CountDownLatch done = new CountDownLatch(2);
+        AtomicBoolean cancelledRan = new AtomicBoolean(false);
+        long start = System.nanoTime();
+
+        timer.newTimeout(done::countDown, 10, TimeUnit.MILLISECONDS);
+        timer.newTimeout(done::countDown, 100, TimeUnit.MILLISECONDS);
+        HashedWheelTimer.Timeout cancelled = timer.newTimeout(() -> cancelledRan.set(true), 50, TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertFalse(cancelledRan.get());
+        assertFalse(cancelled.cancel());
+        timer.stop();
+    }
+}
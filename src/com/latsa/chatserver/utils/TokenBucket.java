@@ -0,0 +1,107 @@
+package com.latsa.chatserver.utils;
+
+/**
+ * Token bucket rate limiter. Tokens come back at a steady rate, up to the
+ * size of the burst, and every allowed action takes some of them.
+ * It isn't thread safe, every bucket must be used by one thread at a time.
+ */
+public class TokenBucket {
+
+    private double ratePerNano;
+    private double burst;
+    private double tokens;
+    private long last;
+
+    /**
+     * Constructs a new, full bucket.
+     *
+     * @param ratePerSecond tokens coming back every second
+     * @param burst most tokens the bucket can hold
+     */
+    public TokenBucket(double ratePerSecond, double burst) {
+        this(ratePerSecond, burst, System.nanoTime());
+    }
+
+    /**
+     * Constructs a new, full bucket.
+     *
+     * @param ratePerSecond tokens coming back every second
+     * @param burst most tokens the bucket can hold
+     * @param now current time in nanoseconds
+     */
+    TokenBucket(double ratePerSecond, double burst, long now) {
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+        this.last = now;
+    }
+
+    /**
+     * Takes a token, if there is one.
+     *
+     * @return if the action is allowed
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(1, System.nanoTime());
+    }
+
+    /**
+     * Takes the given amount of tokens, if there are enough.
+     *
+     * @param amount tokens the action costs
+     * @return if the action is allowed
+     */
+    public boolean tryAcquire(double amount) {
+        return tryAcquire(amount, System.nanoTime());
+    }
+
+    /**
+     * Takes the given amount of tokens, if there are enough.
+     *
+     * @param amount tokens the action costs
+     * @param now current time in nanoseconds
+     * @return if the action is allowed
+     */
+    boolean tryAcquire(double amount, long now) {
+        refill(now);
+        if (tokens < amount)
+            return false;
+        tokens -= amount;
+        return true;
+    }
+
+    /**
+     * Takes the given amount of tokens, even if there aren't enough.
+     * The missing tokens are a debt, paid back by the rate.
+     *
+     * @param amount tokens the action costs
+     * @return nanoseconds until the debt is paid, 0 if there is none
+     */
+    public long take(double amount) {
+        refill(System.nanoTime());
+        tokens -= amount;
+        if (tokens >= 0)
+            return 0;
+        return ratePerNano > 0 ? (long) Math.ceil(-tokens / ratePerNano) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return if the bucket filled up, so nothing used it for a while
+     */
+    public boolean isFull() {
+        refill(System.nanoTime());
+        return tokens >= burst;
+    }
+
+    /**
+     * Adds the tokens that came back since the last call.
+     *
+     * @param now current time in nanoseconds
+     */
+    private void refill(long now) {
+        if (now > last) {
+            tokens = Math.min(burst, tokens + (now - last) * ratePerNano);
+            last = now;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.latsa.chatserver.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests TokenBucket.
+ */
+class TokenBucketTest {
+
+    /**
+     * The burst can be used at once, then tokens come back with the rate.
+     */
+    @Test
+    void testTokenBucket() {
+        TokenBucket bucket = new TokenBucket(2, 3, 0);
+        assertTrue(bucket.tryAcquire(3, 0));
+        assertFalse(bucket.tryAcquire(1, 0));
+        assertFalse(bucket.tryAcquire(1, 400_000_000L));
+        assertTrue(bucket.tryAcquire(1, 500_000_000L));
+        assertTrue(bucket.tryAcquire(3, 10_000_000_000L));
+        assertFalse(bucket.tryAcquire(1, 10_000_000_000L));
+    }
+
+    /**
+     * Taking more than there is leaves a debt, that has to be waited out.
+     */
+    @Test
+    void testTake() {
+        TokenBucket bucket = new TokenBucket(1_000_000_000, 1);
+        assertTrue(bucket.take(1) == 0);
+        assertTrue(bucket.take(1000) > 0);
+    }
+}